@@ -1,6 +1,7 @@
 package org.webdatacommons.framework;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,34 +11,37 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
-import org.jets3t.service.model.S3Object;
+import org.webdatacommons.framework.concurrency.CancellationToken;
+import org.webdatacommons.framework.concurrency.ConcurrencyController;
+import org.webdatacommons.framework.concurrency.Watchdog;
 import org.webdatacommons.framework.io.AmazonStatHandler;
+import org.webdatacommons.framework.io.AsyncStatHandler;
 import org.webdatacommons.framework.io.CSVStatHandler;
+import org.webdatacommons.framework.io.RangedDownloader;
+import org.webdatacommons.framework.io.LocalStatHandler;
 import org.webdatacommons.framework.io.StatHandler;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
-
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import org.webdatacommons.framework.queue.Job;
+import org.webdatacommons.framework.queue.Prefetcher;
+import org.webdatacommons.framework.queue.Prefetcher.Task;
+import org.webdatacommons.framework.queue.TaskLedger;
 
 /**
  * Worker implementation of the {@link ProcessingNode}, which builds up for each
- * core on the system one thread. Each thread connects to the SQS (AWS) and
- * requests a file. The file is retrieved, and processed by a Processor which
+ * core on the system one thread. Each thread connects to the job queue (SQS
+ * by default, see {@link ProcessingNode#getJobQueue()}) and requests a file. The file is retrieved, and processed by a Processor which
  * than stores the data back to S3. S3. The queue is signalized that the file is
  * done. In addition statistics about the processed files are store in SimpleDB
  * of AWS.
@@ -55,6 +59,17 @@ public class Worker extends ProcessingNode {
 	private final String processorClass = getOrCry("processorClass");
 	// maximum limit of retries for a queue
 	private final int retryLimit = Integer.parseInt(getOrCry("jobRetryLimit"));
+	// time in seconds a task may take, also the lease of a task in the queue
+	private final int jobTimeLimit = Integer.parseInt(getOrCry("jobTimeLimit"));
+	// number of tasks claimed from the queue with one request
+	private final int jobBatchSize = getOrDefault("jobBatchSize", 1);
+	// claims and downloads the next tasks in the background, shared by all
+	// worker threads
+	private static Prefetcher prefetcher = null;
+	// the processor of this worker, reused for all files
+	private FileProcessor processor = null;
+	// stat handlers shared by all worker threads, by domain
+	private static Map<String, StatHandler> sharedStatHandlers = new HashMap<String, StatHandler>();
 	// handler for statistics
 	private StatHandler dataStatHandler = null;
 	// handler for errors
@@ -62,7 +77,6 @@ public class Worker extends ProcessingNode {
 
 	// the actual worker thread.
 	public static class WorkerThread extends Thread {
-		private Timer timer = new Timer();
 		int timeLimit = 0;
 
 		public WorkerThread() {
@@ -77,25 +91,34 @@ public class Worker extends ProcessingNode {
 			if (timeLimit < 1) {
 				timeLimit = Integer.parseInt(worker.getOrCry("jobTimeLimit")) * 1000;
 			}
+			// time in milliseconds after which a record is reported as stuck
+			long recordTimeLimit = worker.getOrDefault("recordTimeLimit", 60)
+					* 1000L;
+			ConcurrencyController concurrency = worker
+					.getConcurrencyController();
 			while (true) {
-				// cancel all old timers
+				// wait until this thread may work on a task
+				try {
+					concurrency.acquire();
+				} catch (InterruptedException e) {
+					continue;
+				}
 				boolean success = false;
-				timer = new Timer();
-				// set a new timer killing us after the specified time limit
-				final WorkerThread t = this;
-				timer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						log.warn("Killing worker thread, timeout expired.");
-						t.interrupt();
-					}
-				}, timeLimit);
+				// cancel the task after the specified time limit
+				CancellationToken token = Watchdog.startTask(timeLimit,
+						recordTimeLimit);
 
 				// start the worker - and let it work
-				success = worker.getTaskAndProcess();
+				try {
+					success = worker.getTaskAndProcess();
+				} finally {
+					concurrency.release();
+					Watchdog.finishTask(token);
+					// the interrupt of a cancelled task is not for the next one
+					Thread.interrupted();
+				}
 
 				// on failures sleep a bit
-				timer.cancel();
 				if (!success) {
 					try {
 						Thread.sleep(1000);
@@ -113,22 +136,24 @@ public class Worker extends ProcessingNode {
 		File tempOutputFile = null;
 		String inputFileKey = "";
 		CSVStatHandler threehundredHandler = null;
+		Task task = null;
+		Job jobMessage = null;
 		boolean messageIsDeleted = false;
-
-		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(
-				getQueueUrl()).withAttributeNames("ApproximateReceiveCount");
+		// true once the task is recorded as started in the ledger
+		boolean started = false;
 
 		try {
-			// receive task message from queue
-			receiveMessageRequest.setMaxNumberOfMessages(1);
-			ReceiveMessageResult queueRes = getQueue().receiveMessage(
-					receiveMessageRequest);
-			if (queueRes.getMessages().size() < 1) {
+			// take the next task, its input was downloaded in the background
+			task = getPrefetcher().take();
+			if (task == null) {
 				log.warn("Queue is empty");
 				return false;
 			}
-			// get the message
-			Message jobMessage = queueRes.getMessages().get(0);
+			if (task.getJob() == null) {
+				// claiming from the queue failed
+				throw task.getError();
+			}
+			jobMessage = task.getJob();
 
 			/**
 			 * messages which went back to the queue more than the amount of
@@ -136,12 +161,13 @@ public class Worker extends ProcessingNode {
 			 * discarded, probably contain nasty data we cannot parse.
 			 */
 
-			if (Integer.parseInt(jobMessage.getAttributes().get(
-					"ApproximateReceiveCount")) > retryLimit) {
-				log.warn("Discarding message " + jobMessage.getBody());
-				getQueue().deleteMessage(
-						new DeleteMessageRequest(getQueueUrl(), jobMessage
-								.getReceiptHandle()));
+			if (jobMessage.getReceiveCount() > retryLimit) {
+				log.warn("Discarding message " + jobMessage.getKey());
+				getJobQueue().ack(jobMessage);
+				messageIsDeleted = true;
+				// an earlier attempt may not have stopped, so the master
+				// does not queue it again
+				getTaskLedger().stop(jobMessage.getKey(), getNodeName());
 
 				// store this information in sdb about the message discard
 				Map<String, String> statData = new HashMap<String, String>();
@@ -153,7 +179,7 @@ public class Worker extends ProcessingNode {
 				} catch (UnknownHostException e1) {
 					// ignore
 				}
-				statData.put("file", jobMessage.getBody());
+				statData.put("file", jobMessage.getKey());
 				statData.put("datetime", Calendar.getInstance().getTime()
 						.toString());
 
@@ -165,30 +191,61 @@ public class Worker extends ProcessingNode {
 			}
 
 			/**
-			 * retrieve data file from s3, and unpack it using gzip
+			 * the data file was retrieved from s3 by the prefetcher
 			 */
-			inputFileKey = jobMessage.getBody();
+			inputFileKey = jobMessage.getKey();
+			if (task.getError() != null) {
+				throw task.getError();
+			}
+
+			/**
+			 * the master may have queued a second copy of a slow task, only
+			 * the first copy to finish is processed and counted
+			 */
+			TaskLedger ledger = getTaskLedger();
+			if (ledger.isFinished(inputFileKey)) {
+				log.info("Skipping " + inputFileKey
+						+ ", it was finished by another worker");
+				getJobQueue().ack(jobMessage);
+				messageIsDeleted = true;
+				return true;
+			}
+			ledger.start(inputFileKey, jobMessage.getSize(), getNodeName());
+			started = true;
 			log.info("Now working on " + inputFileKey);
 
 			/**
-			 * get file from s3 and process with zipped arc.
+			 * process the local copy of the zipped file, as a file channel
+			 * a retried file can be resumed at the offset of its checkpoint.
 			 */
-			S3Object inputObject = getStorage().getObject(dataBucket,
-					inputFileKey);
-			ReadableByteChannel gzippedWatFileBC = Channels
-					.newChannel(inputObject.getDataInputStream());
+			ReadableByteChannel gzippedWatFileBC = new FileInputStream(
+					task.getFile()).getChannel();
 
-			FileProcessor processor = (FileProcessor) Class.forName(
-					processorClass).newInstance();
-			Map<String, String> stats = processor.process(gzippedWatFileBC,
-					inputFileKey);
+			Map<String, String> stats;
+			StageTimer taskTimer = Metrics.timer("task");
+			long start = taskTimer.start();
+			try {
+				stats = getProcessor().process(gzippedWatFileBC, inputFileKey);
+			} finally {
+				gzippedWatFileBC.close();
+			}
+			taskTimer.stop(start);
+			Metrics.counter("tasks").inc();
 			
 			log.info("Processed "+inputFileKey);
 			/**
-			 * force statistics being persisted
+			 * hand the statistics over to be persisted, the shared handler
+			 * writes them in the background. A copy of the task which
+			 * finished second wrote the same outputs, but its statistics are
+			 * left out.
 			 */
-			getDataStatHandler().addStats(inputFileKey, stats);
-			getDataStatHandler().flush();
+			if (ledger.finish(inputFileKey, getNodeName())) {
+				getDataStatHandler().addStats(inputFileKey, stats);
+				getDataStatHandler().flush();
+			} else {
+				log.info(inputFileKey + " was finished first by another worker");
+				Metrics.counter("tasks.duplicate").inc();
+			}
 
 			/**
 			 * remove message from queue. If an Exception is thrown or the node
@@ -196,9 +253,7 @@ public class Worker extends ProcessingNode {
 			 * message is re-queued for another node
 			 */
 			log.info("Now delete the message form the queue "+ inputFileKey);
-			getQueue().deleteMessage(
-					new DeleteMessageRequest(getQueueUrl(), jobMessage
-							.getReceiptHandle()));
+			getJobQueue().ack(jobMessage);
 			messageIsDeleted = true;
 			log.debug("Finished processing file " + inputFileKey);
 
@@ -210,6 +265,18 @@ public class Worker extends ProcessingNode {
 					+ ")");
 			log.debug("Stracktrace", e.fillInStackTrace());
 
+			// the processor may be left in an inconsistent state
+			discardProcessor();
+
+			// the task is not running anymore, until it is retried
+			if (started) {
+				try {
+					getTaskLedger().stop(inputFileKey, getNodeName());
+				} catch (IOException e1) {
+					log.warn("Unable to record stop of " + inputFileKey);
+				}
+			}
+
 			// put error information into sdb for later analyis
 			Map<String, String> statData = new HashMap<String, String>();
 			statData.put("exception", e.getClass().getSimpleName());
@@ -236,6 +303,9 @@ public class Worker extends ProcessingNode {
 			getErrorStatHandler().flush();
 
 		} finally {
+			if (task != null) {
+				task.delete();
+			}
 
 			if (tempInputFile != null && tempInputFile.exists()) {
 				tempInputFile.delete();
@@ -253,13 +323,79 @@ public class Worker extends ProcessingNode {
 					statFile.delete();
 				}
 			}
-			if (!messageIsDeleted) {
-				receiveMessageRequest.setVisibilityTimeout(0);
+			if (jobMessage != null && !messageIsDeleted) {
+				// give the task back, so it can be retried right away
+				try {
+					getJobQueue().nack(jobMessage);
+				} catch (Exception e) {
+					log.warn("Unable to return " + jobMessage + " to the queue");
+				}
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Returns the prefetcher shared by all worker threads of the JVM, which
+	 * claims up to "jobBatchSize" tasks per request and keeps the input of the
+	 * next "prefetchDepth" tasks per permit of the
+	 * {@link ConcurrencyController} downloaded while the current ones are
+	 * processed.
+	 */
+	protected Prefetcher getPrefetcher() {
+		synchronized (Worker.class) {
+			if (prefetcher == null) {
+				prefetcher = createPrefetcher();
+			}
+			return prefetcher;
+		}
+	}
+
+	private Prefetcher createPrefetcher() {
+		final RangedDownloader downloader = getDownloader();
+		return new Prefetcher(getJobQueue(), new Prefetcher.InputSource() {
+			@Override
+			public InputStream open(String key) throws Exception {
+				if (downloader != null) {
+					return downloader.open(RangedDownloader.forObjectStore(
+							getObjectStore(), dataBucket), key);
+				}
+				return getObjectStore().get(dataBucket, key);
+			}
+		}, getConcurrencyController(), getOrDefault("prefetchDepth", 1),
+				jobBatchSize, jobTimeLimit, retryLimit);
+	}
+
+	/**
+	 * Returns the processor of this worker. It is created from the configured
+	 * "processorClass" and opened on first use, and then reused for all
+	 * following files.
+	 */
+	protected FileProcessor getProcessor() throws Exception {
+		if (processor == null) {
+			FileProcessor newProcessor = (FileProcessor) Class.forName(
+					processorClass).newInstance();
+			newProcessor.open();
+			processor = newProcessor;
+		}
+		return processor;
+	}
+
+	/**
+	 * Closes the processor of this worker, a new one is created for the next
+	 * file.
+	 */
+	protected void discardProcessor() {
+		if (processor != null) {
+			try {
+				processor.close();
+			} catch (Exception e) {
+				log.warn("Unable to close processor", e);
+			}
+			processor = null;
+		}
+	}
+
 	public void storeStreamToFile(InputStream in, File outFile)
 			throws IOException {
 		OutputStream out = new FileOutputStream(outFile);
@@ -281,20 +417,63 @@ public class Worker extends ProcessingNode {
 
 	public StatHandler getDataStatHandler() {
 		if (dataStatHandler == null) {
-			dataStatHandler = new AmazonStatHandler(getDbClient(),
-					getOrCry("sdbdatadomain"));
+			dataStatHandler = getSharedStatHandler(getOrCry("sdbdatadomain"));
 		}
 		return dataStatHandler;
 	}
 
 	public StatHandler getErrorStatHandler() {
 		if (errorStatHandler == null) {
-			errorStatHandler = new AmazonStatHandler(getDbClient(),
-					getOrCry("sdberrordomain"));
+			errorStatHandler = getSharedStatHandler(getOrCry("sdberrordomain"));
 		}
 		return errorStatHandler;
 	}
 
+	/**
+	 * Returns the stat handler for a domain, which is shared by all worker
+	 * threads. The stats go to SimpleDB or, if "statBackend" is "local", to a
+	 * local database in "localStatDir". They are written in batches by a
+	 * background thread, so the workers do not wait for the backend. If more
+	 * than "statQueueCapacity" stats are waiting, the workers block or the
+	 * stats are dropped, depending on "statOverflowPolicy".
+	 */
+	protected StatHandler getSharedStatHandler(String domain) {
+		synchronized (sharedStatHandlers) {
+			StatHandler handler = sharedStatHandlers.get(domain);
+			if (handler == null) {
+				StatHandler backend;
+				if ("local".equals(getOrDefault("statBackend", "sdb"))) {
+					try {
+						backend = LocalStatHandler.open(new File(
+								getOrCry("localStatDir"), domain));
+					} catch (IOException e) {
+						throw new RuntimeException(
+								"Unable to open local stats " + domain, e);
+					}
+				} else {
+					backend = new AmazonStatHandler(getDbClient(), domain);
+				}
+				handler = new AsyncStatHandler(backend, getOrDefault(
+						"statQueueCapacity", 1000),
+						AmazonStatHandler.BATCH_LIMIT,
+						AsyncStatHandler.OverflowPolicy.valueOf(getOrDefault(
+								"statOverflowPolicy", "block").toUpperCase()));
+				sharedStatHandlers.put(domain, handler);
+			}
+			return handler;
+		}
+	}
+
+	private static String getNodeName() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "unknown";
+		}
+		return host + "/" + Thread.currentThread().getName();
+	}
+
 	private static String getStackTrace(Throwable aThrowable) {
 		final Writer result = new StringWriter();
 		final PrintWriter printWriter = new PrintWriter(result);
@@ -302,10 +481,15 @@ public class Worker extends ProcessingNode {
 		return result.toString();
 	}
 
+	/**
+	 * Keeps the worker threads running. It starts as many threads as the
+	 * {@link ConcurrencyController} allows at most, the controller decides how
+	 * many of them work at the same time.
+	 */
 	public static class ThreadGuard extends Thread {
 		private List<Thread> threads = new ArrayList<Thread>();
 		// can set thread limit to one for debugging
-		private int threadLimit = Runtime.getRuntime().availableProcessors();
+		private int threadLimit;
 		//private int threadLimit = 1;
 		
 		private int threadSerial = 0;
@@ -313,8 +497,10 @@ public class Worker extends ProcessingNode {
 
 		private Class<? extends Thread> threadClass;
 
-		public ThreadGuard(Class<? extends Thread> threadClass) {
+		public ThreadGuard(Class<? extends Thread> threadClass,
+				ConcurrencyController concurrency) {
 			this.threadClass = threadClass;
+			this.threadLimit = concurrency.getMaxThreads();
 		}
 
 		public void run() {
@@ -352,7 +538,10 @@ public class Worker extends ProcessingNode {
 	}
 
 	public static void main(String[] args) {
-		new ThreadGuard(WorkerThread.class).start();
+		Worker worker = new Worker();
+		worker.startMetricsServer();
+		new ThreadGuard(WorkerThread.class,
+				worker.getConcurrencyController()).start();
 	}
 
 }
@@ -0,0 +1,284 @@
+package org.webdatacommons.framework.cli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.io.LocalStatHandler;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+import org.webdatacommons.framework.processor.FileProcessor;
+import org.webdatacommons.framework.processor.ProcessingNode;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.UnflaggedOption;
+
+/**
+ * Runs a {@link FileProcessor} over local files on a number of threads,
+ * without queue and cloud account, e.g. to re-extract a single segment or to
+ * measure the throughput of a processor. The outputs are written to the output
+ * directory through the local object store, the statistics of the files to a
+ * local stat database in "stats" below it, which is exported to "stats.csv.gz"
+ * at the end. Finally the throughput and the stage timings are printed.
+ *
+ * Each thread has its own processor, opened before its first file. Settings of
+ * the processor can be given as system properties with the prefix "dpef.",
+ * which override the property file.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java -cp dpef.jar org.webdatacommons.framework.cli.LocalRunner -p org.webdatacommons.structureddata.processor.WarcProcessor -t 8 -o out -g '*.warc.gz' segment/
+ * </pre>
+ *
+ */
+public class LocalRunner extends ProcessingNode {
+
+	private static Logger log = Logger.getLogger(LocalRunner.class);
+
+	private String processorClass;
+	private File outputDir;
+
+	// all processors, to close them at the end
+	private List<FileProcessor> processors = Collections
+			.synchronizedList(new ArrayList<FileProcessor>());
+	private ThreadLocal<FileProcessor> threadProcessor = new ThreadLocal<FileProcessor>();
+
+	private AtomicLong filesDone = new AtomicLong();
+	private AtomicLong filesFailed = new AtomicLong();
+	private AtomicLong bytesDone = new AtomicLong();
+
+	public LocalRunner(String processorClass, File outputDir) {
+		this.processorClass = processorClass;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Returns the files to process: the given files, and the files below the
+	 * given directories whose name matches the glob.
+	 */
+	public static List<File> listInputs(List<File> inputs, String glob) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+				"glob:" + glob);
+		List<File> files = new ArrayList<File>();
+		for (File input : inputs) {
+			if (input.isDirectory()) {
+				File[] children = input.listFiles();
+				Arrays.sort(children);
+				for (File child : children) {
+					if (child.isDirectory()) {
+						files.addAll(listInputs(Arrays.asList(child), glob));
+					} else if (matcher.matches(child.toPath().getFileName())) {
+						files.add(child);
+					}
+				}
+			} else if (input.isFile()) {
+				files.add(input);
+			} else {
+				log.warn("Unable to find " + input);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Processes the files and waits until all are done. The name of a file is
+	 * the key of its outputs and statistics, so the names have to be unique.
+	 */
+	public void run(List<File> files, int threads) throws Exception {
+		Map<String, File> names = new HashMap<String, File>();
+		for (File file : files) {
+			File other = names.put(file.getName(), file);
+			if (other != null) {
+				throw new IllegalArgumentException("Inputs " + other + " and "
+						+ file + " have the same name, their outputs would "
+						+ "overwrite each other");
+			}
+		}
+		final LocalStatHandler stats = LocalStatHandler.open(new File(
+				outputDir, "stats"));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.currentTimeMillis();
+		for (final File file : files) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					process(file, stats);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+
+		for (FileProcessor processor : processors) {
+			processor.close();
+		}
+		stats.exportCSV(new File(outputDir, "stats.csv.gz"));
+		report(stats, seconds);
+		stats.close();
+	}
+
+	private void process(File file, LocalStatHandler stats) {
+		String key = file.getName();
+		StageTimer taskTimer = Metrics.timer("task");
+		long start = taskTimer.start();
+		try {
+			FileProcessor processor = getProcessor();
+			log.info("Now working on " + file);
+			// a file channel, so the processor can resume at a checkpoint
+			ReadableByteChannel channel = new FileInputStream(file)
+					.getChannel();
+			Map<String, String> fileStats;
+			try {
+				fileStats = processor.process(channel, key);
+			} finally {
+				channel.close();
+			}
+			taskTimer.stop(start);
+			stats.addStats(key, fileStats);
+			bytesDone.addAndGet(file.length());
+			filesDone.incrementAndGet();
+		} catch (Exception e) {
+			log.warn("Unable to process " + file, e);
+			filesFailed.incrementAndGet();
+			// the processor may be left in an inconsistent state
+			FileProcessor processor = threadProcessor.get();
+			if (processor != null) {
+				threadProcessor.remove();
+				processors.remove(processor);
+				processor.close();
+			}
+		}
+	}
+
+	private FileProcessor getProcessor() throws Exception {
+		FileProcessor processor = threadProcessor.get();
+		if (processor == null) {
+			processor = (FileProcessor) Class.forName(processorClass)
+					.newInstance();
+			processor.open();
+			threadProcessor.set(processor);
+			processors.add(processor);
+		}
+		return processor;
+	}
+
+	private void report(LocalStatHandler stats, double seconds)
+			throws Exception {
+		DecimalFormat twoDForm = new DecimalFormat("#.##");
+		double mb = bytesDone.get() / (1024.0 * 1024.0);
+		StringBuilder sb = new StringBuilder();
+		sb.append("Processed ").append(filesDone.get()).append(" files (")
+				.append(filesFailed.get()).append(" failed), ")
+				.append(twoDForm.format(mb)).append(" MB in ")
+				.append(twoDForm.format(seconds)).append(" s: ")
+				.append(twoDForm.format(mb / seconds)).append(" MB/s, ")
+				.append(twoDForm.format(filesDone.get() * 60 / seconds))
+				.append(" files/min\n");
+		LocalStatHandler.Aggregate pages = stats.aggregate().get("pagesTotal");
+		if (pages != null) {
+			sb.append(twoDForm.format(pages.getSum())).append(" pages, ")
+					.append(twoDForm.format(pages.getSum() / seconds))
+					.append(" pages/s\n");
+		}
+		sb.append(Metrics.toText());
+		System.out.println(sb);
+	}
+
+	public static void main(String[] args) throws Exception {
+		JSAP jsap = new JSAP();
+
+		FlaggedOption processorP = new FlaggedOption("processor")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(false)
+				.setLongFlag("processor").setShortFlag('p');
+		processorP
+				.setHelp("Class of the processor, \"processorClass\" of the configuration if not given");
+		jsap.registerParameter(processorP);
+
+		FlaggedOption threadsP = new FlaggedOption("threads")
+				.setStringParser(JSAP.INTEGER_PARSER).setRequired(false)
+				.setDefault("1").setLongFlag("threads").setShortFlag('t');
+		threadsP.setHelp("Number of files processed at the same time");
+		jsap.registerParameter(threadsP);
+
+		FlaggedOption outputP = new FlaggedOption("output")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(true)
+				.setLongFlag("output").setShortFlag('o');
+		outputP.setHelp("Directory to write the outputs and statistics to");
+		jsap.registerParameter(outputP);
+
+		FlaggedOption globP = new FlaggedOption("glob")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(false)
+				.setDefault("*").setLongFlag("glob").setShortFlag('g');
+		globP.setHelp("Pattern of the names of the files in the input directories, e.g. *.warc.gz");
+		jsap.registerParameter(globP);
+
+		UnflaggedOption inputP = new UnflaggedOption("input")
+				.setStringParser(JSAP.STRING_PARSER).setRequired(true)
+				.setGreedy(true);
+		inputP.setHelp("Input files and directories");
+		jsap.registerParameter(inputP);
+
+		JSAPResult config = jsap.parse(args);
+		if (!config.success()) {
+			printUsageAndExit(jsap);
+		}
+
+		File outputDir = new File(config.getString("output"));
+		// outputs go to the output directory, unless set otherwise
+		setIfMissing("storageBackend", "local");
+		setIfMissing("localStoreDir", outputDir.getPath());
+		setIfMissing("resultBucket", "results");
+
+		String processorClass = config.getString("processor");
+		LocalRunner runner = new LocalRunner(processorClass, outputDir);
+		if (processorClass == null) {
+			runner.processorClass = runner.getOrCry("processorClass");
+		}
+
+		List<File> inputs = new ArrayList<File>();
+		for (String input : config.getStringArray("input")) {
+			inputs.add(new File(input));
+		}
+		List<File> files = listInputs(inputs, config.getString("glob"));
+		if (files.isEmpty()) {
+			System.err.println("No input files found");
+			System.exit(1);
+		}
+		int threads = config.getInt("threads");
+		log.info("Processing " + files.size() + " files with "
+				+ runner.processorClass + " on " + threads + " threads");
+		runner.run(files, threads);
+		System.exit(runner.filesFailed.get() > 0 ? 2 : 0);
+	}
+
+	private static void setIfMissing(String key, String value) {
+		if (System.getProperty(SYSTEM_PROPERTY_PREFIX + key) == null) {
+			System.setProperty(SYSTEM_PROPERTY_PREFIX + key, value);
+		}
+	}
+
+	private static void printUsageAndExit(JSAP jsap) {
+		System.err.println("Usage: " + LocalRunner.class.getName() + " "
+				+ jsap.getUsage());
+		System.err.println(jsap.getHelp());
+		System.exit(1);
+	}
+}
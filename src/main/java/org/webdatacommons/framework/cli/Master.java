@@ -12,6 +12,7 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,7 +41,11 @@ import org.jets3t.service.acl.gs.AllUsersGrantee;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Object;
 import org.webdatacommons.framework.io.CSVExport;
+import org.webdatacommons.framework.io.LocalStatHandler;
 import org.webdatacommons.framework.processor.ProcessingNode;
+import org.webdatacommons.framework.queue.Job;
+import org.webdatacommons.framework.queue.StragglerDetector;
+import org.webdatacommons.framework.queue.TaskLedger;
 import org.webdatacommons.structureddata.extractor.RDFExtractor;
 import org.webdatacommons.structureddata.processor.WarcProcessor;
 import org.webdatacommons.structureddata.util.DataCollector;
@@ -83,8 +88,6 @@ import com.amazonaws.services.simpledb.model.SelectResult;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
-import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
-import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.martiansoftware.jsap.FlaggedOption;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
@@ -1151,6 +1154,22 @@ public class Master extends ProcessingNode {
 		long maxEmptyQueueTimeMS = 60000;
 		long sleepMS = 1000;
 
+		// tasks running "speculationFactor" times longer than expected for
+		// their size are queued a second time, 0 disables this
+		StragglerDetector stragglers = null;
+		double speculationFactor = Double.parseDouble(getOrDefault(
+				"speculationFactor", "0"));
+		if (speculationFactor > 0
+				&& !"sdb".equals(getOrDefault("taskLedger", "local"))) {
+			// the ledger of the master would not know the tasks of the workers
+			log.warn("speculationFactor needs taskLedger = sdb, stragglers are not queued again");
+		} else if (speculationFactor > 0) {
+			stragglers = new StragglerDetector(speculationFactor,
+					getOrDefault("speculationMinSeconds", 600) * 1000L,
+					SPECULATION_MIN_FINISHED);
+		}
+		long lastSpeculationMS = System.currentTimeMillis();
+
 		while (true) {
 			try {
 				DescribeSpotInstanceRequestsRequest describeRequest = new DescribeSpotInstanceRequestsRequest();
@@ -1248,6 +1267,12 @@ public class Master extends ProcessingNode {
 							+ "                          	");
 				}
 
+				if (stragglers != null
+						&& System.currentTimeMillis() - lastSpeculationMS > SPECULATION_INTERVAL_MS) {
+					lastSpeculationMS = System.currentTimeMillis();
+					reissueStragglers(stragglers);
+				}
+
 			} catch (AmazonServiceException e) {
 				System.out.print("\r! // ");
 			}
@@ -1259,6 +1284,41 @@ public class Master extends ProcessingNode {
 		}
 	}
 
+	// time between two checks for stragglers
+	private static final long SPECULATION_INTERVAL_MS = 60000;
+	// finished tasks needed to estimate the time of a task
+	private static final int SPECULATION_MIN_FINISHED = 20;
+
+	/**
+	 * Queues a second copy of the tasks which run much longer than expected
+	 * for their size, according to the task ledger (see
+	 * {@link ProcessingNode#getTaskLedger()}). The first copy to finish wins,
+	 * the other one is skipped or its statistics are left out.
+	 */
+	private void reissueStragglers(StragglerDetector stragglers) {
+		TaskLedger ledger = getTaskLedger();
+		try {
+			List<TaskLedger.Entry> found = stragglers.find(
+					ledger.getFinished(), ledger.getRunning(),
+					System.currentTimeMillis());
+			if (found.isEmpty()) {
+				return;
+			}
+			List<String> bodies = new ArrayList<String>();
+			for (TaskLedger.Entry entry : found) {
+				bodies.add(Job.body(entry.getKey(), entry.getSize()));
+			}
+			getJobQueue().send(bodies);
+			for (TaskLedger.Entry entry : found) {
+				ledger.markReissued(entry.getKey());
+			}
+			log.info("Re-issued " + found.size() + " straggling tasks: "
+					+ found);
+		} catch (IOException e) {
+			log.warn("Unable to re-issue straggling tasks", e);
+		}
+	}
+
 	public void queue(String singlePrefix, Long limit, String filePath) {
 
 		String dataBucket = getOrCry("dataBucket");
@@ -1313,49 +1373,68 @@ public class Master extends ProcessingNode {
 			dataSuffixSet = false;
 		}
 
-		long globalQueued = 0;
+		// the files to queue, in listing order
+		List<S3Object> objects = new ArrayList<S3Object>();
 		for (String prefix : prefixes) {
 			try {
 				prefix = getOrCry("dataPrefix") + "/" + prefix;
-				long objectsQueued = 0;
-				SendMessageBatchRequest smbr = new SendMessageBatchRequest(
-						getQueueUrl());
-				smbr.setEntries(new ArrayList<SendMessageBatchRequestEntry>());
-
+				long objectsListed = 0;
 				for (S3Object object : getStorage().listObjects(dataBucket,
 						prefix, null)) {
 					// if limit is set and number of queued objects reached
 					// limit,
 					// stop queuing
-					if (limit != null && globalQueued >= limit) {
+					if (limit != null && objects.size() >= limit) {
 						break;
 					}
 					if (dataSuffixSet && !object.getKey().endsWith(dataSuffix)) {
 						continue;
 					}
-					SendMessageBatchRequestEntry smbre = new SendMessageBatchRequestEntry();
-					smbre.setMessageBody(object.getKey());
-					smbre.setId("task_" + objectsQueued);
-					smbr.getEntries().add(smbre);
-					if (smbr.getEntries().size() >= batchSize) {
-						getQueue().sendMessageBatch(smbr);
-						// having send into queue - reset entries.
-						smbr.setEntries(new ArrayList<SendMessageBatchRequestEntry>());
-					}
-					objectsQueued++;
-					globalQueued++;
-				}
-				// send the rest
-				if (smbr.getEntries().size() > 0) {
-					getQueue().sendMessageBatch(smbr);
+					objects.add(object);
+					objectsListed++;
 				}
-				log.info("Queued " + objectsQueued + " objects for prefix "
+				log.info("Listed " + objectsListed + " objects for prefix "
 						+ prefix);
 			} catch (Exception e) {
-				log.warn("Failed to queue objects in bucket " + dataBucket
+				log.warn("Failed to list objects in bucket " + dataBucket
 						+ " with prefix " + prefix, e);
 			}
 		}
+
+		// the largest files take longest, if they are processed last, a few
+		// of them keep the whole run busy
+		if ("largest".equals(getOrDefault("queueOrder", "listing"))) {
+			log.info("Queuing largest files first");
+			Collections.sort(objects, new Comparator<S3Object>() {
+				@Override
+				public int compare(S3Object o1, S3Object o2) {
+					return Long.compare(o2.getContentLength(),
+							o1.getContentLength());
+				}
+			});
+		}
+
+		long globalQueued = 0;
+		try {
+			// the queue of the configured backend, the workers read from it
+			List<String> bodies = new ArrayList<String>();
+			for (S3Object object : objects) {
+				// the size lets the master estimate how long the task takes
+				bodies.add(Job.body(object.getKey(), object.getContentLength()));
+				if (bodies.size() >= batchSize) {
+					getJobQueue().send(bodies);
+					globalQueued += bodies.size();
+					bodies = new ArrayList<String>();
+				}
+			}
+			// send the rest
+			if (bodies.size() > 0) {
+				getJobQueue().send(bodies);
+				globalQueued += bodies.size();
+			}
+		} catch (Exception e) {
+			log.warn("Failed to queue objects in bucket " + dataBucket, e);
+		}
 		log.info("Queued " + globalQueued + " objects for all given prefixes.");
 	}
 
@@ -1403,13 +1482,36 @@ public class Master extends ProcessingNode {
 
 		File failureStatFile = new File(destinationDirectory + File.separator
 				+ "failed.csv.gz");
-		domainToCSV(getOrCry("sdberrordomain"), failureStatFile);
-
 		File dataStatFile = new File(destinationDirectory + File.separator
 				+ "data.csv.gz");
+		if ("local".equals(getOrDefault("statBackend", "sdb"))) {
+			try {
+				getLocalStats(getOrCry("sdberrordomain")).exportCSV(
+						failureStatFile);
+				LocalStatHandler data = getLocalStats(getOrCry("sdbdatadomain"));
+				data.exportCSV(dataStatFile);
+				for (Map.Entry<String, LocalStatHandler.Aggregate> e : data
+						.aggregate().entrySet()) {
+					log.info(e.getKey() + ": " + e.getValue());
+				}
+			} catch (IOException e) {
+				log.warn("Unable to export local stats", e);
+			}
+			return;
+		}
+		domainToCSV(getOrCry("sdberrordomain"), failureStatFile);
 		domainToCSV(getOrCry("sdbdatadomain"), dataStatFile);
 	}
 
+	/**
+	 * Returns the local stats of a domain, if they are stored locally instead
+	 * of SimpleDB (configuration entry "statBackend" is "local"). Can be used
+	 * to query and aggregate the stats of the workers.
+	 */
+	public LocalStatHandler getLocalStats(String domain) throws IOException {
+		return LocalStatHandler.open(new File(getOrCry("localStatDir"), domain));
+	}
+
 	public void shutdownInstances() {
 		AmazonEC2 ec2 = new AmazonEC2Client(getAwsCredentials());
 		ec2.setEndpoint(getOrCry("ec2endpoint"));
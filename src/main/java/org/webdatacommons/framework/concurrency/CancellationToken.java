@@ -0,0 +1,114 @@
+package org.webdatacommons.framework.concurrency;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation state of the task of a worker thread, see {@link Watchdog}.
+ * Processors get the token of their thread with {@link #current()} and call
+ * {@link #checkCancelled()} between two records, so a task which ran out of
+ * time stops at the next record even if the parsing code ignored the
+ * interrupt. Processors also announce the record they work on with
+ * {@link #beginRecord(String)}, which lets the watchdog report records
+ * running longer than their deadline.
+ *
+ */
+public class CancellationToken {
+
+	private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<CancellationToken>();
+
+	// token of threads without a task, it is never cancelled
+	private static final CancellationToken NONE = new CancellationToken(null);
+
+	private Thread thread;
+	private volatile String reason = null;
+	// the record in progress and the time it was started, in nanoseconds
+	private volatile String record = null;
+	private volatile long recordStart = 0;
+	private volatile boolean recordReported = false;
+
+	CancellationToken(Thread thread) {
+		this.thread = thread;
+	}
+
+	/**
+	 * Returns the token of the task of the current thread, or a token which
+	 * is never cancelled if the thread does not run a task.
+	 */
+	public static CancellationToken current() {
+		CancellationToken token = CURRENT.get();
+		return token == null ? NONE : token;
+	}
+
+	static void bind(CancellationToken token) {
+		if (token == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(token);
+		}
+	}
+
+	Thread getThread() {
+		return thread;
+	}
+
+	public void cancel(String reason) {
+		if (this != NONE && this.reason == null) {
+			this.reason = reason;
+		}
+	}
+
+	public boolean isCancelled() {
+		return reason != null;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             if the task was cancelled
+	 */
+	public void checkCancelled() {
+		if (reason != null) {
+			throw new CancellationException(reason);
+		}
+	}
+
+	/**
+	 * Marks the start of a record, e.g. with its URL.
+	 */
+	public void beginRecord(String description) {
+		if (this == NONE) {
+			return;
+		}
+		recordStart = System.nanoTime();
+		recordReported = false;
+		record = description;
+	}
+
+	public void endRecord() {
+		record = null;
+	}
+
+	String getRecord() {
+		return record;
+	}
+
+	long getRecordStart() {
+		return recordStart;
+	}
+
+	/**
+	 * Returns true only for the first call per record, so an overdue record
+	 * is reported once.
+	 */
+	boolean reportRecord() {
+		if (recordReported) {
+			return false;
+		}
+		recordReported = true;
+		return true;
+	}
+
+}
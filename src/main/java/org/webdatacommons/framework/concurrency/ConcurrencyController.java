@@ -0,0 +1,132 @@
+package org.webdatacommons.framework.concurrency;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.concurrency.ResourceSampler.Sample;
+
+/**
+ * Limits the number of worker threads processing a task at the same time,
+ * and adapts the limit to the load of the machine. The thread guard starts
+ * "maxThreads" worker threads, and each of them takes a permit with
+ * {@link #acquire()} before it claims a task and gives it back with
+ * {@link #release()} when the task is done. Lowering the limit does not stop
+ * running tasks, the threads wait for a permit before their next task.
+ *
+ * Every interval the load is sampled with a {@link ResourceSampler}:
+ * <ul>
+ * <li>memory pressure (heap after collection or time spent in garbage
+ * collection too high) lowers the limit by a quarter, before the heap runs
+ * out</li>
+ * <li>too much I/O wait lowers the limit by one</li>
+ * <li>idle CPUs while all permits are taken raise the limit by one</li>
+ * </ul>
+ * The limit always stays between "minThreads" and "maxThreads".
+ *
+ */
+public class ConcurrencyController {
+
+	private static Logger log = Logger.getLogger(ConcurrencyController.class);
+
+	// share of the heap still used after a collection
+	static final double HEAP_HIGH = 0.85;
+	// share of time spent in garbage collection
+	static final double GC_HIGH = 0.1;
+	// share of CPU time waiting for the disks
+	static final double IOWAIT_HIGH = 0.25;
+	// CPU utilisation below which another thread is allowed
+	static final double CPU_TARGET = 0.8;
+
+	private int minThreads;
+	private int maxThreads;
+	private int limit;
+	private int active = 0;
+	private Timer timer = null;
+
+	public ConcurrencyController(int minThreads, int maxThreads, int limit) {
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.limit = clamp(limit);
+	}
+
+	/**
+	 * Waits until the number of active threads is below the limit and takes
+	 * a permit.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (active >= limit) {
+			wait();
+		}
+		active++;
+	}
+
+	public synchronized void release() {
+		active--;
+		notifyAll();
+	}
+
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getActive() {
+		return active;
+	}
+
+	public synchronized void setLimit(int newLimit) {
+		newLimit = clamp(newLimit);
+		if (newLimit != limit) {
+			log.info("Changing number of worker threads from " + limit
+					+ " to " + newLimit);
+			limit = newLimit;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Adapts the limit to a sample of the load.
+	 */
+	public synchronized void adjust(Sample sample) {
+		log.debug(sample + ", " + active + " of " + limit + " threads active");
+		if (sample.getHeap() > HEAP_HIGH || sample.getGc() > GC_HIGH) {
+			setLimit(limit - Math.max(1, limit / 4));
+		} else if (sample.getIoWait() > IOWAIT_HIGH) {
+			setLimit(limit - 1);
+		} else if (sample.getCpu() < CPU_TARGET && active >= limit) {
+			setLimit(limit + 1);
+		}
+	}
+
+	/**
+	 * Samples the load and adapts the limit every given number of seconds in
+	 * a background thread. Does nothing if the limit cannot change.
+	 */
+	public synchronized void start(int intervalSeconds) {
+		if (timer != null || minThreads == maxThreads) {
+			return;
+		}
+		final ResourceSampler sampler = new ResourceSampler();
+		long period = Math.max(1, intervalSeconds) * 1000L;
+		timer = new Timer("concurrency", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				adjust(sampler.sample());
+			}
+		}, period, period);
+	}
+
+	private int clamp(int n) {
+		return Math.max(minThreads, Math.min(maxThreads, n));
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.webdatacommons.framework.concurrency;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.metrics.Metrics;
+
+/**
+ * Time budget for the processing of one record. The work is run on a helper
+ * thread, and the calling thread waits at most the budget for it. If the
+ * budget is exceeded, the helper thread is interrupted and the record is
+ * abandoned: the caller gets a {@link TimeoutException} and continues with
+ * the next record. Parsers ignoring the interrupt keep their helper thread
+ * busy until they finish, so the work must not share state with the caller
+ * which is used again after a timeout.
+ *
+ * The helper threads are shared by all budgets of the JVM, idle helpers are
+ * reused. Their number is bounded, see {@link #setLimits(int, int)}. Once
+ * too many abandoned records are still running, new records are skipped
+ * with a {@link RejectedExecutionException} instead of starting more
+ * threads, until some of the abandoned ones finished.
+ *
+ */
+public class RecordBudget {
+
+	private static Logger log = Logger.getLogger(RecordBudget.class);
+
+	private static final AtomicInteger helperSerial = new AtomicInteger();
+
+	// limits until setLimits() is called
+	private static final int DEFAULT_MAX_HELPERS = 64;
+	private static final int DEFAULT_MAX_LINGERING = 32;
+
+	private static ThreadPoolExecutor helpers = new ThreadPoolExecutor(0,
+			DEFAULT_MAX_HELPERS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "record-"
+							+ helperSerial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// abandoned records which are still running on their helper
+	private static final AtomicInteger lingering = new AtomicInteger();
+	private static volatile int maxLingering = DEFAULT_MAX_LINGERING;
+
+	// states of a record
+	private static final int NEW = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+	private static final int ABANDONED = 3;
+
+	private long budgetMillis;
+
+	/**
+	 * @param budgetMillis
+	 *            time a record may take, 0 to run the work directly on the
+	 *            calling thread without a limit
+	 */
+	public RecordBudget(long budgetMillis) {
+		this.budgetMillis = budgetMillis;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+
+	/**
+	 * Sets the limits of all budgets of the JVM.
+	 *
+	 * @param maxHelpers
+	 *            maximum number of helper threads, records are skipped if all
+	 *            of them are busy
+	 * @param maxAbandoned
+	 *            maximum number of abandoned records still running, further
+	 *            records are skipped until one of them finished
+	 */
+	public static void setLimits(int maxHelpers, int maxAbandoned) {
+		synchronized (RecordBudget.class) {
+			helpers.setMaximumPoolSize(Math.max(1, maxHelpers));
+			maxLingering = Math.max(1, maxAbandoned);
+		}
+	}
+
+	/**
+	 * @return number of abandoned records which are still running
+	 */
+	public static int getAbandonedRunning() {
+		return lingering.get();
+	}
+
+	/**
+	 * Runs the work within the budget and returns its result.
+	 *
+	 * @throws TimeoutException
+	 *             if the budget was exceeded and the record was abandoned
+	 * @throws RejectedExecutionException
+	 *             if the record was skipped, because too many abandoned
+	 *             records are still running
+	 */
+	public <T> T call(final Callable<T> work) throws Exception {
+		if (budgetMillis <= 0) {
+			return work.call();
+		}
+		if (lingering.get() >= maxLingering) {
+			Metrics.counter("records.skipped").inc();
+			throw new RejectedExecutionException(lingering.get()
+					+ " abandoned records are still running");
+		}
+		final AtomicInteger state = new AtomicInteger(NEW);
+		Future<T> future;
+		try {
+			future = helpers.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					if (!state.compareAndSet(NEW, RUNNING)) {
+						// abandoned before it started
+						return null;
+					}
+					try {
+						return work.call();
+					} finally {
+						if (!state.compareAndSet(RUNNING, DONE)) {
+							lingering.decrementAndGet();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Metrics.counter("records.skipped").inc();
+			throw e;
+		}
+		try {
+			return future.get(budgetMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			abandon(future, state);
+			Metrics.counter("records.abandoned").inc();
+			log.debug("Abandoned record after " + budgetMillis + " ms");
+			throw e;
+		} catch (InterruptedException e) {
+			// the task of the caller was cancelled
+			abandon(future, state);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// interrupts the record, it lingers if it ignores the interrupt
+	private static void abandon(Future<?> future, AtomicInteger state) {
+		if (state.compareAndSet(RUNNING, ABANDONED)) {
+			lingering.incrementAndGet();
+		} else {
+			state.compareAndSet(NEW, ABANDONED);
+		}
+		future.cancel(true);
+	}
+
+}
@@ -0,0 +1,167 @@
+package org.webdatacommons.framework.concurrency;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures the load of the machine and the JVM since the previous sample:
+ * the CPU utilisation, the share of time spent in garbage collection, the
+ * heap usage after the last collection and the share of CPU time waiting for
+ * I/O. Values which cannot be measured on the platform are NaN.
+ *
+ */
+public class ResourceSampler {
+
+	private static Logger log = Logger.getLogger(ResourceSampler.class);
+
+	private static final File PROC_STAT = new File("/proc/stat");
+
+	/**
+	 * The values of one sample, all of them between 0 and 1 or NaN.
+	 */
+	public static class Sample {
+		private double cpu;
+		private double gc;
+		private double heap;
+		private double ioWait;
+
+		public Sample(double cpu, double gc, double heap, double ioWait) {
+			this.cpu = cpu;
+			this.gc = gc;
+			this.heap = heap;
+			this.ioWait = ioWait;
+		}
+
+		public double getCpu() {
+			return cpu;
+		}
+
+		public double getGc() {
+			return gc;
+		}
+
+		public double getHeap() {
+			return heap;
+		}
+
+		public double getIoWait() {
+			return ioWait;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("cpu=%.2f gc=%.2f heap=%.2f iowait=%.2f",
+					cpu, gc, heap, ioWait);
+		}
+	}
+
+	private long lastNanos = System.nanoTime();
+	private long lastGcMillis = gcMillis();
+	// iowait and total jiffies of the previous sample
+	private long[] lastCpuTimes = readCpuTimes();
+
+	public synchronized Sample sample() {
+		long nanos = System.nanoTime();
+		long gcMillis = gcMillis();
+		double gc = (gcMillis - lastGcMillis) * 1e6
+				/ Math.max(1, nanos - lastNanos);
+		lastNanos = nanos;
+		lastGcMillis = gcMillis;
+
+		double ioWait = Double.NaN;
+		long[] cpuTimes = readCpuTimes();
+		if (cpuTimes != null && lastCpuTimes != null
+				&& cpuTimes[1] > lastCpuTimes[1]) {
+			ioWait = (cpuTimes[0] - lastCpuTimes[0]) * 1.0
+					/ (cpuTimes[1] - lastCpuTimes[1]);
+		}
+		lastCpuTimes = cpuTimes;
+
+		return new Sample(cpuLoad(), Math.min(1, gc), heapUsage(), ioWait);
+	}
+
+	private static double cpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double load = -1;
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			load = ((com.sun.management.OperatingSystemMXBean) os)
+					.getSystemCpuLoad();
+		}
+		if (load < 0 && os.getSystemLoadAverage() >= 0) {
+			load = Math.min(1,
+					os.getSystemLoadAverage() / os.getAvailableProcessors());
+		}
+		return load < 0 ? Double.NaN : load;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * Usage of the largest heap pool (the old generation) after its last
+	 * collection, which is what stays alive. The current usage of the whole
+	 * heap if no collection happened yet.
+	 */
+	private static double heapUsage() {
+		MemoryUsage largest = null;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (pool.getType() == MemoryType.HEAP && usage != null
+					&& usage.getMax() > 0
+					&& (largest == null || usage.getMax() > largest.getMax())) {
+				largest = usage;
+			}
+		}
+		if (largest == null || largest.getUsed() == 0) {
+			largest = ManagementFactory.getMemoryMXBean()
+					.getHeapMemoryUsage();
+		}
+		long max = largest.getMax() > 0 ? largest.getMax() : largest
+				.getCommitted();
+		return max > 0 ? largest.getUsed() * 1.0 / max : Double.NaN;
+	}
+
+	/**
+	 * Reads the iowait and the total jiffies of all CPUs from /proc/stat, or
+	 * returns null if it is not available.
+	 */
+	private static long[] readCpuTimes() {
+		if (!PROC_STAT.canRead()) {
+			return null;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(PROC_STAT));
+			try {
+				// cpu user nice system idle iowait irq softirq steal ...
+				String[] fields = reader.readLine().trim().split("\\s+");
+				long total = 0;
+				for (int i = 1; i < Math.min(fields.length, 9); i++) {
+					total += Long.parseLong(fields[i]);
+				}
+				return new long[] { Long.parseLong(fields[5]), total };
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			log.debug("Unable to read " + PROC_STAT, e);
+			return null;
+		}
+	}
+
+}
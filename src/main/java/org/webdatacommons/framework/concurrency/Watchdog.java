@@ -0,0 +1,141 @@
+package org.webdatacommons.framework.concurrency;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.metrics.Metrics;
+
+/**
+ * Watches the deadlines of the tasks of all worker threads with one shared
+ * scheduler thread, instead of a timer thread per task. A task which runs out
+ * of time is cancelled through its {@link CancellationToken}, and its thread
+ * is interrupted. Once a second the records in progress are checked, and
+ * records running longer than the record time limit are reported.
+ *
+ * Usage in a worker thread:
+ *
+ * <pre>
+ * CancellationToken token = Watchdog.startTask(timeLimit, recordTimeLimit);
+ * try {
+ * 	... process the task ...
+ * } finally {
+ * 	Watchdog.finishTask(token);
+ * }
+ * </pre>
+ *
+ */
+public class Watchdog {
+
+	private static Logger log = Logger.getLogger(Watchdog.class);
+
+	private static ScheduledThreadPoolExecutor scheduler = null;
+	// tokens of the running tasks, with their record time limit in nanos
+	private static ConcurrentHashMap<CancellationToken, Long> recordLimits = new ConcurrentHashMap<CancellationToken, Long>();
+	// the deadlines of the running tasks
+	private static ConcurrentHashMap<CancellationToken, ScheduledFuture<?>> deadlines = new ConcurrentHashMap<CancellationToken, ScheduledFuture<?>>();
+
+	private Watchdog() {
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "watchdog");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// deadlines of finished tasks are removed right away
+			scheduler.setRemoveOnCancelPolicy(true);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkRecords();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Starts watching the task of the current thread.
+	 *
+	 * @param timeLimitMillis
+	 *            time after which the task is cancelled
+	 * @param recordTimeLimitMillis
+	 *            time after which a record is reported, 0 for no limit
+	 * @return the token of the task, also returned by
+	 *         {@link CancellationToken#current()}
+	 */
+	public static CancellationToken startTask(long timeLimitMillis,
+			long recordTimeLimitMillis) {
+		final CancellationToken token = new CancellationToken(
+				Thread.currentThread());
+		CancellationToken.bind(token);
+		if (recordTimeLimitMillis > 0) {
+			recordLimits.put(token,
+					TimeUnit.MILLISECONDS.toNanos(recordTimeLimitMillis));
+		}
+		deadlines.put(token, getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				expire(token);
+			}
+		}, timeLimitMillis, TimeUnit.MILLISECONDS));
+		return token;
+	}
+
+	/**
+	 * Stops watching the task, must be called by the thread of the task.
+	 */
+	public static void finishTask(CancellationToken token) {
+		ScheduledFuture<?> deadline;
+		synchronized (token) {
+			deadline = deadlines.remove(token);
+			recordLimits.remove(token);
+		}
+		if (deadline != null) {
+			deadline.cancel(false);
+		}
+		CancellationToken.bind(null);
+	}
+
+	private static void expire(CancellationToken token) {
+		synchronized (token) {
+			// the task may have finished in the meantime
+			if (deadlines.remove(token) == null) {
+				return;
+			}
+			log.warn("Cancelling task of thread "
+					+ token.getThread().getName() + ", timeout expired.");
+			Metrics.counter("tasks.cancelled").inc();
+			token.cancel("Task time limit expired");
+			token.getThread().interrupt();
+		}
+	}
+
+	private static void checkRecords() {
+		long now = System.nanoTime();
+		for (Map.Entry<CancellationToken, Long> e : recordLimits
+				.entrySet()) {
+			CancellationToken token = e.getKey();
+			String record = token.getRecord();
+			if (record != null && now - token.getRecordStart() > e.getValue()
+					&& token.reportRecord()) {
+				log.warn("Thread " + token.getThread().getName()
+						+ " is working on " + record + " for more than "
+						+ TimeUnit.NANOSECONDS.toSeconds(e.getValue())
+						+ " seconds");
+				Metrics.counter("records.overdue").inc();
+			}
+		}
+	}
+
+}
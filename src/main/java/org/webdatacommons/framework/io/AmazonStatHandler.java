@@ -25,7 +25,9 @@ public class AmazonStatHandler implements StatHandler {
 	private static Logger log = Logger.getLogger(AmazonStatHandler.class);
 
 	private AmazonSimpleDBClient client;
-	private static final int CACHE_SIZE = 24;
+	// SimpleDB accepts at most 25 items with one batch put
+	public static final int BATCH_LIMIT = 25;
+	private static final int CACHE_SIZE = BATCH_LIMIT - 1;
 	private static final int MAX_TRIES = 20;
 	private String domain;
 
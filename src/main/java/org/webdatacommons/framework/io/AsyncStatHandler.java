@@ -0,0 +1,176 @@
+package org.webdatacommons.framework.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decorator of a {@link StatHandler}, which persists the stats in a
+ * background thread. {@link #addStats(String, Map)} only puts the stats into
+ * a bounded queue, the background thread takes them out in batches of up to
+ * "batchSize" entries, hands them to the wrapped handler and flushes it. If
+ * the queue is full, the stats are either waited for (BLOCK) or dropped
+ * (DROP). The wrapped handler is only used by the background thread, so it
+ * does not have to be thread-safe, while the decorator can be shared by all
+ * threads.
+ *
+ */
+public class AsyncStatHandler implements StatHandler {
+
+	private static Logger log = Logger.getLogger(AsyncStatHandler.class);
+
+	/**
+	 * What to do with new stats if the queue is full.
+	 */
+	public enum OverflowPolicy {
+		// wait until there is space in the queue
+		BLOCK,
+		// drop the stats and log a warning
+		DROP
+	}
+
+	private static class Entry {
+		private String key;
+		private Map<String, String> data;
+
+		private Entry(String key, Map<String, String> data) {
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	private StatHandler handler;
+	private int batchSize;
+	private OverflowPolicy policy;
+	private BlockingQueue<Entry> queue;
+	private Thread flusher;
+	private volatile boolean closed = false;
+	// number of entries added, and number of entries handed to the handler
+	private AtomicLong added = new AtomicLong();
+	private AtomicLong written = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	public AsyncStatHandler(StatHandler handler, int capacity, int batchSize,
+			OverflowPolicy policy) {
+		this.handler = handler;
+		this.batchSize = batchSize;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<Entry>(capacity);
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "stat-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		// write the remaining stats when the JVM shuts down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				close(10000);
+			}
+		});
+	}
+
+	@Override
+	public void addStats(String key, Map<String, String> data) {
+		if (closed) {
+			throw new IllegalStateException("Stat handler is closed");
+		}
+		Entry entry = new Entry(key, data);
+		if (policy == OverflowPolicy.DROP) {
+			if (!queue.offer(entry)) {
+				long n = dropped.incrementAndGet();
+				log.warn("Stat queue is full, dropped stats for " + key + " ("
+						+ n + " dropped so far)");
+				return;
+			}
+		} else {
+			try {
+				queue.put(entry);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted, dropped stats for " + key);
+				return;
+			}
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * Does not wait, the stats are written by the background thread as soon
+	 * as possible. Use {@link #close(long)} to wait for them.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Number of stats which were dropped because the queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of stats waiting to be handed to the wrapped handler.
+	 */
+	public long getPending() {
+		return added.get() - written.get();
+	}
+
+	/**
+	 * Stops accepting stats and waits up to the given time for the queued
+	 * stats to be written.
+	 *
+	 * @return true if all stats were written
+	 */
+	public boolean close(long timeoutMillis) {
+		closed = true;
+		try {
+			flusher.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return getPending() == 0;
+	}
+
+	private void flushLoop() {
+		List<Entry> batch = new ArrayList<Entry>(batchSize);
+		while (true) {
+			try {
+				Entry first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					if (closed) {
+						return;
+					}
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				try {
+					for (Entry e : batch) {
+						handler.addStats(e.key, e.data);
+					}
+					handler.flush();
+				} catch (RuntimeException e) {
+					log.warn("Unable to write " + batch.size() + " stats", e);
+				}
+				written.addAndGet(batch.size());
+				batch.clear();
+			} catch (InterruptedException e) {
+				if (closed) {
+					return;
+				}
+			}
+		}
+	}
+
+}
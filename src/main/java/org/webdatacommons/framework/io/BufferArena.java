@@ -0,0 +1,82 @@
+package org.webdatacommons.framework.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffer of a thread for reading record payloads, so the payload of every
+ * record does not need a new array. The buffer grows up to the largest
+ * payload read so far, payloads are limited to a maximum size.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ByteSlice payload = BufferArena.get().read(in, maxBytes);
+ * </pre>
+ *
+ * The slice is only valid until the thread reads the next payload.
+ *
+ */
+public class BufferArena {
+
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<BufferArena> ARENAS = new ThreadLocal<BufferArena>() {
+		@Override
+		protected BufferArena initialValue() {
+			return new BufferArena();
+		}
+	};
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+
+	/**
+	 * Returns the arena of the current thread.
+	 */
+	public static BufferArena get() {
+		return ARENAS.get();
+	}
+
+	/**
+	 * Reads the stream into the buffer, up to the given number of bytes. If
+	 * the stream has more bytes, the slice is marked as truncated and the
+	 * rest of the stream is not read.
+	 */
+	public ByteSlice read(InputStream in, int maxBytes) throws IOException {
+		int length = 0;
+		while (true) {
+			if (length == buffer.length) {
+				if (length >= maxBytes) {
+					break;
+				}
+				grow(Math.min(maxBytes, Math.max(INITIAL_SIZE,
+						buffer.length * 2)));
+			}
+			int n = in.read(buffer, length,
+					Math.min(buffer.length, maxBytes) - length);
+			if (n < 0) {
+				return new ByteSlice(buffer, 0, length, false);
+			}
+			length += n;
+			if (length >= maxBytes) {
+				break;
+			}
+		}
+		// the limit is reached, check if there is more
+		return new ByteSlice(buffer, 0, length, in.read() >= 0);
+	}
+
+	private void grow(int size) {
+		byte[] larger = new byte[size];
+		System.arraycopy(buffer, 0, larger, 0, buffer.length);
+		buffer = larger;
+	}
+
+	/**
+	 * Current size of the buffer.
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.webdatacommons.framework.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A range of a byte array, e.g. the payload of a record in the buffer of a
+ * {@link BufferArena}. The bytes are not copied, so a slice of an arena is
+ * only valid until the arena is used again, use {@link #copy()} to keep it.
+ *
+ */
+public class ByteSlice {
+
+	private byte[] array;
+	private int offset;
+	private int length;
+	// true if the source had more bytes than the slice holds
+	private boolean truncated;
+
+	public ByteSlice(byte[] array, int offset, int length, boolean truncated) {
+		this.array = array;
+		this.offset = offset;
+		this.length = length;
+		this.truncated = truncated;
+	}
+
+	public static ByteSlice wrap(byte[] array) {
+		return new ByteSlice(array, 0, array.length, false);
+	}
+
+	public byte[] getArray() {
+		return array;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public InputStream openStream() {
+		return new ByteArrayInputStream(array, offset, length);
+	}
+
+	public String toString(Charset charset) {
+		return new String(array, offset, length, charset);
+	}
+
+	/**
+	 * Returns a slice with its own copy of the bytes.
+	 */
+	public ByteSlice copy() {
+		return new ByteSlice(Arrays.copyOfRange(array, offset, offset
+				+ length), 0, length, truncated);
+	}
+
+}
@@ -0,0 +1,239 @@
+package org.webdatacommons.framework.io;
+
+import static org.fusesource.leveldbjni.JniDBFactory.asString;
+import static org.fusesource.leveldbjni.JniDBFactory.bytes;
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * {@link StatHandler} storing the stats in a local LevelDB database, one
+ * database per domain. Replaces SimpleDB if the whole processing runs on one
+ * machine. Besides storing stats, the handler can be queried by the
+ * {@link org.webdatacommons.framework.cli.Master}: all entries can be visited,
+ * the numeric attributes aggregated and everything exported to CSV.
+ *
+ * A database can only be opened once per JVM, so there is one shared handler
+ * per directory, see {@link #open(File)}.
+ *
+ */
+public class LocalStatHandler implements StatHandler {
+
+	private static Logger log = Logger.getLogger(LocalStatHandler.class);
+
+	private static final Type MAP_TYPE = new TypeToken<Map<String, String>>() {
+	}.getType();
+
+	private static Map<File, LocalStatHandler> handlers = new HashMap<File, LocalStatHandler>();
+
+	/**
+	 * Called for every entry of the store.
+	 */
+	public interface Visitor {
+		public void visit(String key, Map<String, String> data);
+	}
+
+	/**
+	 * Count, sum, minimum and maximum of the numeric values of an attribute.
+	 */
+	public static class Aggregate {
+		private long count = 0;
+		private double sum = 0;
+		private double min = Double.MAX_VALUE;
+		private double max = -Double.MAX_VALUE;
+
+		private void add(double value) {
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " sum=" + sum + " min=" + min + " max="
+					+ max + " mean=" + getMean();
+		}
+	}
+
+	private File directory;
+	private DB db;
+	private Gson gson = new Gson();
+
+	private LocalStatHandler(File directory) throws IOException {
+		this.directory = directory;
+		Options options = new Options();
+		options.createIfMissing(true);
+		directory.mkdirs();
+		db = factory.open(directory, options);
+	}
+
+	/**
+	 * Returns the handler for the database in the given directory, the
+	 * database is created if it does not exist.
+	 */
+	public static LocalStatHandler open(File directory) throws IOException {
+		synchronized (handlers) {
+			File dir = directory.getAbsoluteFile();
+			LocalStatHandler handler = handlers.get(dir);
+			if (handler == null) {
+				handler = new LocalStatHandler(dir);
+				handlers.put(dir, handler);
+			}
+			return handler;
+		}
+	}
+
+	@Override
+	public synchronized void addStats(String key, Map<String, String> data) {
+		db.put(bytes(key), bytes(gson.toJson(data)));
+	}
+
+	/**
+	 * Does nothing, LevelDB persists every entry in its log when it is added.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	public synchronized Map<String, String> get(String key) {
+		byte[] value = db.get(bytes(key));
+		if (value == null) {
+			return null;
+		}
+		return gson.fromJson(asString(value), MAP_TYPE);
+	}
+
+	/**
+	 * Visits all entries in the order of their keys.
+	 */
+	public void visit(Visitor visitor) throws IOException {
+		DBIterator it = db.iterator();
+		try {
+			for (it.seekToFirst(); it.hasNext();) {
+				Map.Entry<byte[], byte[]> entry = it.next();
+				Map<String, String> data = gson.fromJson(
+						asString(entry.getValue()), MAP_TYPE);
+				visitor.visit(asString(entry.getKey()), data);
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	public long count() throws IOException {
+		final long[] count = new long[1];
+		visit(new Visitor() {
+			@Override
+			public void visit(String key, Map<String, String> data) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Aggregates all attributes with numeric values. Values which are not
+	 * numeric are ignored.
+	 */
+	public Map<String, Aggregate> aggregate() throws IOException {
+		final Map<String, Aggregate> aggregates = new TreeMap<String, Aggregate>();
+		visit(new Visitor() {
+			@Override
+			public void visit(String key, Map<String, String> data) {
+				for (Map.Entry<String, String> e : data.entrySet()) {
+					double value;
+					try {
+						value = Double.parseDouble(e.getValue());
+					} catch (NumberFormatException | NullPointerException ex) {
+						continue;
+					}
+					Aggregate aggregate = aggregates.get(e.getKey());
+					if (aggregate == null) {
+						aggregate = new Aggregate();
+						aggregates.put(e.getKey(), aggregate);
+					}
+					aggregate.add(value);
+				}
+			}
+		});
+		return aggregates;
+	}
+
+	/**
+	 * Writes all entries to a gzipped CSV file, in the same format as the
+	 * export from SimpleDB: the key in the column "_key" and one column per
+	 * attribute, empty if an entry does not have the attribute.
+	 */
+	public void exportCSV(final File csvFile) throws IOException {
+		final TreeSet<String> attributes = new TreeSet<String>();
+		visit(new Visitor() {
+			@Override
+			public void visit(String key, Map<String, String> data) {
+				attributes.addAll(data.keySet());
+			}
+		});
+		final long[] total = new long[1];
+		visit(new Visitor() {
+			@Override
+			public void visit(String key, Map<String, String> data) {
+				Map<String, Object> csvEntry = new HashMap<String, Object>();
+				csvEntry.put("_key", key);
+				for (String attr : attributes) {
+					csvEntry.put(attr, "");
+				}
+				csvEntry.putAll(data);
+				CSVExport.writeToFile(csvEntry, csvFile);
+				total[0]++;
+			}
+		});
+		CSVExport.closeWriter(csvFile);
+		log.info("Exported " + total[0] + " entries from " + directory
+				+ " to " + csvFile);
+	}
+
+	/**
+	 * Closes the database, the handler cannot be used anymore.
+	 */
+	public void close() throws IOException {
+		synchronized (handlers) {
+			handlers.remove(directory);
+			db.close();
+		}
+	}
+
+}
@@ -0,0 +1,422 @@
+package org.webdatacommons.framework.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.webdatacommons.framework.metrics.Metrics;
+
+/**
+ * Decompresses a gzip file which consists of many members, like the WARC and
+ * WAT files of the Common Crawl (one member per record), on several threads.
+ * The compressed input is cut into segments of about "blockSize" bytes at the
+ * start of a gzip header, and up to "threads" segments are inflated at the
+ * same time while the reader consumes the previous ones in order.
+ *
+ * A cut may fall at bytes inside of a member which only look like a gzip
+ * header. Such a segment ends with an incomplete member, which is inflated
+ * again together with the following segments, so the output is always the
+ * same as of a {@link java.util.zip.GZIPInputStream}. Files with a single
+ * member are inflated in one piece. A corrupt member, i.e. one with invalid
+ * data or a wrong checksum, is not merged: the members before it are read,
+ * then the error is thrown, as by {@link java.util.zip.GZIPInputStream}.
+ * Incomplete members are merged up to a size of "maxMemberSize" compressed
+ * bytes.
+ *
+ * The inflating runs on helper threads shared by all streams of the JVM.
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	// members are merged up to this size, or 64 blocks if they are larger
+	private static final int MIN_MAX_MEMBER_SIZE = 64 * 1024 * 1024;
+
+	// header flags, see RFC 1952
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final int FRESERVED = 0xe0;
+
+	private static final AtomicInteger helperSerial = new AtomicInteger();
+
+	private static ExecutorService helpers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "inflate-"
+							+ helperSerial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static class Segment {
+		private byte[] compressed;
+		// the segment ends with the input
+		private boolean last;
+		private Future<Inflated> inflated;
+	}
+
+	/**
+	 * The members of some compressed bytes which were inflated, up to the
+	 * first one which failed.
+	 */
+	static class Inflated {
+		// the inflated members
+		byte[] data;
+		// compressed bytes of the inflated members
+		int consumed;
+		// why the member after them failed, null if all were inflated
+		IOException error;
+	}
+
+	private InputStream in;
+	private int threads;
+	private int blockSize;
+	private int maxMemberSize;
+
+	// compressed bytes which are not cut into a segment yet, they start with
+	// a gzip header
+	private byte[] window;
+	private int windowLength = 0;
+	private boolean eof = false;
+
+	private ArrayDeque<Segment> pending = new ArrayDeque<Segment>();
+	private byte[] current = new byte[0];
+	private int position = 0;
+	// thrown once the members before the failed one are read
+	private IOException failure = null;
+
+	public ParallelGzipInputStream(InputStream in, int threads) {
+		this(in, threads, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param threads
+	 *            number of segments inflated at the same time
+	 * @param blockSize
+	 *            minimum size of a segment of compressed bytes
+	 */
+	public ParallelGzipInputStream(InputStream in, int threads, int blockSize) {
+		this.in = in;
+		this.threads = Math.max(1, threads);
+		this.blockSize = Math.max(1, blockSize);
+		this.maxMemberSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(
+				MIN_MAX_MEMBER_SIZE, 64L * this.blockSize));
+		this.window = new byte[this.blockSize * 2];
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (position >= current.length) {
+			if (!nextBlock()) {
+				return -1;
+			}
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (position >= current.length) {
+			if (!nextBlock()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Segment segment : pending) {
+			segment.inflated.cancel(true);
+		}
+		pending.clear();
+		current = new byte[0];
+		position = 0;
+		in.close();
+	}
+
+	// makes the next inflated segment current, false at the end of the input
+	private boolean nextBlock() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		while (pending.size() < threads) {
+			Segment segment = cut();
+			if (segment == null) {
+				break;
+			}
+			submit(segment);
+		}
+		Segment segment = pending.poll();
+		if (segment == null) {
+			return false;
+		}
+		Inflated inflated;
+		try {
+			inflated = segment.inflated.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to inflate", e.getCause());
+		}
+		if (inflated.error instanceof EOFException && !segment.last) {
+			inflated = inflateMerged(segment, inflated);
+		}
+		// the members before a failure are read first
+		failure = inflated.error;
+		current = inflated.data;
+		position = 0;
+		return true;
+	}
+
+	private void submit(final Segment segment) {
+		segment.inflated = helpers.submit(new Callable<Inflated>() {
+			@Override
+			public Inflated call() {
+				return inflate(segment.compressed, segment.last);
+			}
+		});
+		pending.add(segment);
+	}
+
+	/**
+	 * Inflates the incomplete member at the end of a segment together with
+	 * the following segments, until the end of a member is reached. The
+	 * merged bytes at least double each time, so a large member is inflated
+	 * only a few times.
+	 */
+	private Inflated inflateMerged(Segment segment, Inflated inflated)
+			throws IOException {
+		byte[] data = inflated.data;
+		byte[] rest = Arrays.copyOfRange(segment.compressed,
+				inflated.consumed, segment.compressed.length);
+		boolean last = segment.last;
+		while (inflated.error instanceof EOFException && !last) {
+			if (rest.length > maxMemberSize) {
+				inflated.error = new ZipException("Member larger than "
+						+ maxMemberSize + " bytes");
+				break;
+			}
+			int length = Math.max(1, rest.length * 2);
+			while (!last && rest.length < length) {
+				Segment next = pending.poll();
+				if (next == null) {
+					next = cut();
+					if (next == null) {
+						break;
+					}
+				} else {
+					next.inflated.cancel(true);
+				}
+				byte[] joined = Arrays.copyOf(rest, rest.length
+						+ next.compressed.length);
+				System.arraycopy(next.compressed, 0, joined, rest.length,
+						next.compressed.length);
+				rest = joined;
+				last = next.last;
+				Metrics.counter("inflate.merged").inc();
+			}
+			inflated = inflate(rest, last);
+			if (inflated.data.length > 0) {
+				byte[] joined = Arrays.copyOf(data, data.length
+						+ inflated.data.length);
+				System.arraycopy(inflated.data, 0, joined, data.length,
+						inflated.data.length);
+				data = joined;
+			}
+			rest = Arrays.copyOfRange(rest, inflated.consumed, rest.length);
+		}
+		inflated.data = data;
+		return inflated;
+	}
+
+	/**
+	 * Cuts the next segment from the input, at the first gzip header after
+	 * "blockSize" bytes or at the end of the input.
+	 */
+	private Segment cut() throws IOException {
+		fill(blockSize + 4);
+		if (windowLength == 0) {
+			return null;
+		}
+		int scanned = blockSize;
+		int end = -1;
+		while (end < 0) {
+			for (int p = scanned; p + 4 <= windowLength; p++) {
+				if (isHeader(window, p)) {
+					end = p;
+					break;
+				}
+			}
+			if (end < 0) {
+				if (eof) {
+					end = windowLength;
+				} else {
+					scanned = Math.max(scanned, windowLength - 3);
+					fill(windowLength + blockSize);
+				}
+			}
+		}
+		Segment segment = new Segment();
+		segment.compressed = Arrays.copyOf(window, end);
+		windowLength -= end;
+		System.arraycopy(window, end, window, 0, windowLength);
+		segment.last = eof && windowLength == 0;
+		return segment;
+	}
+
+	// reads the input until the window holds "length" bytes or the input ends
+	private void fill(int length) throws IOException {
+		if (window.length < length) {
+			window = Arrays.copyOf(window, Math.max(length, window.length * 2));
+		}
+		while (!eof && windowLength < length) {
+			int n = in.read(window, windowLength, window.length - windowLength);
+			if (n < 0) {
+				eof = true;
+			} else {
+				windowLength += n;
+			}
+		}
+	}
+
+	private static boolean isHeader(byte[] b, int p) {
+		return b[p] == (byte) 0x1f && b[p + 1] == (byte) 0x8b && b[p + 2] == 8
+				&& (b[p + 3] & FRESERVED) == 0;
+	}
+
+	/**
+	 * Inflates the members in the bytes, up to the first one which fails. An
+	 * {@link EOFException} as error means the bytes end inside of a member.
+	 * Bytes after the last member of the input which are no gzip header are
+	 * ignored, as by {@link java.util.zip.GZIPInputStream}.
+	 */
+	static Inflated inflate(byte[] b, boolean last) {
+		byte[] out = new byte[Math.max(1024, b.length * 4)];
+		int outLength = 0;
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		Inflated inflated = new Inflated();
+		int pos = 0;
+		int memberStart = 0;
+		try {
+			while (pos < b.length) {
+				if (pos + 4 > b.length || !isHeader(b, pos)) {
+					if (last && pos > 0) {
+						pos = b.length;
+						break;
+					}
+					if (pos + 4 > b.length && !last) {
+						throw new EOFException("Unexpected end of header at "
+								+ pos);
+					}
+					throw new ZipException("Not in GZIP format at " + pos);
+				}
+				int data = skipHeader(b, pos);
+				inflater.reset();
+				inflater.setInput(b, data, b.length - data);
+				memberStart = outLength;
+				while (!inflater.finished()) {
+					if (outLength == out.length) {
+						out = Arrays.copyOf(out, out.length * 2);
+					}
+					int n = inflater.inflate(out, outLength, out.length
+							- outLength);
+					if (n == 0
+							&& (inflater.needsInput() || inflater
+									.needsDictionary())) {
+						throw new EOFException("Unexpected end of member at "
+								+ pos);
+					}
+					outLength += n;
+				}
+				crc.reset();
+				crc.update(out, memberStart, outLength - memberStart);
+				int trailer = b.length - inflater.getRemaining();
+				if (trailer + 8 > b.length) {
+					throw new EOFException("Unexpected end of member at "
+							+ pos);
+				}
+				if (readInt(b, trailer) != (int) crc.getValue()
+						|| readInt(b, trailer + 4) != outLength - memberStart) {
+					throw new ZipException("Corrupt GZIP trailer at " + trailer);
+				}
+				pos = trailer + 8;
+				memberStart = outLength;
+			}
+		} catch (DataFormatException e) {
+			inflated.error = new ZipException(e.getMessage());
+		} catch (IOException e) {
+			inflated.error = e;
+		} finally {
+			inflater.end();
+		}
+		// only the complete members count
+		inflated.data = Arrays.copyOf(out, inflated.error == null ? outLength
+				: memberStart);
+		inflated.consumed = inflated.error == null ? b.length : pos;
+		return inflated;
+	}
+
+	// returns the offset of the compressed data of the member
+	private static int skipHeader(byte[] b, int pos) throws IOException {
+		int flags = b[pos + 3] & 0xff;
+		int p = pos + 10;
+		if ((flags & FEXTRA) != 0 && p + 2 <= b.length) {
+			p += 2 + ((b[p] & 0xff) | (b[p + 1] & 0xff) << 8);
+		}
+		if ((flags & FNAME) != 0) {
+			while (p < b.length && b[p] != 0) {
+				p++;
+			}
+			p++;
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (p < b.length && b[p] != 0) {
+				p++;
+			}
+			p++;
+		}
+		if ((flags & FHCRC) != 0) {
+			p += 2;
+		}
+		if (p > b.length) {
+			throw new EOFException("Unexpected end of header at " + pos);
+		}
+		return p;
+	}
+
+	private static int readInt(byte[] b, int p) {
+		return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16
+				| (b[p + 3] & 0xff) << 24;
+	}
+}
@@ -0,0 +1,218 @@
+package org.webdatacommons.framework.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream which compresses the data on helper threads instead of the
+ * writing thread. The data is collected in blocks of "blockSize" bytes, each
+ * full block is compressed into a gzip member of its own, and up to "threads"
+ * blocks are compressed at the same time. The members are written in order,
+ * so the output is a valid multi-member gzip file with the same content as
+ * the output of a {@link java.util.zip.GZIPOutputStream}.
+ *
+ * As {@link java.util.zip.GZIPOutputStream}, {@link #flush()} only flushes the
+ * members compressed so far, the last block is compressed by {@link #finish()}
+ * or {@link #close()}. The helper threads are shared by all streams of the
+ * JVM.
+ *
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	// the header written by java.util.zip.GZIPOutputStream
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0,
+			0, 0, 0 };
+
+	private static final AtomicInteger helperSerial = new AtomicInteger();
+
+	private static ExecutorService helpers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "deflate-"
+							+ helperSerial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private OutputStream out;
+	private int threads;
+	private int blockSize;
+
+	private byte[] block;
+	private int blockLength = 0;
+	// compressed members not written yet, in order
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	// no block was compressed yet
+	private boolean empty = true;
+	private boolean finished = false;
+
+	public ParallelGzipOutputStream(OutputStream out, int threads) {
+		this(out, threads, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param threads
+	 *            number of blocks compressed at the same time
+	 * @param blockSize
+	 *            size of the uncompressed data of a member
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threads,
+			int blockSize) {
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		this.blockSize = Math.max(1, blockSize);
+		this.block = new byte[this.blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		block[blockLength++] = (byte) b;
+		if (blockLength == blockSize) {
+			submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == blockSize) {
+				submitBlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the members compressed so far and flushes the output.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty() && pending.peek().isDone()) {
+			writeMember();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Compresses the remaining data and writes all members, without closing
+	 * the output.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		// an empty stream still gets one member, to be a valid gzip file
+		if (blockLength > 0 || empty) {
+			submitBlock();
+		}
+		while (!pending.isEmpty()) {
+			writeMember();
+		}
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			for (Future<byte[]> member : pending) {
+				member.cancel(true);
+			}
+			pending.clear();
+			out.close();
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Stream is finished");
+		}
+	}
+
+	// hands the current block to a helper thread, waits for the oldest one
+	// if too many are compressed already
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		pending.add(helpers.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(data, length);
+			}
+		}));
+		block = new byte[blockSize];
+		blockLength = 0;
+		empty = false;
+		while (pending.size() > threads) {
+			writeMember();
+		}
+	}
+
+	private void writeMember() throws IOException {
+		try {
+			out.write(pending.poll().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to compress", e.getCause());
+		}
+	}
+
+	/**
+	 * Compresses the data into a complete gzip member.
+	 */
+	static byte[] compress(byte[] data, int length) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] member = new byte[HEADER.length + length / 2 + 64];
+			System.arraycopy(HEADER, 0, member, 0, HEADER.length);
+			int memberLength = HEADER.length;
+			while (!deflater.finished()) {
+				if (memberLength == member.length) {
+					member = Arrays.copyOf(member, member.length * 2);
+				}
+				memberLength += deflater.deflate(member, memberLength,
+						member.length - memberLength);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			member = Arrays.copyOf(member, memberLength + 8);
+			writeInt(member, memberLength, (int) crc.getValue());
+			writeInt(member, memberLength + 4, length);
+			return member;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeInt(byte[] b, int p, int value) {
+		b[p] = (byte) value;
+		b[p + 1] = (byte) (value >> 8);
+		b[p + 2] = (byte) (value >> 16);
+		b[p + 3] = (byte) (value >> 24);
+	}
+}
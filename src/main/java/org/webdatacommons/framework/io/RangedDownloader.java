@@ -0,0 +1,290 @@
+package org.webdatacommons.framework.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.storage.ObjectStore;
+
+/**
+ * Downloads an object in byte ranges over several connections at the same
+ * time, so a single slow connection does not limit the input rate of a task.
+ * The ranges are returned in order as one stream, at most "parallelism"
+ * ranges are downloaded ahead of the reader. A range which fails is
+ * downloaded again, up to "retries" times, without restarting the other
+ * ranges.
+ *
+ * The downloads run on helper threads shared by all downloaders of the JVM.
+ *
+ */
+public class RangedDownloader {
+
+	private static Logger log = Logger.getLogger(RangedDownloader.class);
+
+	/**
+	 * Source of the objects to download.
+	 */
+	public interface RangeSource {
+		/**
+		 * @return the size of the object, -1 if ranges are not supported
+		 */
+		public long size(String key) throws IOException;
+
+		/**
+		 * Opens a range of the object, a length of -1 reads up to the end.
+		 */
+		public InputStream open(String key, long offset, long length)
+				throws IOException;
+	}
+
+	private static final AtomicInteger helperSerial = new AtomicInteger();
+
+	private static ExecutorService helpers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "download-"
+							+ helperSerial.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private int rangeSize;
+	private int parallelism;
+	private int retries;
+
+	/**
+	 * @param rangeSize
+	 *            size of a range in bytes
+	 * @param parallelism
+	 *            number of ranges downloaded at the same time per object
+	 * @param retries
+	 *            number of times a failed range is downloaded again
+	 */
+	public RangedDownloader(int rangeSize, int parallelism, int retries) {
+		this.rangeSize = rangeSize;
+		this.parallelism = Math.max(1, parallelism);
+		this.retries = retries;
+	}
+
+	/**
+	 * Returns the object as stream, which is downloaded in ranges if it is
+	 * larger than one range.
+	 */
+	public InputStream open(RangeSource source, String key) throws IOException {
+		long size = source.size(key);
+		if (size < 0 || size <= rangeSize) {
+			return source.open(key, 0, -1);
+		}
+		return new RangeStream(source, key, size);
+	}
+
+	/**
+	 * Returns the objects of a bucket of the store as source.
+	 */
+	public static RangeSource forObjectStore(final ObjectStore store,
+			final String bucket) {
+		return new RangeSource() {
+			@Override
+			public long size(String key) throws IOException {
+				return store.size(bucket, key);
+			}
+
+			@Override
+			public InputStream open(String key, long offset, long length)
+					throws IOException {
+				return store.get(bucket, key, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * Returns the objects below the URL prefix as source. Ranges are only used
+	 * if the server accepts them.
+	 */
+	public static RangeSource forUrl(final String prefix) {
+		return new RangeSource() {
+			@Override
+			public long size(String key) throws IOException {
+				HttpURLConnection conn = (HttpURLConnection) new URL(prefix
+						+ key).openConnection();
+				try {
+					conn.setRequestMethod("HEAD");
+					if (conn.getResponseCode() != HttpURLConnection.HTTP_OK
+							|| !"bytes".equals(conn
+									.getHeaderField("Accept-Ranges"))) {
+						return -1;
+					}
+					return conn.getContentLengthLong();
+				} finally {
+					conn.disconnect();
+				}
+			}
+
+			@Override
+			public InputStream open(String key, long offset, long length)
+					throws IOException {
+				HttpURLConnection conn = (HttpURLConnection) new URL(prefix
+						+ key).openConnection();
+				if (length < 0) {
+					return conn.getInputStream();
+				}
+				conn.setRequestProperty("Range", "bytes=" + offset + "-"
+						+ (offset + length - 1));
+				if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+					conn.disconnect();
+					throw new IOException("Range request for " + key
+							+ " returned " + conn.getResponseCode());
+				}
+				return new BoundedInputStream(conn.getInputStream(), length);
+			}
+		};
+	}
+
+	/**
+	 * Downloads one range, and again if it fails.
+	 */
+	private byte[] download(RangeSource source, String key, long offset,
+			int length) throws IOException {
+		byte[] data = new byte[length];
+		for (int attempt = 0;; attempt++) {
+			try {
+				InputStream in = source.open(key, offset, length);
+				try {
+					IOUtils.readFully(in, data);
+				} finally {
+					in.close();
+				}
+				return data;
+			} catch (IOException e) {
+				if (attempt >= retries) {
+					throw e;
+				}
+				log.warn("Retrying range " + offset + " of " + key + " ("
+						+ e.getMessage() + ")");
+				Metrics.counter("download.retries").inc();
+				try {
+					Thread.sleep(1000L * (attempt + 1));
+				} catch (InterruptedException ie) {
+					throw new IOException("Interrupted", ie);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ranges of an object in order, while the following ranges are
+	 * downloaded.
+	 */
+	private class RangeStream extends InputStream {
+
+		private RangeSource source;
+		private String key;
+		private long size;
+		// offset of the next range to download
+		private long nextOffset = 0;
+		private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		private byte[] current = new byte[0];
+		private int position = 0;
+
+		private RangeStream(RangeSource source, String key, long size) {
+			this.source = source;
+			this.key = key;
+			this.size = size;
+			while (pending.size() < parallelism && submitNext()) {
+				// fill the window
+			}
+		}
+
+		private boolean submitNext() {
+			if (nextOffset >= size) {
+				return false;
+			}
+			final long offset = nextOffset;
+			final int length = (int) Math.min(rangeSize, size - offset);
+			nextOffset += length;
+			pending.add(helpers.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return download(source, key, offset, length);
+				}
+			}));
+			return true;
+		}
+
+		// makes the next range current, false at the end of the object
+		private boolean nextRange() throws IOException {
+			Future<byte[]> next = pending.poll();
+			if (next == null) {
+				return false;
+			}
+			try {
+				current = next.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to download " + key,
+						e.getCause());
+			}
+			position = 0;
+			submitNext();
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			while (position >= current.length) {
+				if (!nextRange()) {
+					return -1;
+				}
+			}
+			return current[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (position >= current.length) {
+				if (!nextRange()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return current.length - position;
+		}
+
+		@Override
+		public void close() {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+			pending.clear();
+			current = new byte[0];
+			position = 0;
+			nextOffset = size;
+		}
+	}
+}
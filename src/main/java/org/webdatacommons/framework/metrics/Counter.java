@@ -0,0 +1,27 @@
+package org.webdatacommons.framework.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter which can be increased from several threads, e.g. the number of
+ * bytes downloaded.
+ *
+ */
+public class Counter implements CounterMBean {
+
+	private AtomicLong count = new AtomicLong();
+
+	public void inc() {
+		count.incrementAndGet();
+	}
+
+	public void inc(long n) {
+		count.addAndGet(n);
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+}
@@ -0,0 +1,11 @@
+package org.webdatacommons.framework.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ *
+ */
+public interface CounterMBean {
+
+	public long getCount();
+
+}
@@ -0,0 +1,154 @@
+package org.webdatacommons.framework.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of the {@link StageTimer}s and {@link Counter}s of the JVM. Every
+ * timer and counter is registered as MBean in the domain
+ * "org.webdatacommons", and all of them can be scraped as plain text from
+ * "http://host:port/metrics" once {@link #startServer(int)} was called.
+ *
+ * The names of the stages used by the framework:
+ * <ul>
+ * <li>queue.receive - claiming tasks from the queue</li>
+ * <li>download - downloading the input of a task</li>
+ * <li>task - processing one input file</li>
+ * <li>warc.read - reading the next record, including decompression</li>
+ * <li>warc.payload - reading the payload of a record</li>
+ * <li>http.headers - parsing the HTTP headers of a record</li>
+ * <li>wat.json - parsing the JSON metadata of a WAT record</li>
+ * <li>guess - checking a page for structured data</li>
+ * <li>any23.extract - extracting the triples of a page</li>
+ * <li>table.extract - parsing a page and extracting its tables</li>
+ * <li>table.classification - classifying a table</li>
+ * <li>output.compress - compressing output</li>
+ * <li>upload - uploading one part of an output</li>
+ * </ul>
+ *
+ */
+public class Metrics {
+
+	private static Logger log = Logger.getLogger(Metrics.class);
+
+	private static ConcurrentMap<String, StageTimer> timers = new ConcurrentHashMap<String, StageTimer>();
+	private static ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static HttpServer server = null;
+
+	private Metrics() {
+	}
+
+	public static StageTimer timer(String stage) {
+		StageTimer timer = timers.get(stage);
+		if (timer == null) {
+			StageTimer newTimer = new StageTimer();
+			timer = timers.putIfAbsent(stage, newTimer);
+			if (timer == null) {
+				timer = newTimer;
+				register("Stage", stage, timer);
+			}
+		}
+		return timer;
+	}
+
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			Counter newCounter = new Counter();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+				register("Counter", name, counter);
+			}
+		}
+		return counter;
+	}
+
+	private static void register(String type, String name, Object mbean) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					mbean,
+					new ObjectName("org.webdatacommons:type=" + type
+							+ ",name=" + ObjectName.quote(name)));
+		} catch (Exception e) {
+			log.warn("Unable to register " + name + " with JMX", e);
+		}
+	}
+
+	/**
+	 * Returns all timers and counters in a plain text format, one value per
+	 * line, which can be read by Prometheus.
+	 */
+	public static String toText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# TYPE dpef_stage_seconds histogram\n");
+		for (Map.Entry<String, StageTimer> e : new TreeMap<String, StageTimer>(
+				timers).entrySet()) {
+			String label = "stage=\"" + e.getKey() + "\"";
+			long[] buckets = e.getValue().getBuckets();
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i];
+				String le = i < StageTimer.BOUNDS.length ? Double
+						.toString(StageTimer.BOUNDS[i] / 1e9) : "+Inf";
+				sb.append("dpef_stage_seconds_bucket{").append(label)
+						.append(",le=\"").append(le).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			sb.append("dpef_stage_seconds_sum{").append(label).append("} ")
+					.append(e.getValue().getTotalNanos() / 1e9).append('\n');
+			sb.append("dpef_stage_seconds_count{").append(label).append("} ")
+					.append(cumulative).append('\n');
+		}
+		sb.append("# TYPE dpef_total counter\n");
+		for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(
+				counters).entrySet()) {
+			sb.append("dpef_total{name=\"").append(e.getKey()).append("\"} ")
+					.append(e.getValue().getCount()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Starts the HTTP endpoint serving {@link #toText()} on the given port.
+	 * Only the first call starts a server.
+	 */
+	public static synchronized void startServer(int port) throws IOException {
+		if (server != null) {
+			return;
+		}
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = toText().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		log.info("Serving metrics on port " + port);
+	}
+
+}
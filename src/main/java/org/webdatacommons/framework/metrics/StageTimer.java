@@ -0,0 +1,131 @@
+package org.webdatacommons.framework.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the durations of one processing stage, e.g. downloading the
+ * input or extracting the triples of a page. The durations are counted in
+ * buckets with fixed upper bounds from 10 microseconds to 10 minutes, which
+ * is enough to estimate percentiles. Can be used from several threads.
+ *
+ * Usage:
+ *
+ * <pre>
+ * long start = timer.start();
+ * ... the stage ...
+ * timer.stop(start);
+ * </pre>
+ *
+ */
+public class StageTimer implements StageTimerMBean {
+
+	// upper bounds of the buckets in nanoseconds, the last bucket is unbounded
+	static final long[] BOUNDS = { 10000L, 100000L, 500000L, 1000000L,
+			5000000L, 10000000L, 50000000L, 100000000L, 500000000L,
+			1000000000L, 5000000000L, 10000000000L, 60000000000L,
+			600000000000L };
+
+	private AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong totalNanos = new AtomicLong();
+	private AtomicLong maxNanos = new AtomicLong();
+
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time since the given start, see {@link #start()}.
+	 */
+	public void stop(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of durations in each bucket, see {@link #BOUNDS}.
+	 */
+	long[] getBuckets() {
+		long[] b = new long[buckets.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = buckets.get(i);
+		}
+		return b;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return totalNanos.get() / 1e6;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long c = count.get();
+		return c == 0 ? 0 : totalNanos.get() / 1e6 / c;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+	@Override
+	public double get50thPercentileMillis() {
+		return percentileMillis(0.5);
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return percentileMillis(0.99);
+	}
+
+	/**
+	 * Estimates a percentile by the upper bound of the bucket it falls into,
+	 * or the maximum for the last bucket.
+	 */
+	public double percentileMillis(double p) {
+		long[] b = getBuckets();
+		long total = 0;
+		for (long n : b) {
+			total += n;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += b[i];
+			if (seen >= rank) {
+				return Math.min(BOUNDS[i], maxNanos.get()) / 1e6;
+			}
+		}
+		return getMaxMillis();
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.webdatacommons.framework.metrics;
+
+/**
+ * JMX view of a {@link StageTimer}.
+ *
+ */
+public interface StageTimerMBean {
+
+	public long getCount();
+
+	public double getTotalMillis();
+
+	public double getMeanMillis();
+
+	public double getMaxMillis();
+
+	public double get50thPercentileMillis();
+
+	public double get99thPercentileMillis();
+
+}
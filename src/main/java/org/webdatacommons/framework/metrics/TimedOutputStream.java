@@ -0,0 +1,49 @@
+package org.webdatacommons.framework.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the time spent in the writes to a stream, e.g. a compressing
+ * stream, with a {@link StageTimer}.
+ *
+ */
+public class TimedOutputStream extends FilterOutputStream {
+
+	private StageTimer timer;
+
+	public TimedOutputStream(OutputStream out, StageTimer timer) {
+		super(out);
+		this.timer = timer;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		long start = timer.start();
+		out.write(b);
+		timer.stop(start);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		long start = timer.start();
+		out.write(b, off, len);
+		timer.stop(start);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		long start = timer.start();
+		out.flush();
+		timer.stop(start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		long start = timer.start();
+		out.close();
+		timer.stop(start);
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.webdatacommons.framework.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of a processor in one input file, saved by a
+ * {@link CheckpointStore}. All records before the record at "offset" are
+ * processed and their output is stored in the objects listed in "outputs".
+ * A retry of the file continues with the record at "offset", the "counters"
+ * are the counters of the processor at this point.
+ *
+ */
+public class Checkpoint {
+
+	// position of the next record in the input file
+	private long offset = 0;
+	// number of records before the next record
+	private long records = 0;
+	// URL of the next record, to make sure the offset points to it
+	private String url = null;
+	// number of output segments written so far
+	private int segments = 0;
+	private List<String> outputs = new ArrayList<String>();
+	private Map<String, Long> counters = new HashMap<String, Long>();
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	public void setRecords(long records) {
+		this.records = records;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public int getSegments() {
+		return segments;
+	}
+
+	public void setSegments(int segments) {
+		this.segments = segments;
+	}
+
+	public List<String> getOutputs() {
+		return outputs;
+	}
+
+	public Map<String, Long> getCounters() {
+		return counters;
+	}
+
+	public long getCounter(String name) {
+		Long value = counters.get(name);
+		return value == null ? 0 : value;
+	}
+
+	@Override
+	public String toString() {
+		return "record " + records + " at " + offset + " (" + segments
+				+ " segments)";
+	}
+
+}
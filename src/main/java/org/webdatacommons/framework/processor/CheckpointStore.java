@@ -0,0 +1,77 @@
+package org.webdatacommons.framework.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.storage.ObjectStore;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
+
+import com.google.gson.Gson;
+
+/**
+ * Saves {@link Checkpoint}s of the input files as JSON objects in the result
+ * bucket, under "checkpoints/". A checkpoint is only saved after the outputs
+ * it lists are completely stored, so a retried task can rely on them.
+ *
+ */
+public class CheckpointStore {
+
+	private static Logger log = Logger.getLogger(CheckpointStore.class);
+
+	private ObjectStore store;
+	private String bucket;
+	private Gson gson = new Gson();
+
+	public CheckpointStore(ObjectStore store, String bucket) {
+		this.store = store;
+		this.bucket = bucket;
+	}
+
+	public static String getKey(String inputFileKey) {
+		return "checkpoints/" + inputFileKey.replace("/", "_") + ".json";
+	}
+
+	/**
+	 * Returns the checkpoint of the input file, or null if there is none.
+	 */
+	public Checkpoint load(String inputFileKey) throws IOException {
+		String key = getKey(inputFileKey);
+		if (!store.exists(bucket, key)) {
+			return null;
+		}
+		InputStream in = store.get(bucket, key);
+		try {
+			Checkpoint checkpoint = gson.fromJson(new InputStreamReader(in,
+					"UTF-8"), Checkpoint.class);
+			log.info("Found checkpoint of " + inputFileKey + ": " + checkpoint);
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+
+	public void save(String inputFileKey, Checkpoint checkpoint)
+			throws IOException {
+		StreamingUploadOutputStream out = store.create(bucket,
+				getKey(inputFileKey));
+		try {
+			out.write(gson.toJson(checkpoint).getBytes("UTF-8"));
+		} catch (IOException e) {
+			out.abort();
+			throw e;
+		}
+		out.close();
+		log.debug("Saved checkpoint of " + inputFileKey + ": " + checkpoint);
+	}
+
+	/**
+	 * Removes the checkpoint of the input file, called once the file is
+	 * finished.
+	 */
+	public void delete(String inputFileKey) throws IOException {
+		store.delete(bucket, getKey(inputFileKey));
+	}
+
+}
@@ -6,13 +6,32 @@ import java.util.Map;
 /**
  * Interface which needs to be implemented to adapt the processor for personal needs.
  * The processor handles one file at the time, and cannot interact with other threads and their processors.
- * 
+ *
+ * A processor is created once per worker thread. {@link #open()} is called
+ * before the first file, {@link #process(ReadableByteChannel, String)} for
+ * each file, and {@link #close()} when the processor is discarded, so heavy
+ * resources (classifiers, extractors, ...) can be created once and reused.
+ *
  * @author Robert Meusel (robert@informatik.uni-mannheim.de)
  *
  */
 public interface FileProcessor {
 
+	/**
+	 * Called once before the first file is processed. The configuration can
+	 * be read with {@link ProcessingNode#getOrCry(String)}.
+	 */
+	default void open() throws Exception {
+	}
+
 	Map<String, String> process(ReadableByteChannel fileChannel,
 			String inputFileKey) throws Exception;
 
+	/**
+	 * Called once when the processor is not used anymore, also after a
+	 * failed file.
+	 */
+	default void close() {
+	}
+
 }
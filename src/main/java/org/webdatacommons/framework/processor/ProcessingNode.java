@@ -1,16 +1,37 @@
 package org.webdatacommons.framework.processor;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.webdatacommons.framework.concurrency.ConcurrencyController;
+import org.webdatacommons.framework.concurrency.RecordBudget;
+import org.webdatacommons.framework.io.ParallelGzipOutputStream;
+import org.webdatacommons.framework.io.RangedDownloader;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.queue.JobQueue;
+import org.webdatacommons.framework.queue.LocalJobQueue;
+import org.webdatacommons.framework.queue.LocalTaskLedger;
+import org.webdatacommons.framework.queue.RabbitMQJobQueue;
+import org.webdatacommons.framework.queue.SQSJobQueue;
+import org.webdatacommons.framework.queue.SimpleDBTaskLedger;
+import org.webdatacommons.framework.queue.TaskLedger;
+import org.webdatacommons.framework.storage.LocalObjectStore;
+import org.webdatacommons.framework.storage.ObjectStore;
+import org.webdatacommons.framework.storage.S3ObjectStore;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.sqs.AmazonSQS;
@@ -20,12 +41,16 @@ import com.amazonaws.services.sqs.model.CreateQueueResult;
 import com.amazonaws.services.sqs.model.DeleteQueueRequest;
 import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
 
 public abstract class ProcessingNode {
 	private static Logger log = Logger.getLogger(ProcessingNode.class);
 
 	private static final String PFILENAME = "/dpef.properties";
 
+	public static final String SYSTEM_PROPERTY_PREFIX = "dpef.";
+
 	private Properties config = null;
 
 	private AmazonSimpleDBClient sdb = null;
@@ -34,6 +59,27 @@ public abstract class ProcessingNode {
 
 	private AmazonSQS sqs = null;
 
+	private JobQueue jobQueue = null;
+
+	private ObjectStore objectStore = null;
+
+	// limits the number of worker threads of the JVM working at the same time
+	private static ConcurrencyController concurrency = null;
+
+	// true once the limits of the record budgets of the JVM are set
+	private static boolean recordBudgetLimited = false;
+
+	// records the start and end of tasks, shared by all threads of the JVM
+	private static TaskLedger taskLedger = null;
+
+	// clients shared by all nodes of the JVM, they are thread safe and pool
+	// their connections
+	private static AmazonSimpleDBClient sharedSdb = null;
+	private static AmazonSQS sharedSqs = null;
+	private static RestS3Service sharedS3 = null;
+	private static Connection sharedRabbit = null;
+	private static RabbitMQJobQueue sharedRabbitQueue = null;
+
 	String queueUrl = null;
 
 	protected Properties config() {
@@ -43,18 +89,29 @@ public abstract class ProcessingNode {
 		return config;
 	}
 
+	/**
+	 * Loads the configuration from the property file. System properties
+	 * starting with "dpef." override its entries, e.g.
+	 * -Ddpef.recordThreads=4 sets "recordThreads".
+	 */
 	private static Properties loadConfig(String f) {
 		Properties p = new Properties();
 		InputStream pStream = ProcessingNode.class
 				.getResourceAsStream(PFILENAME);
 		if (pStream == null) {
 			log.warn("Unable to find property file " + PFILENAME);
-			return p;
+		} else {
+			try {
+				p.load(pStream);
+			} catch (IOException e) {
+				log.warn("Unable to load property file " + PFILENAME);
+			}
 		}
-		try {
-			p.load(pStream);
-		} catch (IOException e) {
-			log.warn("Unable to load property file " + PFILENAME);
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				p.setProperty(name.substring(SYSTEM_PROPERTY_PREFIX.length()),
+						System.getProperty(name));
+			}
 		}
 		return p;
 	}
@@ -80,9 +137,52 @@ public abstract class ProcessingNode {
 		return value.trim();
 	}
 
+	/**
+	 * Returns property value for a certain key, or the given default if the
+	 * key is not set. Used for optional settings, which should not produce a
+	 * warning if they are missing.
+	 * 
+	 * @param key
+	 * @param dflt
+	 * @return property value, dflt if property could not be found
+	 */
+	public String getOrDefault(String key, String dflt) {
+		String value = config().getProperty(key);
+		if (value == null || value.trim().equals("")) {
+			return dflt;
+		}
+		return value.trim();
+	}
+
+	public int getOrDefault(String key, int dflt) {
+		return Integer.parseInt(getOrDefault(key, Integer.toString(dflt)));
+	}
+
+	/**
+	 * Returns the configuration of the AWS clients: at most
+	 * "clientMaxConnections" pooled connections per client, which are kept
+	 * open between requests, and a socket timeout of "clientSocketTimeout"
+	 * seconds.
+	 */
+	protected ClientConfiguration getClientConfiguration() {
+		return new ClientConfiguration().withMaxConnections(
+				getOrDefault("clientMaxConnections", 100)).withSocketTimeout(
+				getOrDefault("clientSocketTimeout", 60) * 1000);
+	}
+
+	/**
+	 * Returns the SimpleDB client, which is shared by all nodes of the JVM
+	 * unless one was set for this node.
+	 */
 	protected AmazonSimpleDBClient getDbClient() {
 		if (sdb == null) {
-			sdb = new AmazonSimpleDBClient(getAwsCredentials());
+			synchronized (ProcessingNode.class) {
+				if (sharedSdb == null) {
+					sharedSdb = new AmazonSimpleDBClient(getAwsCredentials(),
+							getClientConfiguration());
+				}
+				sdb = sharedSdb;
+			}
 		}
 		return sdb;
 	}
@@ -109,10 +209,21 @@ public abstract class ProcessingNode {
 				cred.getAWSAccessKeyId(), cred.getAWSSecretKey());
 	}
 
+	/**
+	 * Returns the SQS client, which is shared by all nodes of the JVM unless
+	 * one was set for this node.
+	 */
 	protected AmazonSQS getQueue() {
 		if (sqs == null) {
-			sqs = new AmazonSQSClient(getAwsCredentials());
-			sqs.setEndpoint(config().getProperty("queueEndpoint"));
+			synchronized (ProcessingNode.class) {
+				if (sharedSqs == null) {
+					sharedSqs = new AmazonSQSClient(getAwsCredentials(),
+							getClientConfiguration());
+					sharedSqs.setEndpoint(config().getProperty(
+							"queueEndpoint"));
+				}
+				sqs = sharedSqs;
+			}
 		}
 		return sqs;
 	}
@@ -121,13 +232,169 @@ public abstract class ProcessingNode {
 		sqs = q;
 	}
 
+	/**
+	 * Returns the queue holding the tasks. The backend is selected by the
+	 * configuration entry "jobQueueBackend", which can be "sqs", "rabbitmq" or
+	 * "local".
+	 */
+	protected JobQueue getJobQueue() {
+		if (jobQueue == null) {
+			String backend = getOrDefault("jobQueueBackend",
+					getDefaultJobQueueBackend());
+			if ("local".equals(backend)) {
+				jobQueue = LocalJobQueue.forFile(
+						getOrDefault("localQueueFile", ""),
+						Integer.parseInt(getOrCry("jobTimeLimit")));
+			} else if ("rabbitmq".equals(backend)) {
+				jobQueue = getRabbitJobQueue();
+			} else {
+				jobQueue = new SQSJobQueue(getQueue(), getQueueUrl());
+			}
+		}
+		return jobQueue;
+	}
+
+	public void setJobQueue(JobQueue q) {
+		jobQueue = q;
+	}
+
+	/**
+	 * Returns the ledger of started and finished tasks. With "taskLedger"
+	 * set to "sdb", it is kept in the SimpleDB domain "sdbledgerdomain" and
+	 * shared by all nodes, which is needed for the speculative re-issue of
+	 * stragglers by the master. Otherwise it is kept in memory.
+	 */
+	public TaskLedger getTaskLedger() {
+		synchronized (ProcessingNode.class) {
+			if (taskLedger == null) {
+				if ("sdb".equals(getOrDefault("taskLedger", "local"))) {
+					taskLedger = new SimpleDBTaskLedger(getDbClient(),
+							getOrCry("sdbledgerdomain"));
+				} else {
+					taskLedger = new LocalTaskLedger();
+				}
+			}
+			return taskLedger;
+		}
+	}
+
+	/**
+	 * Returns the downloader for input files, which downloads files larger
+	 * than "downloadRangeSize" MB in ranges over "downloadParallelism"
+	 * connections at the same time. Returns null if "downloadRangeSize" is 0,
+	 * then files are downloaded over a single connection.
+	 */
+	public RangedDownloader getDownloader() {
+		int rangeMb = getOrDefault("downloadRangeSize", 0);
+		if (rangeMb <= 0) {
+			return null;
+		}
+		return new RangedDownloader(rangeMb * 1024 * 1024, getOrDefault(
+				"downloadParallelism", 4), getOrDefault("downloadRetries", 3));
+	}
+
+	/**
+	 * Returns a gzip stream writing to the output, which compresses blocks
+	 * of the data on "compressThreads" helper threads instead of the writing
+	 * thread. With "compressThreads" set to 0, the data is compressed by the
+	 * writing thread.
+	 */
+	public OutputStream getGzipOutputStream(OutputStream out)
+			throws IOException {
+		int threads = getOrDefault("compressThreads", 2);
+		if (threads <= 0) {
+			return new GZIPOutputStream(out);
+		}
+		return new ParallelGzipOutputStream(out, threads);
+	}
+
+	protected String getDefaultJobQueueBackend() {
+		return "sqs";
+	}
+
+	protected ConnectionFactory getRabbitConnectionFactory() {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(getOrCry("queueIP"));
+		factory.setPort(Integer.parseInt(getOrCry("queuePort")));
+		factory.setUsername(getOrCry("queueUsername"));
+		factory.setPassword(getOrCry("queuePassword"));
+		factory.setVirtualHost(getOrCry("queueVHost"));
+		// heartbeats keep idle connections open through firewalls
+		factory.setRequestedHeartbeat(getOrDefault("queueHeartbeat", 30));
+		factory.setAutomaticRecoveryEnabled(true);
+		return factory;
+	}
+
+	/**
+	 * Returns the connection to the RabbitMQ server, which is shared by all
+	 * nodes of the JVM. Each job queue opens its own channel on it.
+	 */
+	protected Connection getRabbitConnection() throws IOException {
+		synchronized (ProcessingNode.class) {
+			if (sharedRabbit == null || !sharedRabbit.isOpen()) {
+				try {
+					sharedRabbit = getRabbitConnectionFactory()
+							.newConnection();
+				} catch (TimeoutException e) {
+					throw new IOException("Unable to connect to queue server",
+							e);
+				}
+			}
+			return sharedRabbit;
+		}
+	}
+
+	/**
+	 * Returns the RabbitMQ job queue shared by all nodes of the JVM. The
+	 * server pushes up to "queuePrefetch" tasks to it (by default one per
+	 * worker thread), which wait in a local buffer for the worker threads.
+	 */
+	protected JobQueue getRabbitJobQueue() {
+		synchronized (ProcessingNode.class) {
+			if (sharedRabbitQueue == null) {
+				sharedRabbitQueue = new RabbitMQJobQueue(
+						new RabbitMQJobQueue.ConnectionSource() {
+							@Override
+							public Connection get() throws IOException {
+								return getRabbitConnection();
+							}
+						}, getOrCry("queueName"), getOrDefault(
+								"queuePrefetch", getConcurrencyController()
+										.getMaxThreads()), getOrDefault(
+								"queueWaitSeconds", 20));
+			}
+			return sharedRabbitQueue;
+		}
+	}
+
+	/**
+	 * Returns the S3 client, which is shared by all nodes of the JVM unless
+	 * one was set for this node. It uses the same connection limit and
+	 * timeout as the AWS clients.
+	 */
 	protected RestS3Service getStorage() {
 		if (s3 == null) {
-			try {
-				s3 = new RestS3Service(getJetS3tCredentials());
-
-			} catch (S3ServiceException e1) {
-				log.warn("Unable to connect to S3", e1);
+			synchronized (ProcessingNode.class) {
+				if (sharedS3 == null) {
+					String maxConnections = Integer.toString(getOrDefault(
+							"clientMaxConnections", 100));
+					Jets3tProperties properties = new Jets3tProperties();
+					properties.setProperty("httpclient.max-connections",
+							maxConnections);
+					properties.setProperty(
+							"httpclient.max-connections-per-host",
+							maxConnections);
+					properties.setProperty("httpclient.socket-timeout-ms",
+							Integer.toString(getOrDefault(
+									"clientSocketTimeout", 60) * 1000));
+					try {
+						sharedS3 = new RestS3Service(getJetS3tCredentials(),
+								null, null, properties);
+					} catch (S3ServiceException e1) {
+						log.warn("Unable to connect to S3", e1);
+					}
+				}
+				s3 = sharedS3;
 			}
 		}
 		return s3;
@@ -137,6 +404,93 @@ public abstract class ProcessingNode {
 		s3 = s;
 	}
 
+	/**
+	 * Starts the endpoint serving the metrics of this JVM, if a
+	 * "metricsPort" is configured. The metrics are also available over JMX.
+	 */
+	public void startMetricsServer() {
+		int port = getOrDefault("metricsPort", 0);
+		if (port > 0) {
+			try {
+				Metrics.startServer(port);
+			} catch (IOException e) {
+				log.warn("Unable to serve metrics on port " + port, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the controller shared by all worker threads of the JVM, which
+	 * limits the number of tasks processed at the same time to between
+	 * "workerThreadsMin" and "workerThreadsMax" (0 for twice the number of
+	 * cores), starting with one per core. The limit is adapted to the load
+	 * every "concurrencyInterval" seconds.
+	 */
+	public ConcurrencyController getConcurrencyController() {
+		synchronized (ProcessingNode.class) {
+			if (concurrency == null) {
+				int cores = Runtime.getRuntime().availableProcessors();
+				concurrency = new ConcurrencyController(getOrDefault(
+						"workerThreadsMin", 1), getMaxWorkerThreads(), cores);
+				concurrency.start(getOrDefault("concurrencyInterval", 10));
+			}
+			return concurrency;
+		}
+	}
+
+	private int getMaxWorkerThreads() {
+		int max = getOrDefault("workerThreadsMax", 0);
+		return max > 0 ? max : 2 * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Creates the time budget of one record, "recordTimeBudget" seconds. The
+	 * budgets of the JVM share at most "recordMaxAbandoned" (0 for one per
+	 * thread extracting records) abandoned records which are still running,
+	 * further records are skipped. Their helper threads are bounded
+	 * accordingly.
+	 */
+	public RecordBudget getRecordBudget() {
+		synchronized (ProcessingNode.class) {
+			if (!recordBudgetLimited) {
+				int callers = getMaxWorkerThreads()
+						* Math.max(1, getOrDefault("recordThreads", 1));
+				int maxAbandoned = getOrDefault("recordMaxAbandoned", 0);
+				if (maxAbandoned <= 0) {
+					maxAbandoned = callers;
+				}
+				RecordBudget.setLimits(callers + maxAbandoned, maxAbandoned);
+				recordBudgetLimited = true;
+			}
+		}
+		return new RecordBudget(getOrDefault("recordTimeBudget", 0) * 1000L);
+	}
+
+	/**
+	 * Returns the store for input and output files. The backend is selected by
+	 * the configuration entry "storageBackend", which can be "s3" or "local".
+	 * Outputs are uploaded in parts of "uploadPartSize" MB while they are
+	 * written.
+	 */
+	protected ObjectStore getObjectStore() {
+		if (objectStore == null) {
+			int partSize = getOrDefault("uploadPartSize", 8) * 1024 * 1024;
+			int pendingParts = getOrDefault("uploadPendingParts", 2);
+			if ("local".equals(getOrDefault("storageBackend", "s3"))) {
+				objectStore = new LocalObjectStore(new File(
+						getOrCry("localStoreDir")), partSize, pendingParts);
+			} else {
+				objectStore = new S3ObjectStore(getStorage(), partSize,
+						pendingParts);
+			}
+		}
+		return objectStore;
+	}
+
+	public void setObjectStore(ObjectStore store) {
+		objectStore = store;
+	}
+
 	protected String getQueueUrl() {
 		if (queueUrl == null) {
 			String jobQueueName = config().getProperty("jobQueueName");
@@ -0,0 +1,101 @@
+package org.webdatacommons.framework.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.storage.ObjectStore;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
+
+/**
+ * List of the records of an input file which exceeded their time budget, see
+ * {@link org.webdatacommons.framework.concurrency.RecordBudget}. The list is
+ * stored in the result bucket under "quarantine/", one line per record with
+ * its offset and URL separated by a tab, and is written again whenever a
+ * record is added. A retry of the file loads the list and skips these
+ * records, so a poisonous record does not stall the file again.
+ *
+ */
+public class RecordQuarantine {
+
+	private static Logger log = Logger.getLogger(RecordQuarantine.class);
+
+	private ObjectStore store;
+	private String bucket;
+	private String key;
+	// offsets by URL
+	private Map<String, Long> records = new LinkedHashMap<String, Long>();
+
+	private RecordQuarantine(ObjectStore store, String bucket, String key) {
+		this.store = store;
+		this.bucket = bucket;
+		this.key = key;
+	}
+
+	public static String getKey(String inputFileKey) {
+		return "quarantine/" + inputFileKey.replace("/", "_") + ".tsv";
+	}
+
+	/**
+	 * Loads the quarantined records of the input file, the list is empty if
+	 * there are none.
+	 */
+	public static RecordQuarantine load(ObjectStore store, String bucket,
+			String inputFileKey) throws IOException {
+		RecordQuarantine quarantine = new RecordQuarantine(store, bucket,
+				getKey(inputFileKey));
+		if (!store.exists(bucket, quarantine.key)) {
+			return quarantine;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				store.get(bucket, quarantine.key), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 2);
+				if (fields.length == 2) {
+					quarantine.records.put(fields[1],
+							Long.parseLong(fields[0]));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		log.info("Skipping " + quarantine.size() + " quarantined records of "
+				+ inputFileKey);
+		return quarantine;
+	}
+
+	public synchronized boolean contains(String url) {
+		return records.containsKey(url);
+	}
+
+	public synchronized int size() {
+		return records.size();
+	}
+
+	/**
+	 * Adds a record and stores the list.
+	 */
+	public synchronized void add(long offset, String url) throws IOException {
+		log.warn("Quarantined record " + url + " at " + offset);
+		records.put(url, offset);
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> e : records.entrySet()) {
+			sb.append(e.getValue()).append('\t').append(e.getKey())
+					.append('\n');
+		}
+		StreamingUploadOutputStream out = store.create(bucket, key);
+		try {
+			out.write(sb.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			out.abort();
+			throw e;
+		}
+		out.close();
+	}
+
+}
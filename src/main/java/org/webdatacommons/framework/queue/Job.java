@@ -0,0 +1,77 @@
+package org.webdatacommons.framework.queue;
+
+/**
+ * A task claimed from a {@link JobQueue}. The body holds the key of the file
+ * to process, optionally followed by a tab and the size of the file in bytes
+ * (see {@link #body(String, long)}). The handle is whatever the backend needs
+ * to acknowledge the task later on (receipt handle, delivery tag, ...).
+ * 
+ */
+public class Job {
+
+	private final String body;
+	private final Object handle;
+	private final int receiveCount;
+
+	public Job(String body, Object handle, int receiveCount) {
+		this.body = body;
+		this.handle = handle;
+		this.receiveCount = receiveCount;
+	}
+
+	/**
+	 * Returns the body of a task for the file with the given key and size, a
+	 * negative size if it is unknown.
+	 */
+	public static String body(String key, long size) {
+		if (size < 0) {
+			return key;
+		}
+		return key + "\t" + size;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * @return the key of the file to process
+	 */
+	public String getKey() {
+		int tab = body.indexOf('\t');
+		return tab < 0 ? body : body.substring(0, tab);
+	}
+
+	/**
+	 * @return the size of the file in bytes, -1 if the body does not contain
+	 *         it (e.g. tasks queued by older masters).
+	 */
+	public long getSize() {
+		int tab = body.indexOf('\t');
+		if (tab < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(body.substring(tab + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public Object getHandle() {
+		return handle;
+	}
+
+	/**
+	 * @return how often this task was handed out by the queue, including this
+	 *         time.
+	 */
+	public int getReceiveCount() {
+		return receiveCount;
+	}
+
+	@Override
+	public String toString() {
+		return getKey();
+	}
+}
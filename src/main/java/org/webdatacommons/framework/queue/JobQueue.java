@@ -0,0 +1,39 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Queue holding the tasks (one file key each) for the workers. A task which is
+ * received is leased to the caller: it has to be acknowledged once it is done,
+ * otherwise it will be handed out again after the lease expired.
+ * 
+ */
+public interface JobQueue {
+
+	/**
+	 * Claims up to maxJobs tasks with a single request to the backend.
+	 * 
+	 * @return the claimed tasks, an empty list if the queue is empty.
+	 */
+	public List<Job> receive(int maxJobs) throws IOException;
+
+	/**
+	 * Removes a finished task from the queue.
+	 */
+	public void ack(Job job) throws IOException;
+
+	/**
+	 * Gives a task back to the queue, so it can be picked up again right away.
+	 */
+	public void nack(Job job) throws IOException;
+
+	/**
+	 * Resets the lease of a claimed task to the given number of seconds.
+	 */
+	public void extendLease(Job job, int seconds) throws IOException;
+
+	public void send(List<String> bodies) throws IOException;
+
+	public void close();
+}
@@ -0,0 +1,160 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process {@link JobQueue}, which makes it possible to run the whole
+ * pipeline on a single machine. Tasks are kept in memory and can be loaded
+ * from a file containing one task per line. All workers of a JVM share the
+ * same queue instance per file. Leases behave like the SQS visibility timeout:
+ * tasks which are not acknowledged in time are handed out again.
+ * 
+ */
+public class LocalJobQueue implements JobQueue {
+
+	private static Logger log = Logger.getLogger(LocalJobQueue.class);
+
+	private static Map<String, LocalJobQueue> queues = new HashMap<String, LocalJobQueue>();
+
+	private static class Lease {
+		private String body;
+		private long expires;
+
+		private Lease(String body, long expires) {
+			this.body = body;
+			this.expires = expires;
+		}
+	}
+
+	private LinkedList<String> pending = new LinkedList<String>();
+	private Map<Long, Lease> leases = new HashMap<Long, Lease>();
+	private Map<String, Integer> receiveCounts = new HashMap<String, Integer>();
+	private long nextHandle = 0;
+	private int leaseSeconds;
+
+	public LocalJobQueue(int leaseSeconds) {
+		this.leaseSeconds = leaseSeconds;
+	}
+
+	/**
+	 * Returns the queue shared within this JVM for the given task file. The
+	 * file is read when the queue is created, an empty or missing file name
+	 * results in an empty queue to be filled using {@link #send(List)}.
+	 */
+	public static synchronized LocalJobQueue forFile(String taskFile,
+			int leaseSeconds) {
+		LocalJobQueue queue = queues.get(taskFile);
+		if (queue == null) {
+			queue = new LocalJobQueue(leaseSeconds);
+			if (taskFile.length() > 0) {
+				try {
+					queue.load(new File(taskFile));
+				} catch (IOException e) {
+					log.warn("Unable to read tasks from " + taskFile, e);
+				}
+			}
+			queues.put(taskFile, queue);
+		}
+		return queue;
+	}
+
+	public void load(File taskFile) throws IOException {
+		List<String> bodies = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(taskFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					bodies.add(line.trim());
+				}
+			}
+		} finally {
+			br.close();
+		}
+		send(bodies);
+		log.info("Loaded " + bodies.size() + " tasks from " + taskFile);
+	}
+
+	// puts tasks with expired leases back to the head of the queue
+	private void releaseExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Lease> it = leases.values().iterator();
+		while (it.hasNext()) {
+			Lease lease = it.next();
+			if (lease.expires <= now) {
+				pending.addFirst(lease.body);
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized List<Job> receive(int maxJobs) {
+		releaseExpired();
+		List<Job> jobs = new ArrayList<Job>();
+		while (jobs.size() < Math.max(1, maxJobs) && !pending.isEmpty()) {
+			String body = pending.removeFirst();
+			Integer count = receiveCounts.get(body);
+			count = count == null ? 1 : count + 1;
+			receiveCounts.put(body, count);
+
+			long handle = nextHandle++;
+			leases.put(handle, new Lease(body, System.currentTimeMillis()
+					+ leaseSeconds * 1000L));
+			jobs.add(new Job(body, handle, count));
+		}
+		return jobs;
+	}
+
+	@Override
+	public synchronized void ack(Job job) {
+		if (leases.remove(job.getHandle()) != null) {
+			receiveCounts.remove(job.getBody());
+		}
+	}
+
+	@Override
+	public synchronized void nack(Job job) {
+		Lease lease = leases.remove(job.getHandle());
+		if (lease != null) {
+			pending.addFirst(lease.body);
+		}
+	}
+
+	@Override
+	public synchronized void extendLease(Job job, int seconds) throws IOException {
+		Lease lease = leases.get(job.getHandle());
+		if (lease == null) {
+			throw new IOException("Lease of " + job + " already expired");
+		}
+		lease.expires = System.currentTimeMillis() + seconds * 1000L;
+	}
+
+	@Override
+	public synchronized void send(List<String> bodies) {
+		pending.addAll(bodies);
+	}
+
+	/**
+	 * @return number of tasks waiting plus number of tasks in flight
+	 */
+	public synchronized int size() {
+		return pending.size() + leases.size();
+	}
+
+	@Override
+	public void close() {
+		// shared with other workers, nothing to release
+	}
+}
@@ -0,0 +1,85 @@
+package org.webdatacommons.framework.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link TaskLedger} kept in memory, shared by the worker threads of one JVM.
+ * Used with the local job queue and if no shared ledger is configured.
+ *
+ */
+public class LocalTaskLedger implements TaskLedger {
+
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	@Override
+	public synchronized void start(String key, long size, String node) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.getFinished() > 0) {
+			return;
+		}
+		entries.put(key, new Entry(key, size, System.currentTimeMillis(), 0,
+				entry != null && entry.isReissued()));
+	}
+
+	@Override
+	public synchronized boolean finish(String key, String node) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key, -1, 0, 0, false);
+		} else if (entry.getFinished() > 0) {
+			return false;
+		}
+		entries.put(key, new Entry(key, entry.getSize(), entry.getStarted(),
+				System.currentTimeMillis(), entry.isReissued()));
+		return true;
+	}
+
+	@Override
+	public synchronized void stop(String key, String node) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.getFinished() == 0) {
+			entries.put(key, new Entry(key, entry.getSize(), 0, 0,
+					entry.isReissued()));
+		}
+	}
+
+	@Override
+	public synchronized boolean isFinished(String key) {
+		Entry entry = entries.get(key);
+		return entry != null && entry.getFinished() > 0;
+	}
+
+	@Override
+	public synchronized void markReissued(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entries.put(key, new Entry(key, entry.getSize(),
+					entry.getStarted(), entry.getFinished(), true));
+		}
+	}
+
+	@Override
+	public synchronized List<Entry> getRunning() {
+		List<Entry> running = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.getStarted() > 0 && entry.getFinished() == 0) {
+				running.add(entry);
+			}
+		}
+		return running;
+	}
+
+	@Override
+	public synchronized List<Entry> getFinished() {
+		List<Entry> finished = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.getFinished() > 0) {
+				finished.add(entry);
+			}
+		}
+		return finished;
+	}
+}
@@ -0,0 +1,345 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.concurrency.ConcurrencyController;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+
+/**
+ * Claims tasks from a {@link JobQueue} and downloads their input files to
+ * local temporary files in background threads, so the next input is already
+ * on disk when a worker thread finishes its current file. One prefetcher is
+ * shared by all worker threads of a JVM. It holds at most "depth" tasks per
+ * permit of the {@link ConcurrencyController}, claimed, downloading or
+ * downloaded, so threads waiting for a permit do not keep tasks from other
+ * nodes. The leases of all tasks which are held but not yet handed out are
+ * renewed periodically by a single timer, so they do not return to the queue
+ * while they wait.
+ * 
+ */
+public class Prefetcher {
+
+	private static Logger log = Logger.getLogger(Prefetcher.class);
+
+	/**
+	 * Opens the input of a task for reading.
+	 */
+	public interface InputSource {
+		public InputStream open(String key) throws Exception;
+	}
+
+	/**
+	 * A claimed task together with its downloaded input. If the download (or
+	 * claiming the task) failed, the error is set instead of the file.
+	 */
+	public static class Task {
+		private Job job;
+		private File file;
+		private Exception error;
+
+		private Task(Job job, File file, Exception error) {
+			this.job = job;
+			this.file = file;
+			this.error = error;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+		public void delete() {
+			if (file != null && file.exists()) {
+				file.delete();
+			}
+		}
+	}
+
+	private JobQueue queue;
+	private InputSource source;
+	private ConcurrencyController permits;
+	private int depth;
+	private int batchSize;
+	private int leaseSeconds;
+	private int retryLimit;
+
+	// claimed from the queue, not yet downloaded
+	private LinkedList<Job> claimed = new LinkedList<Job>();
+	// currently downloading
+	private List<Job> downloading = new ArrayList<Job>();
+	// downloaded, waiting for a worker thread
+	private LinkedList<Task> ready = new LinkedList<Task>();
+	// true while a fetch thread requests tasks from the queue
+	private boolean receiving = false;
+	// true if the last request to the queue returned nothing
+	private boolean queueEmpty = false;
+
+	private List<Thread> fetchThreads = null;
+	private Timer leaseTimer = null;
+	private volatile boolean running = true;
+
+	/**
+	 * @param queue
+	 *            queue to claim the tasks from
+	 * @param source
+	 *            opens the input for a task key
+	 * @param permits
+	 *            limits the worker threads, the tasks are downloaded by up to
+	 *            its maximum number of threads
+	 * @param depth
+	 *            number of tasks to hold per permit
+	 * @param batchSize
+	 *            number of tasks to claim with one request
+	 * @param leaseSeconds
+	 *            lease of a task, also the time available to process it
+	 * @param retryLimit
+	 *            tasks received more often are not downloaded, as they will
+	 *            be discarded anyway
+	 */
+	public Prefetcher(JobQueue queue, InputSource source,
+			ConcurrencyController permits, int depth, int batchSize,
+			int leaseSeconds, int retryLimit) {
+		this.queue = queue;
+		this.source = source;
+		this.permits = permits;
+		this.depth = Math.max(1, depth);
+		this.batchSize = Math.max(1, batchSize);
+		this.leaseSeconds = leaseSeconds;
+		this.retryLimit = retryLimit;
+	}
+
+	private synchronized void start() {
+		if (fetchThreads != null) {
+			return;
+		}
+		fetchThreads = new ArrayList<Thread>();
+		for (int i = 0; i < permits.getMaxThreads(); i++) {
+			Thread fetchThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					fetchLoop();
+				}
+			}, "prefetch-" + i);
+			fetchThread.setDaemon(true);
+			fetchThread.start();
+			fetchThreads.add(fetchThread);
+		}
+
+		// renew three times per lease period
+		long period = Math.max(1, leaseSeconds / 3) * 1000L;
+		leaseTimer = new Timer("lease", true);
+		leaseTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				renewLeases();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Returns the next downloaded task. Waits while tasks are claimed or
+	 * downloading, returns null once the queue turned out to be empty. The
+	 * lease of the returned task is reset, so the full time limit is
+	 * available for processing it.
+	 */
+	public Task take() throws InterruptedException {
+		start();
+		while (true) {
+			Task task;
+			synchronized (this) {
+				while (ready.isEmpty()) {
+					if (queueEmpty && downloading.isEmpty()
+							&& claimed.isEmpty()) {
+						return null;
+					}
+					wait(1000);
+				}
+				task = ready.removeFirst();
+				// room for the next download
+				notifyAll();
+			}
+			if (task.getJob() == null) {
+				return task;
+			}
+			try {
+				queue.extendLease(task.getJob(), leaseSeconds);
+				return task;
+			} catch (Exception e) {
+				log.warn("Lost lease of " + task.getJob() + ", skipping it");
+				task.delete();
+			}
+		}
+	}
+
+	private void fetchLoop() {
+		while (running) {
+			try {
+				Job job = claimNext();
+				if (job == null) {
+					Thread.sleep(1000);
+					continue;
+				}
+				Task task = download(job);
+				synchronized (this) {
+					downloading.remove(job);
+					ready.add(task);
+					notifyAll();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// number of tasks to hold, follows the limit of the worker threads
+	private int capacity() {
+		return depth * permits.getLimit();
+	}
+
+	// waits for room in the buffer, then returns the next claimed task
+	private Job claimNext() throws InterruptedException {
+		int room;
+		synchronized (this) {
+			while (running
+					&& (ready.size() + downloading.size() >= capacity() || (claimed
+							.isEmpty() && receiving))) {
+				// the limit may be raised meanwhile
+				wait(1000);
+			}
+			if (!running) {
+				return null;
+			}
+			if (!claimed.isEmpty()) {
+				Job job = claimed.removeFirst();
+				downloading.add(job);
+				return job;
+			}
+			// only one thread requests tasks, all of them fit into the buffer
+			receiving = true;
+			room = capacity() - ready.size() - downloading.size();
+		}
+		List<Job> jobs;
+		StageTimer receiveTimer = Metrics.timer("queue.receive");
+		long start = receiveTimer.start();
+		try {
+			jobs = queue.receive(Math.min(batchSize, room));
+			receiveTimer.stop(start);
+		} catch (Exception e) {
+			// hand the error to a worker thread, which reports it
+			synchronized (this) {
+				receiving = false;
+				ready.add(new Task(null, null, e));
+				notifyAll();
+			}
+			return null;
+		}
+		synchronized (this) {
+			receiving = false;
+			queueEmpty = jobs.isEmpty();
+			claimed.addAll(jobs);
+			Job job = claimed.poll();
+			if (job != null) {
+				downloading.add(job);
+			}
+			notifyAll();
+			return job;
+		}
+	}
+
+	private Task download(Job job) {
+		if (job.getReceiveCount() > retryLimit) {
+			return new Task(job, null, null);
+		}
+		File file = null;
+		try {
+			file = File.createTempFile("dpef-input", ".tmp");
+			file.deleteOnExit();
+			StageTimer downloadTimer = Metrics.timer("download");
+			long start = downloadTimer.start();
+			InputStream in = source.open(job.getKey());
+			// closes the stream
+			FileUtils.copyInputStreamToFile(in, file);
+			downloadTimer.stop(start);
+			Metrics.counter("download.bytes").inc(file.length());
+			return new Task(job, file, null);
+		} catch (Exception e) {
+			if (file != null) {
+				file.delete();
+			}
+			return new Task(job, null, e);
+		}
+	}
+
+	private void renewLeases() {
+		List<Job> waiting = new ArrayList<Job>();
+		synchronized (this) {
+			waiting.addAll(claimed);
+			waiting.addAll(downloading);
+			for (Task task : ready) {
+				if (task.getJob() != null) {
+					waiting.add(task.getJob());
+				}
+			}
+		}
+		for (Job job : waiting) {
+			try {
+				queue.extendLease(job, leaseSeconds);
+			} catch (Exception e) {
+				log.warn("Unable to renew lease of " + job);
+			}
+		}
+	}
+
+	/**
+	 * Stops prefetching and returns all tasks which were not handed out to the
+	 * queue.
+	 */
+	public void close() {
+		running = false;
+		List<Job> waiting = new ArrayList<Job>();
+		synchronized (this) {
+			if (fetchThreads != null) {
+				for (Thread fetchThread : fetchThreads) {
+					fetchThread.interrupt();
+				}
+				leaseTimer.cancel();
+			}
+			waiting.addAll(claimed);
+			claimed.clear();
+			Iterator<Task> it = ready.iterator();
+			while (it.hasNext()) {
+				Task task = it.next();
+				task.delete();
+				if (task.getJob() != null) {
+					waiting.add(task.getJob());
+				}
+				it.remove();
+			}
+			notifyAll();
+		}
+		for (Job job : waiting) {
+			try {
+				queue.nack(job);
+			} catch (Exception e) {
+				log.warn("Unable to return " + job + " to the queue");
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * {@link JobQueue} backed by a RabbitMQ queue. The server pushes up to
+ * "prefetch" unacknowledged messages to a consumer of this queue, which keeps
+ * them in a local buffer until a worker thread receives them, so a worker
+ * does not wait for a round trip to the server when it needs the next task.
+ * Unacknowledged messages stay with the channel until they are acked or the
+ * channel is closed, so there is no lease to extend.
+ *
+ * One instance is meant to be shared by all worker threads of a JVM, as the
+ * messages of the buffer can only be acknowledged on the channel which
+ * received them.
+ *
+ * RabbitMQ does not count the deliveries of a message, it only flags it as
+ * redelivered. To count them, a task given back with {@link #nack(Job)} is
+ * published again with the number of times it was received so far in the
+ * header "x-receive-count", and the received message is acknowledged.
+ * Messages redelivered without a nack, e.g. as a worker died, count once
+ * more, or as often as the "x-delivery-count" header of quorum queues says.
+ *
+ */
+public class RabbitMQJobQueue implements JobQueue {
+
+	private static Logger log = Logger.getLogger(RabbitMQJobQueue.class);
+
+	private static final String RECEIVE_COUNT = "x-receive-count";
+	private static final String DELIVERY_COUNT = "x-delivery-count";
+
+	/**
+	 * Returns the open connection to the queue server.
+	 */
+	public interface ConnectionSource {
+		public Connection get() throws IOException;
+	}
+
+	// handle of a received message, its delivery tag is only valid on the
+	// channel which received it
+	private static class Delivery {
+		private final Channel channel;
+		private final long tag;
+
+		private Delivery(Channel channel, long tag) {
+			this.channel = channel;
+			this.tag = tag;
+		}
+	}
+
+	private ConnectionSource connections;
+	private String queueName;
+	private int prefetch;
+	private int waitSeconds;
+	private Channel channel = null;
+	// messages pushed by the server, not yet received by a worker
+	private LinkedBlockingQueue<Job> buffer = new LinkedBlockingQueue<Job>();
+
+	/**
+	 * @param prefetch
+	 *            maximum number of unacknowledged messages the server pushes
+	 * @param waitSeconds
+	 *            time {@link #receive(int)} waits for a message if the buffer
+	 *            is empty
+	 */
+	public RabbitMQJobQueue(ConnectionSource connections, String queueName,
+			int prefetch, int waitSeconds) {
+		this.connections = connections;
+		this.queueName = queueName;
+		this.prefetch = Math.max(1, prefetch);
+		this.waitSeconds = waitSeconds;
+	}
+
+	// channels are not thread safe, all access goes through synchronized
+	// methods
+	private synchronized Channel getChannel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			// the buffered messages went back to the queue with the channel
+			buffer.clear();
+			final Channel newChannel = connections.get().createChannel();
+			newChannel.basicQos(prefetch);
+			newChannel.basicConsume(queueName, false, new DefaultConsumer(
+					newChannel) {
+				@Override
+				public void handleDelivery(String consumerTag,
+						Envelope envelope, AMQP.BasicProperties properties,
+						byte[] body) throws IOException {
+					buffer.add(new Job(new String(body, "UTF-8"),
+							new Delivery(newChannel, envelope.getDeliveryTag()),
+							receiveCount(envelope, properties)));
+				}
+			});
+			channel = newChannel;
+		}
+		return channel;
+	}
+
+	/**
+	 * Number of times the message was received, including this time.
+	 */
+	static int receiveCount(Envelope envelope, AMQP.BasicProperties properties) {
+		Map<String, Object> headers = properties == null ? null : properties
+				.getHeaders();
+		// received before it was given back and published again
+		int before = header(headers, RECEIVE_COUNT);
+		// delivered before without being given back
+		int redelivered = Math.max(header(headers, DELIVERY_COUNT),
+				envelope.isRedeliver() ? 1 : 0);
+		return before + redelivered + 1;
+	}
+
+	private static int header(Map<String, Object> headers, String name) {
+		if (headers == null) {
+			return 0;
+		}
+		Object value = headers.get(name);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.toString());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid header " + name + ": " + value);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public List<Job> receive(int maxJobs) throws IOException {
+		getChannel();
+		List<Job> jobs = new ArrayList<Job>();
+		try {
+			// wait outside of the lock, so others can acknowledge meanwhile
+			Job job = buffer.poll(waitSeconds, TimeUnit.SECONDS);
+			if (job == null) {
+				return jobs;
+			}
+			jobs.add(job);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return jobs;
+		}
+		buffer.drainTo(jobs, Math.max(1, maxJobs) - 1);
+		return jobs;
+	}
+
+	@Override
+	public synchronized void ack(Job job) throws IOException {
+		Delivery delivery = (Delivery) job.getHandle();
+		if (isCurrent(delivery, job)) {
+			delivery.channel.basicAck(delivery.tag, false);
+		}
+	}
+
+	/**
+	 * Publishes the task again with its receive count and acknowledges the
+	 * received message, see class comment.
+	 */
+	@Override
+	public synchronized void nack(Job job) throws IOException {
+		Delivery delivery = (Delivery) job.getHandle();
+		if (isCurrent(delivery, job)) {
+			Map<String, Object> headers = new HashMap<String, Object>();
+			headers.put(RECEIVE_COUNT, job.getReceiveCount());
+			delivery.channel.basicPublish("", queueName,
+					MessageProperties.PERSISTENT_BASIC.builder()
+							.headers(headers).build(),
+					job.getBody().getBytes("UTF-8"));
+			delivery.channel.basicAck(delivery.tag, false);
+		}
+	}
+
+	private boolean isCurrent(Delivery delivery, Job job) {
+		if (delivery.channel != channel || !channel.isOpen()) {
+			log.warn("Channel of " + job
+					+ " was closed, the server hands it out again");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void extendLease(Job job, int seconds) {
+		// nothing to do, see class comment
+	}
+
+	@Override
+	public synchronized void send(List<String> bodies) throws IOException {
+		for (String body : bodies) {
+			getChannel().basicPublish("", queueName,
+					MessageProperties.PERSISTENT_BASIC, body.getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * Closes the channel of this queue, the unacknowledged messages go back
+	 * to the queue. The shared connection stays open.
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			if (channel != null && channel.isOpen()) {
+				channel.close();
+			}
+		} catch (Exception e) {
+			log.warn("Unable to close channel to queue server", e);
+		}
+		channel = null;
+		buffer.clear();
+	}
+}
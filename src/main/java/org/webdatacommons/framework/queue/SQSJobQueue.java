@@ -0,0 +1,96 @@
+package org.webdatacommons.framework.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+
+/**
+ * {@link JobQueue} backed by the Amazon SQS. The lease of a task is the
+ * visibility timeout of its message.
+ * 
+ */
+public class SQSJobQueue implements JobQueue {
+
+	// SQS does not return or accept more than 10 messages per request
+	private static final int MAX_BATCH_SIZE = 10;
+
+	private AmazonSQS sqs;
+	private String queueUrl;
+
+	public SQSJobQueue(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+
+	@Override
+	public List<Job> receive(int maxJobs) {
+		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(
+				queueUrl).withAttributeNames("ApproximateReceiveCount");
+		receiveMessageRequest.setMaxNumberOfMessages(Math.max(1,
+				Math.min(maxJobs, MAX_BATCH_SIZE)));
+		ReceiveMessageResult queueRes = sqs.receiveMessage(receiveMessageRequest);
+
+		List<Job> jobs = new ArrayList<Job>(queueRes.getMessages().size());
+		for (Message message : queueRes.getMessages()) {
+			int receiveCount = 1;
+			String count = message.getAttributes().get(
+					"ApproximateReceiveCount");
+			if (count != null) {
+				receiveCount = Integer.parseInt(count);
+			}
+			jobs.add(new Job(message.getBody(), message.getReceiptHandle(),
+					receiveCount));
+		}
+		return jobs;
+	}
+
+	@Override
+	public void ack(Job job) {
+		sqs.deleteMessage(new DeleteMessageRequest(queueUrl, (String) job
+				.getHandle()));
+	}
+
+	@Override
+	public void nack(Job job) {
+		extendLease(job, 0);
+	}
+
+	@Override
+	public void extendLease(Job job, int seconds) {
+		sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(
+				queueUrl, (String) job.getHandle(), seconds));
+	}
+
+	@Override
+	public void send(List<String> bodies) {
+		SendMessageBatchRequest smbr = new SendMessageBatchRequest(queueUrl);
+		smbr.setEntries(new ArrayList<SendMessageBatchRequestEntry>());
+		int id = 0;
+		for (String body : bodies) {
+			SendMessageBatchRequestEntry smbre = new SendMessageBatchRequestEntry();
+			smbre.setMessageBody(body);
+			smbre.setId("task_" + id++);
+			smbr.getEntries().add(smbre);
+			if (smbr.getEntries().size() >= MAX_BATCH_SIZE) {
+				sqs.sendMessageBatch(smbr);
+				smbr.setEntries(new ArrayList<SendMessageBatchRequestEntry>());
+			}
+		}
+		if (smbr.getEntries().size() > 0) {
+			sqs.sendMessageBatch(smbr);
+		}
+	}
+
+	@Override
+	public void close() {
+		// the client is owned by the processing node
+	}
+}
@@ -0,0 +1,177 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.model.UpdateCondition;
+
+/**
+ * {@link TaskLedger} in a SimpleDB domain, shared by the master and all
+ * workers. There is one item per task, named by its key. Only the first copy
+ * of a task can set the "finished" attribute, this is ensured with a
+ * conditional put.
+ *
+ */
+public class SimpleDBTaskLedger implements TaskLedger {
+
+	private static final String SIZE = "size";
+	private static final String STARTED = "started";
+	private static final String FINISHED = "finished";
+	private static final String NODE = "node";
+	private static final String FINISHED_BY = "finishedBy";
+	private static final String REISSUED = "reissued";
+
+	// SimpleDB returns at most 2500 items per select
+	private static final int SAMPLE_SIZE = 2500;
+
+	private AmazonSimpleDBClient client;
+	private String domain;
+
+	public SimpleDBTaskLedger(AmazonSimpleDBClient client, String domain) {
+		this.client = client;
+		this.domain = domain;
+		if (!client.listDomains().getDomainNames().contains(domain)) {
+			client.createDomain(new CreateDomainRequest(domain));
+		}
+	}
+
+	@Override
+	public void start(String key, long size, String node) throws IOException {
+		try {
+			client.putAttributes(new PutAttributesRequest(domain, key, Arrays
+					.asList(new ReplaceableAttribute(SIZE, Long
+							.toString(size), true), new ReplaceableAttribute(
+							STARTED, Long.toString(System.currentTimeMillis()),
+							true), new ReplaceableAttribute(NODE, node, true))));
+		} catch (AmazonServiceException e) {
+			throw new IOException("Unable to record start of " + key, e);
+		}
+	}
+
+	@Override
+	public boolean finish(String key, String node) throws IOException {
+		try {
+			client.putAttributes(new PutAttributesRequest(domain, key, Arrays
+					.asList(new ReplaceableAttribute(FINISHED, Long
+							.toString(System.currentTimeMillis()), true),
+							new ReplaceableAttribute(FINISHED_BY, node, true)),
+					new UpdateCondition(FINISHED, null, false)));
+			return true;
+		} catch (AmazonServiceException e) {
+			if ("ConditionalCheckFailed".equals(e.getErrorCode())) {
+				return false;
+			}
+			throw new IOException("Unable to record end of " + key, e);
+		}
+	}
+
+	/**
+	 * Removes the start of the task, unless another node started it since.
+	 */
+	@Override
+	public void stop(String key, String node) throws IOException {
+		try {
+			client.deleteAttributes(new DeleteAttributesRequest(domain, key,
+					Arrays.asList(new Attribute().withName(STARTED),
+							new Attribute().withName(NODE)),
+					new UpdateCondition(NODE, node, true)));
+		} catch (AmazonServiceException e) {
+			if ("ConditionalCheckFailed".equals(e.getErrorCode())
+					|| "AttributeDoesNotExist".equals(e.getErrorCode())) {
+				return;
+			}
+			throw new IOException("Unable to record stop of " + key, e);
+		}
+	}
+
+	@Override
+	public boolean isFinished(String key) throws IOException {
+		try {
+			GetAttributesResult res = client
+					.getAttributes(new GetAttributesRequest(domain, key)
+							.withAttributeNames(FINISHED).withConsistentRead(
+									true));
+			return !res.getAttributes().isEmpty();
+		} catch (AmazonServiceException e) {
+			throw new IOException("Unable to get state of " + key, e);
+		}
+	}
+
+	@Override
+	public void markReissued(String key) throws IOException {
+		try {
+			client.putAttributes(new PutAttributesRequest(domain, key, Arrays
+					.asList(new ReplaceableAttribute(REISSUED, "true", true))));
+		} catch (AmazonServiceException e) {
+			throw new IOException("Unable to record reissue of " + key, e);
+		}
+	}
+
+	@Override
+	public List<Entry> getRunning() throws IOException {
+		return select("select * from `" + domain
+				+ "` where started is not null and finished is null", true);
+	}
+
+	@Override
+	public List<Entry> getFinished() throws IOException {
+		return select("select * from `" + domain
+				+ "` where finished is not null limit " + SAMPLE_SIZE, false);
+	}
+
+	private List<Entry> select(String expression, boolean allPages)
+			throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		String nextToken = null;
+		try {
+			do {
+				SelectResult res = client.select(new SelectRequest(expression)
+						.withNextToken(nextToken));
+				for (Item item : res.getItems()) {
+					entries.add(toEntry(item));
+				}
+				nextToken = res.getNextToken();
+			} while (allPages && nextToken != null);
+		} catch (AmazonServiceException e) {
+			throw new IOException("Unable to read task ledger " + domain, e);
+		}
+		return entries;
+	}
+
+	private static Entry toEntry(Item item) {
+		long size = -1;
+		long started = 0;
+		long finished = 0;
+		boolean reissued = false;
+		for (Attribute a : item.getAttributes()) {
+			try {
+				if (SIZE.equals(a.getName())) {
+					size = Long.parseLong(a.getValue());
+				} else if (STARTED.equals(a.getName())) {
+					started = Long.parseLong(a.getValue());
+				} else if (FINISHED.equals(a.getName())) {
+					finished = Long.parseLong(a.getValue());
+				} else if (REISSUED.equals(a.getName())) {
+					reissued = true;
+				}
+			} catch (NumberFormatException e) {
+				// leave the default
+			}
+		}
+		return new Entry(item.getName(), size, started, finished, reissued);
+	}
+}
@@ -0,0 +1,80 @@
+package org.webdatacommons.framework.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.webdatacommons.framework.queue.TaskLedger.Entry;
+
+/**
+ * Finds running tasks which take much longer than expected for the size of
+ * their input. The expected time is the size divided by the median throughput
+ * (bytes per millisecond) of the finished tasks, or the median duration of the
+ * finished tasks if the size is unknown. A task is a straggler if it runs more
+ * than "factor" times the expected time and at least the minimum time, and was
+ * not queued a second time already.
+ *
+ */
+public class StragglerDetector {
+
+	private double factor;
+	private long minMillis;
+	private int minFinished;
+
+	/**
+	 * @param factor
+	 *            how many times longer than expected a straggler runs
+	 * @param minMillis
+	 *            minimum time a straggler runs
+	 * @param minFinished
+	 *            number of finished tasks needed for an estimate
+	 */
+	public StragglerDetector(double factor, long minMillis, int minFinished) {
+		this.factor = factor;
+		this.minMillis = minMillis;
+		this.minFinished = Math.max(1, minFinished);
+	}
+
+	public List<Entry> find(List<Entry> finished, List<Entry> running, long now) {
+		List<Double> throughputs = new ArrayList<Double>();
+		List<Double> durations = new ArrayList<Double>();
+		for (Entry entry : finished) {
+			long duration = entry.getFinished() - entry.getStarted();
+			if (entry.getStarted() <= 0 || duration <= 0) {
+				continue;
+			}
+			durations.add((double) duration);
+			if (entry.getSize() > 0) {
+				throughputs.add(entry.getSize() / (double) duration);
+			}
+		}
+		List<Entry> stragglers = new ArrayList<Entry>();
+		if (durations.size() < minFinished) {
+			return stragglers;
+		}
+		double throughput = median(throughputs);
+		double duration = median(durations);
+		for (Entry entry : running) {
+			if (entry.isReissued() || entry.getStarted() <= 0) {
+				continue;
+			}
+			double expected = duration;
+			if (entry.getSize() > 0 && throughput > 0) {
+				expected = entry.getSize() / throughput;
+			}
+			long elapsed = now - entry.getStarted();
+			if (elapsed > minMillis && elapsed > factor * expected) {
+				stragglers.add(entry);
+			}
+		}
+		return stragglers;
+	}
+
+	private static double median(List<Double> values) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		Collections.sort(values);
+		return values.get(values.size() / 2);
+	}
+}
@@ -0,0 +1,102 @@
+package org.webdatacommons.framework.queue;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Records when the tasks of a run were started and finished, and by which
+ * worker. The master uses it to find stragglers and queue a second copy of
+ * them, see {@link StragglerDetector}. Of the copies of a task, only the first
+ * one to finish counts: {@link #finish(String, String)} returns false for the
+ * others, so their statistics are not written twice.
+ *
+ */
+public interface TaskLedger {
+
+	/**
+	 * State of a task in the ledger, times are in milliseconds since the
+	 * epoch, 0 if not set.
+	 */
+	public static class Entry {
+		private final String key;
+		private final long size;
+		private final long started;
+		private final long finished;
+		private final boolean reissued;
+
+		public Entry(String key, long size, long started, long finished,
+				boolean reissued) {
+			this.key = key;
+			this.size = size;
+			this.started = started;
+			this.finished = finished;
+			this.reissued = reissued;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the size of the input file in bytes, -1 if unknown
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public long getStarted() {
+			return started;
+		}
+
+		public long getFinished() {
+			return finished;
+		}
+
+		/**
+		 * @return true if a second copy of the task was queued
+		 */
+		public boolean isReissued() {
+			return reissued;
+		}
+
+		@Override
+		public String toString() {
+			return key;
+		}
+	}
+
+	/**
+	 * Records that a worker started the task, replacing an earlier start.
+	 */
+	public void start(String key, long size, String node) throws IOException;
+
+	/**
+	 * Records that a worker finished the task.
+	 *
+	 * @return true if this is the first copy of the task which finished
+	 */
+	public boolean finish(String key, String node) throws IOException;
+
+	/**
+	 * Records that a worker gave up the task, as it failed or was discarded.
+	 * The task is not running anymore until it is started again.
+	 */
+	public void stop(String key, String node) throws IOException;
+
+	public boolean isFinished(String key) throws IOException;
+
+	/**
+	 * Records that a second copy of the task was queued.
+	 */
+	public void markReissued(String key) throws IOException;
+
+	/**
+	 * @return the tasks which were started but are not finished
+	 */
+	public List<Entry> getRunning() throws IOException;
+
+	/**
+	 * @return finished tasks, possibly only a sample of them
+	 */
+	public List<Entry> getFinished() throws IOException;
+}
@@ -0,0 +1,126 @@
+package org.webdatacommons.framework.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * {@link ObjectStore} in a local directory, the objects are stored in
+ * "directory/bucket/key". Streams are written in parts like on S3, the parts
+ * are joined when the stream is closed. Used for testing and for running the
+ * processing on a single machine.
+ *
+ */
+public class LocalObjectStore implements ObjectStore {
+
+	private File directory;
+	private int partSize;
+	private int maxPendingParts;
+
+	public LocalObjectStore(File directory, int partSize, int maxPendingParts) {
+		this.directory = directory;
+		this.partSize = partSize;
+		this.maxPendingParts = maxPendingParts;
+	}
+
+	public File getFile(String bucket, String key) {
+		return new File(new File(directory, bucket), key);
+	}
+
+	@Override
+	public InputStream get(String bucket, String key) throws IOException {
+		return new FileInputStream(getFile(bucket, key));
+	}
+
+	@Override
+	public InputStream get(String bucket, String key, long offset, long length)
+			throws IOException {
+		FileInputStream in = new FileInputStream(getFile(bucket, key));
+		in.getChannel().position(offset);
+		return length < 0 ? in : new BoundedInputStream(in, length);
+	}
+
+	@Override
+	public long size(String bucket, String key) throws IOException {
+		File file = getFile(bucket, key);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(file.toString());
+		}
+		return file.length();
+	}
+
+	@Override
+	public void put(String bucket, String key, File file) throws IOException {
+		FileUtils.copyFile(file, getFile(bucket, key));
+	}
+
+	@Override
+	public boolean exists(String bucket, String key) {
+		return getFile(bucket, key).isFile();
+	}
+
+	@Override
+	public void delete(String bucket, String key) {
+		getFile(bucket, key).delete();
+	}
+
+	@Override
+	public StreamingUploadOutputStream create(String bucket, String key)
+			throws IOException {
+		final File target = getFile(bucket, key);
+		target.getParentFile().mkdirs();
+		return new StreamingUploadOutputStream(
+				new StreamingUploadOutputStream.PartSink() {
+
+					// highest part number written so far
+					private int maxPart = 0;
+
+					private File partFile(int partNumber) {
+						return new File(target.getPath() + ".part" + partNumber);
+					}
+
+					@Override
+					public void uploadPart(int partNumber, byte[] data,
+							int length, boolean last) throws IOException {
+						synchronized (this) {
+							maxPart = Math.max(maxPart, partNumber);
+						}
+						OutputStream out = new FileOutputStream(
+								partFile(partNumber));
+						try {
+							out.write(data, 0, length);
+						} finally {
+							out.close();
+						}
+					}
+
+					@Override
+					public void complete(int parts) throws IOException {
+						OutputStream out = new FileOutputStream(target);
+						try {
+							for (int i = 1; i <= parts; i++) {
+								FileUtils.copyFile(partFile(i), out);
+							}
+						} finally {
+							out.close();
+						}
+						abort();
+					}
+
+					@Override
+					public synchronized void abort() {
+						for (int i = 1; i <= maxPart; i++) {
+							partFile(i).delete();
+						}
+					}
+				}, partSize, maxPendingParts);
+	}
+
+}
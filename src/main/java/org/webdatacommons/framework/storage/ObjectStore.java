@@ -0,0 +1,55 @@
+package org.webdatacommons.framework.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Store for the input and output files of the processing, organized in
+ * buckets of objects identified by a key. Implemented for S3 and for a local
+ * directory, which can be used for testing and single machine runs.
+ *
+ */
+public interface ObjectStore {
+
+	/**
+	 * Opens the object for reading.
+	 */
+	public InputStream get(String bucket, String key) throws IOException;
+
+	/**
+	 * Opens a range of the object for reading.
+	 *
+	 * @param length
+	 *            number of bytes to read, -1 to read up to the end
+	 */
+	public InputStream get(String bucket, String key, long offset, long length)
+			throws IOException;
+
+	/**
+	 * @return the size of the object in bytes
+	 */
+	public long size(String bucket, String key) throws IOException;
+
+	/**
+	 * Stores a local file as object.
+	 */
+	public void put(String bucket, String key, File file) throws IOException;
+
+	public boolean exists(String bucket, String key) throws IOException;
+
+	/**
+	 * Deletes the object, does nothing if it does not exist.
+	 */
+	public void delete(String bucket, String key) throws IOException;
+
+	/**
+	 * Creates an object by writing to the returned stream. The data is
+	 * uploaded in parts while it is written, the object exists after the
+	 * stream is closed. {@link StreamingUploadOutputStream#abort()} discards
+	 * the data written so far.
+	 */
+	public StreamingUploadOutputStream create(String bucket, String key)
+			throws IOException;
+
+}
@@ -0,0 +1,187 @@
+package org.webdatacommons.framework.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * {@link ObjectStore} on Amazon S3. Streams are uploaded as multipart upload,
+ * outputs which fit into a single part are stored with one put request.
+ *
+ */
+public class S3ObjectStore implements ObjectStore {
+
+	private static Logger log = Logger.getLogger(S3ObjectStore.class);
+
+	// S3 does not accept smaller parts, except for the last one
+	public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	private RestS3Service s3;
+	private int partSize;
+	private int maxPendingParts;
+
+	public S3ObjectStore(RestS3Service s3, int partSize, int maxPendingParts) {
+		this.s3 = s3;
+		this.partSize = Math.max(partSize, MIN_PART_SIZE);
+		this.maxPendingParts = maxPendingParts;
+	}
+
+	@Override
+	public InputStream get(String bucket, String key) throws IOException {
+		try {
+			return s3.getObject(bucket, key).getDataInputStream();
+		} catch (ServiceException e) {
+			throw new IOException("Unable to get " + bucket + "/" + key, e);
+		}
+	}
+
+	@Override
+	public InputStream get(String bucket, String key, long offset, long length)
+			throws IOException {
+		try {
+			return s3.getObject(bucket, key, null, null, null, null, offset,
+					length < 0 ? null : offset + length - 1)
+					.getDataInputStream();
+		} catch (ServiceException e) {
+			throw new IOException("Unable to get " + bucket + "/" + key
+					+ " from " + offset, e);
+		}
+	}
+
+	@Override
+	public long size(String bucket, String key) throws IOException {
+		try {
+			return s3.getObjectDetails(bucket, key).getContentLength();
+		} catch (ServiceException e) {
+			throw new IOException("Unable to get size of " + bucket + "/"
+					+ key, e);
+		}
+	}
+
+	@Override
+	public void put(String bucket, String key, File file) throws IOException {
+		try {
+			S3Object object = new S3Object(file);
+			object.setKey(key);
+			s3.putObject(bucket, object);
+		} catch (Exception e) {
+			throw new IOException("Unable to put " + bucket + "/" + key, e);
+		}
+	}
+
+	@Override
+	public boolean exists(String bucket, String key) throws IOException {
+		try {
+			return s3.isObjectInBucket(bucket, key);
+		} catch (ServiceException e) {
+			throw new IOException("Unable to check " + bucket + "/" + key, e);
+		}
+	}
+
+	@Override
+	public void delete(String bucket, String key) throws IOException {
+		try {
+			s3.deleteObject(bucket, key);
+		} catch (ServiceException e) {
+			throw new IOException("Unable to delete " + bucket + "/" + key, e);
+		}
+	}
+
+	@Override
+	public StreamingUploadOutputStream create(String bucket, String key)
+			throws IOException {
+		return new StreamingUploadOutputStream(new MultipartSink(bucket, key),
+				partSize, maxPendingParts);
+	}
+
+	/**
+	 * Uploads the parts of a stream. The multipart upload is only started
+	 * with the first part which is not also the last one.
+	 */
+	private class MultipartSink implements StreamingUploadOutputStream.PartSink {
+
+		private String bucket;
+		private String key;
+		private MultipartUpload upload = null;
+		private List<MultipartPart> parts = new ArrayList<MultipartPart>();
+
+		private MultipartSink(String bucket, String key) {
+			this.bucket = bucket;
+			this.key = key;
+		}
+
+		private synchronized MultipartUpload getUpload() throws ServiceException {
+			if (upload == null) {
+				upload = s3.multipartStartUpload(bucket, key, null);
+			}
+			return upload;
+		}
+
+		@Override
+		public void uploadPart(int partNumber, byte[] data, int length,
+				boolean last) throws IOException {
+			S3Object object = new S3Object(key);
+			object.setDataInputStream(new ByteArrayInputStream(data, 0, length));
+			object.setContentLength(length);
+			try {
+				if (partNumber == 1 && last) {
+					s3.putObject(bucket, object);
+					return;
+				}
+				MultipartPart part = s3.multipartUploadPart(getUpload(),
+						partNumber, object);
+				synchronized (parts) {
+					parts.add(part);
+				}
+			} catch (ServiceException e) {
+				throw new IOException("Unable to upload part " + partNumber
+						+ " of " + bucket + "/" + key, e);
+			}
+		}
+
+		@Override
+		public void complete(int partCount) throws IOException {
+			if (upload == null) {
+				// stored with a single put
+				return;
+			}
+			Collections.sort(parts, new Comparator<MultipartPart>() {
+				@Override
+				public int compare(MultipartPart a, MultipartPart b) {
+					return a.getPartNumber().compareTo(b.getPartNumber());
+				}
+			});
+			try {
+				s3.multipartCompleteUpload(upload, parts);
+			} catch (ServiceException e) {
+				throw new IOException("Unable to complete upload of " + bucket
+						+ "/" + key, e);
+			}
+		}
+
+		@Override
+		public synchronized void abort() {
+			if (upload == null) {
+				return;
+			}
+			try {
+				s3.multipartAbortUpload(upload);
+			} catch (ServiceException e) {
+				log.warn("Unable to abort upload of " + bucket + "/" + key, e);
+			}
+		}
+	}
+
+}
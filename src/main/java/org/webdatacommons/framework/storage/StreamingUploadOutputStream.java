@@ -0,0 +1,214 @@
+package org.webdatacommons.framework.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+
+/**
+ * Output stream which collects the written data in parts of a fixed size and
+ * hands every full part to a {@link PartSink} on a background thread, so the
+ * upload of the output overlaps with its production. At most "maxPendingParts"
+ * parts are uploaded at the same time, if more parts are full, writing blocks
+ * until an upload finished. This bounds the memory used to
+ * (maxPendingParts + 1) * partSize.
+ *
+ * The upload is completed by {@link #close()}, which waits for all parts. If
+ * the data should not be stored, {@link #abort()} discards all parts instead.
+ *
+ */
+public class StreamingUploadOutputStream extends OutputStream {
+
+	private static Logger log = Logger
+			.getLogger(StreamingUploadOutputStream.class);
+
+	/**
+	 * Receives the parts of an upload. Parts are numbered starting with 1 and
+	 * can be uploaded concurrently and out of order.
+	 */
+	public interface PartSink {
+		/**
+		 * Stores one part. The last part is flagged, it can be shorter than
+		 * the others or even empty if no data was written at all.
+		 */
+		public void uploadPart(int partNumber, byte[] data, int length,
+				boolean last) throws IOException;
+
+		/**
+		 * Called after all parts were stored.
+		 */
+		public void complete(int parts) throws IOException;
+
+		/**
+		 * Discards all stored parts.
+		 */
+		public void abort();
+	}
+
+	// threads uploading the parts, shared by all streams of the JVM
+	private static ExecutorService uploadThreads = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "part-upload");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private PartSink sink;
+	private int partSize;
+	private int maxPendingParts;
+	private Semaphore pending;
+	private AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	private byte[] buffer;
+	private int position = 0;
+	private int partNumber = 0;
+	private boolean closed = false;
+	private boolean completed = false;
+	private boolean aborted = false;
+
+	public StreamingUploadOutputStream(PartSink sink, int partSize,
+			int maxPendingParts) {
+		this.sink = sink;
+		this.partSize = partSize;
+		this.maxPendingParts = maxPendingParts;
+		this.pending = new Semaphore(maxPendingParts);
+		this.buffer = new byte[partSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (position == partSize) {
+			sendPart(false);
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (position == partSize) {
+				sendPart(false);
+			}
+			int n = Math.min(len, partSize - position);
+			System.arraycopy(b, off, buffer, position, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Hands the current buffer to an upload thread and starts a new one. The
+	 * last part is only sent on close, so the sink knows which part is the
+	 * last.
+	 */
+	private void sendPart(final boolean last) throws IOException {
+		checkOpen();
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for upload", e);
+		}
+		final byte[] data = buffer;
+		final int length = position;
+		final int number = ++partNumber;
+		uploadThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (failure.get() == null) {
+						StageTimer timer = Metrics.timer("upload");
+						long start = timer.start();
+						sink.uploadPart(number, data, length, last);
+						timer.stop(start);
+						Metrics.counter("upload.bytes").inc(length);
+					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					pending.release();
+				}
+			}
+		});
+		if (!last) {
+			buffer = new byte[partSize];
+			position = 0;
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		if (failure.get() != null) {
+			throw new IOException("Upload of part failed", failure.get());
+		}
+	}
+
+	/**
+	 * Waits until all parts which are sent are uploaded.
+	 */
+	private void awaitParts() throws IOException {
+		try {
+			pending.acquire(maxPendingParts);
+			pending.release(maxPendingParts);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for upload", e);
+		}
+	}
+
+	/**
+	 * Uploads the remaining data and completes the upload.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			sendPart(true);
+			awaitParts();
+			if (failure.get() != null) {
+				throw new IOException("Upload of part failed", failure.get());
+			}
+			sink.complete(partNumber);
+			completed = true;
+		} catch (IOException e) {
+			abort();
+			throw e;
+		} finally {
+			closed = true;
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Discards the upload, no object is created. Does nothing if the upload
+	 * was already completed or aborted.
+	 */
+	public void abort() {
+		if (completed || aborted) {
+			return;
+		}
+		aborted = true;
+		closed = true;
+		buffer = null;
+		try {
+			awaitParts();
+		} catch (IOException e) {
+			log.warn("Interrupted while aborting upload");
+		}
+		sink.abort();
+	}
+
+}
@@ -3,35 +3,40 @@ package org.webdatacommons.hyperlinkgraph.processor;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
-import org.archive.io.ArchiveRecord;
-import org.archive.io.ArchiveRecordHeader;
-import org.archive.io.warc.WARCReader;
-import org.archive.io.warc.WARCReaderFactory;
-import org.archive.io.warc.WARCRecord;
-import org.jets3t.service.model.S3Object;
+import org.jwat.common.HeaderLine;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
 import org.webdatacommons.cc.wat.json.WatJsonReader;
 import org.webdatacommons.cc.wat.json.model.JsonData;
 import org.webdatacommons.cc.wat.json.model.Link;
+import org.webdatacommons.framework.concurrency.CancellationToken;
 import org.webdatacommons.framework.io.CSVStatHandler;
+import org.webdatacommons.framework.io.ParallelGzipInputStream;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+import org.webdatacommons.framework.metrics.TimedOutputStream;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
 
 public class WatProcessor extends ProcessingNode implements FileProcessor{
 
 	private static Logger log = Logger.getLogger(WatProcessor.class);
 
+	private static final String WARC_TARGET_URI = "WARC-Target-URI";
+
+	private static StageTimer readTimer = Metrics.timer("warc.read");
+	private static StageTimer jsonTimer = Metrics.timer("wat.json");
+
 	@Override
 	public Map<String, String> process(ReadableByteChannel fileChannel,
 			String inputFileKey) throws Exception {
@@ -41,14 +46,14 @@ public class WatProcessor extends ProcessingNode implements FileProcessor{
 				+ inputFileKey.replace("/", "_") + ".csv.gz";
 		CSVStatHandler threehundredHandler = new CSVStatHandler();
 
-		// create an tmp output file for the extracted data
-		File tempOutputFile = File.createTempFile(
-				"cc-hyperlinkgraph-extraction", ".tab.gz");
-		tempOutputFile.deleteOnExit();
+		// the extracted data is uploaded while it is written
 		String outputFileKey = "data/ex_" + inputFileKey.replace("/", "_")
 				+ ".sparse.gz";
+		StreamingUploadOutputStream upload = getObjectStore().create(
+				getOrCry("resultBucket"), outputFileKey);
 		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-				new GZIPOutputStream(new FileOutputStream(tempOutputFile))));
+				new TimedOutputStream(getGzipOutputStream(upload),
+						Metrics.timer("output.compress"))));
 
 		// number of responses in the file
 		long responsesTotal = 0;
@@ -67,115 +72,130 @@ public class WatProcessor extends ProcessingNode implements FileProcessor{
 		// errors
 		long errorTotal = 0;
 
-		final WARCReader reader = (WARCReader) WARCReaderFactory.get(
-				inputFileKey, Channels.newInputStream(fileChannel), true);
-		// iterate over each record in the stream
-		Iterator<ArchiveRecord> readerIt = reader.iterator();
-		while (readerIt.hasNext()) {
-
-			WARCRecord record = (WARCRecord) readerIt.next();
-			BufferedReader br = new BufferedReader(new InputStreamReader(
-					new BufferedInputStream(record)));
-			try {
-				while (br.ready()) {
-
-					// in most cases we will only get the JSON here. The header
-					// is
-					// separated before hand
-					String line = br.readLine();
-					if (line.startsWith("{")) {
-
-						JsonData jd = WatJsonReader.read(line);
-						// check if its an response
-						if (!jd.envelope.warcHeaderMetadata.warcType
-								.equals("response")) {
-							continue;
-						}
+		try {
+			// the members of the file are inflated on several threads
+			final WarcReader reader = WarcReaderFactory
+					.getReaderUncompressed(new ParallelGzipInputStream(
+							Channels.newInputStream(fileChannel), getOrDefault(
+									"inflateThreads", 2)));
+			// stops the file once the task is cancelled
+			CancellationToken token = CancellationToken.current();
+			while (true) {
+				token.checkCancelled();
+				long stageStart = readTimer.start();
+				WarcRecord record = reader.getNextRecord();
+				readTimer.stop(stageStart);
+				if (record == null) {
+					break;
+				}
+				if (record.getPayloadContent() == null) {
+					continue;
+				}
+				String url = getTargetUri(record);
+				BufferedReader br = new BufferedReader(new InputStreamReader(
+						new BufferedInputStream(record.getPayloadContent())));
+				try {
+					String line;
+					// ready() is not reliable while the next block is inflated
+					while ((line = br.readLine()) != null) {
+
+						// in most cases we will only get the JSON here. The header
+						// is
+						// separated before hand
+						if (line.startsWith("{")) {
+
+							stageStart = jsonTimer.start();
+							JsonData jd = WatJsonReader.read(line);
+							jsonTimer.stop(stageStart);
+							// check if its an response
+							if (!jd.envelope.warcHeaderMetadata.warcType
+									.equals("response")) {
+								continue;
+							}
 
-						if (responsesTotal % 1000 == 0) {
-							log.info(responsesTotal + " / " + errorTotal
-									+ " / " + twohundredTotal + " / "
-									+ threehundredTotal + " / " + textTotal
-									+ " / " + linksTotal + " / " + hrefTotal);
-						}
-						responsesTotal++;
-						// check for 200 status - most cases have this as
-						// redirects
-						// are not really common.
-						if (jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status != 200) {
-							// check for 3xx just for stats
-							if (jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status >= 300
-									&& jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status < 400) {
-								threehundredTotal++;
-								ArchiveRecordHeader header = record.getHeader();
-								Map<String, String> threeHundredFile = new HashMap<String, String>();
-								threeHundredFile.put("1uri", header.getUrl());
-								threeHundredFile.put("2json", line);
-								// write statistics
-								threehundredHandler.addStats(header.getUrl(),
-										threeHundredFile);
+							if (responsesTotal % 1000 == 0) {
+								log.info(responsesTotal + " / " + errorTotal
+										+ " / " + twohundredTotal + " / "
+										+ threehundredTotal + " / " + textTotal
+										+ " / " + linksTotal + " / " + hrefTotal);
 							}
-							continue;
-						}
-						twohundredTotal++;
-						// we only want text/html pages
-						if (jd.envelope.payLoadMetadata.httpResponseMetadata.headers.contentType == null
-								|| !jd.envelope.payLoadMetadata.httpResponseMetadata.headers.contentType
-										.startsWith("text/html")) {
-							continue;
-						}
-						textTotal++;
-						// now we go through all links, if there are any
-						if (jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links != null
-								&& jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links.length > 0) {
-							ArchiveRecordHeader header = record.getHeader();
-							StringBuilder sb = new StringBuilder();
-							sb.append(escape(header.getUrl()));
-							for (Link link : jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links) {
-								if (link != null && link.path != null) {
-									// only hrefs
-									if (link.path.indexOf("href") > -1) {
-										sb.append("\t");
-										sb.append(escape(link.url));
-										hrefTotal++;
+							responsesTotal++;
+							// check for 200 status - most cases have this as
+							// redirects
+							// are not really common.
+							if (jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status != 200) {
+								// check for 3xx just for stats
+								if (jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status >= 300
+										&& jd.envelope.payLoadMetadata.httpResponseMetadata.responseMessage.status < 400) {
+									threehundredTotal++;
+									Map<String, String> threeHundredFile = new HashMap<String, String>();
+									threeHundredFile.put("1uri", url);
+									threeHundredFile.put("2json", line);
+									// write statistics
+									threehundredHandler.addStats(url,
+											threeHundredFile);
+								}
+								continue;
+							}
+							twohundredTotal++;
+							// we only want text/html pages
+							if (jd.envelope.payLoadMetadata.httpResponseMetadata.headers.contentType == null
+									|| !jd.envelope.payLoadMetadata.httpResponseMetadata.headers.contentType
+											.startsWith("text/html")) {
+								continue;
+							}
+							textTotal++;
+							// now we go through all links, if there are any
+							if (jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links != null
+									&& jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links.length > 0) {
+								StringBuilder sb = new StringBuilder();
+								sb.append(escape(url));
+								for (Link link : jd.envelope.payLoadMetadata.httpResponseMetadata.htmlMetadata.links) {
+									if (link != null && link.path != null) {
+										// only hrefs
+										if (link.path.indexOf("href") > -1) {
+											sb.append("\t");
+											sb.append(escape(link.url));
+											hrefTotal++;
+										}
+										linksTotal++;
 									}
-									linksTotal++;
 								}
+								sb.append("\n");
+								// write to stream
+								bw.write(sb.toString());
 							}
-							sb.append("\n");
-							// write to stream
-							bw.write(sb.toString());
+							// stop if we found the first
+							break;
 						}
-						// stop if we found the first
-						break;
-					}
 
+					}
+				} catch (Exception ex) {
+					log.error(ex + " in " + inputFileKey + " for record "
+							+ url, ex.fillInStackTrace());
+					ex.printStackTrace();
+					errorTotal++;
+				} finally {
+					br.close();
 				}
-			} catch (Exception ex) {
-				log.error(ex + " in " + inputFileKey + " for record "
-						+ record.getHeader().getUrl(), ex.fillInStackTrace());
-				ex.printStackTrace();
-				errorTotal++;
-			} finally {
-				br.close();
-			}
 
-		}
-		// close the stream
-		bw.close();
-		
-		// check if at least one 200 pages with text was found
-		if (textTotal > 0) {
-			S3Object dataFileObject = new S3Object(tempOutputFile);
-			dataFileObject.setKey(outputFileKey);
-			getStorage().putObject(getOrCry("resultBucket"), dataFileObject);
+			}
+			reader.close();
+			// check if at least one 200 pages with text was found, and complete
+			// or discard the upload
+			if (textTotal > 0) {
+				bw.close();
+			} else {
+				upload.abort();
+			}
+		} catch (Exception e) {
+			upload.abort();
+			throw e;
 		}
 		// check if at least on 3xx page was found
 		if (threehundredTotal > 0) {
-			S3Object statsFileObject = new S3Object(
-					threehundredHandler.getFile());
-			statsFileObject.setKey(outputThreehundredKey);
-			getStorage().putObject(getOrCry("resultBucket"), statsFileObject);
+			getObjectStore().put(getOrCry("resultBucket"),
+					outputThreehundredKey, threehundredHandler.getFile());
 		}
 
 		// runtime and rate calculation
@@ -197,6 +217,11 @@ public class WatProcessor extends ProcessingNode implements FileProcessor{
 		return dataStats;
 	}
 
+	private static String getTargetUri(WarcRecord record) {
+		HeaderLine header = record.getHeader(WARC_TARGET_URI);
+		return header != null ? header.value : null;
+	}
+
 	// urls could contain \n and we need to escape this
 	private static String escape(String input) {
 		if (input != null) {
@@ -24,6 +24,7 @@ import org.archive.io.ArchiveRecordHeader;
 import org.commoncrawl.protocol.shared.ArcFileItem;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.model.S3Object;
+import org.webdatacommons.framework.concurrency.CancellationToken;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
 import org.webdatacommons.structureddata.util.WARCRecordUtils;
@@ -105,8 +106,12 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 
 			long pagesWritten = 0;
 
+			// stops the file once the task is cancelled
+			CancellationToken token = CancellationToken.current();
+
 			// read all entries in the ARC file
 			while (readerIt.hasNext()) {
+				token.checkCancelled();
 
 				ArchiveRecord record = readerIt.next();
 				ArchiveRecordHeader header = record.getHeader();
@@ -29,6 +29,7 @@ import org.archive.io.ArchiveRecordHeader;
 import org.commoncrawl.protocol.shared.ArcFileItem;
 import org.commoncrawl.util.shared.FlexBuffer;
 import org.jets3t.service.model.S3Object;
+import org.webdatacommons.framework.concurrency.CancellationToken;
 import org.webdatacommons.framework.io.CSVStatHandler;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
@@ -123,8 +124,12 @@ public class WarcProcessorOpenstack extends ProcessingNode implements FileProces
 
 			Iterator<ArchiveRecord> readerIt = reader.iterator();
 
+			// stops the file once the task is cancelled
+			CancellationToken token = CancellationToken.current();
+
 			// read all entries in the ARC file
 			while (readerIt.hasNext()) {
+				token.checkCancelled();
 
 				ArchiveRecord record = readerIt.next();
 				ArchiveRecordHeader header = record.getHeader();
@@ -18,30 +18,25 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.jets3t.service.model.S3Object;
+import org.webdatacommons.framework.concurrency.CancellationToken;
+import org.webdatacommons.framework.concurrency.ConcurrencyController;
+import org.webdatacommons.framework.concurrency.Watchdog;
 import org.webdatacommons.framework.io.CSVStatHandler;
+import org.webdatacommons.framework.io.RangedDownloader;
 import org.webdatacommons.framework.io.StatHandler;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
-
-import com.rabbitmq.client.AMQP.Basic;
-import com.rabbitmq.client.AMQP.Basic.Deliver;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.DefaultConsumer;
-import com.rabbitmq.client.GetResponse;
-import com.rabbitmq.client.QueueingConsumer;
+import org.webdatacommons.framework.queue.Job;
 
 /**
  * Worker implementation of the {@link ProcessingNode}, which builds up for each
- * core on the system one thread. Each thread connects to the RabitMQ queuing service and
+ * core on the system one thread. Each thread connects to the RabitMQ queuing service (see
+ * {@link org.webdatacommons.framework.queue.RabbitMQJobQueue}) and
  * requests a file. The file is retrieved, and processed by a Processor which
  * than stores the data back to the blocking storage of the instance. The queue is signalized that the file is
  * done. 
@@ -51,20 +46,14 @@ public class WorkerOpenstack extends ProcessingNode {
 	// the logger
 	private static Logger log = Logger.getLogger(WorkerOpenstack.class);
 
-	//information about the queue
-	private final String queueIP = getOrCry("queueIP");
-	private final String queuePort = getOrCry("queuePort");
-	private final String queueUserName = getOrCry("queueUsername");
-	private final String queuePassword = getOrCry("queuePassword");
-	private final String queueVHost = getOrCry("queueVHost");
-	private final String queueName = getOrCry("queueName"); 
-	
 	// the bucket where to get the data from
 	private final String dataBucket = getOrCry("dataBucket");
 	// the name of the processor class
 	private final String processorClass = getOrCry("processorClass");
 	// maximum limit of retries for a queue
 	private final int retryLimit = Integer.parseInt(getOrCry("jobRetryLimit"));
+	// the processor of this worker, reused for all files
+	private FileProcessor processor = null;
 	// handler for statistics
 	private StatHandler dataStatHandler = null;
 	// handler for errors
@@ -72,7 +61,6 @@ public class WorkerOpenstack extends ProcessingNode {
 
 	// the actual worker thread.
 	public static class WorkerThread extends Thread {
-		private Timer timer = new Timer();
 		int timeLimit = 0;
 
 		public WorkerThread() {
@@ -87,19 +75,22 @@ public class WorkerOpenstack extends ProcessingNode {
 			if (timeLimit < 1) {
 				timeLimit = Integer.parseInt(worker.getOrCry("jobTimeLimit")) * 1000;
 			}
+			// time in milliseconds after which a record is reported as stuck
+			long recordTimeLimit = worker.getOrDefault("recordTimeLimit", 60)
+					* 1000L;
+			ConcurrencyController concurrency = worker
+					.getConcurrencyController();
 			while (true) {
-				// cancel all old timers
+				// wait until this thread may work on a task
+				try {
+					concurrency.acquire();
+				} catch (InterruptedException e) {
+					continue;
+				}
 				boolean success = false;
-				timer = new Timer();
-				// set a new timer killing us after the specified time limit
-				final WorkerThread t = this;
-				timer.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						log.warn("Killing worker thread, timeout expired.");
-						t.interrupt();
-					}
-				}, timeLimit);
+				// cancel the task after the specified time limit
+				CancellationToken token = Watchdog.startTask(timeLimit,
+						recordTimeLimit);
 
 				// start the worker - and let it work
 				try {
@@ -107,10 +98,14 @@ public class WorkerOpenstack extends ProcessingNode {
 				} catch (Exception e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
-				} 
+				} finally {
+					concurrency.release();
+					Watchdog.finishTask(token);
+					// the interrupt of a cancelled task is not for the next one
+					Thread.interrupted();
+				}
 
 				// on failures sleep a bit
-				timer.cancel();
 				if (!success) {
 					try {
 						Thread.sleep(1000);
@@ -128,47 +123,30 @@ public class WorkerOpenstack extends ProcessingNode {
 		File tempOutputFile = null;
 		String inputFileKey = "";
 		CSVStatHandler threehundredHandler = null;
-
-		//connect to the queue server
-		ConnectionFactory factory = new ConnectionFactory();
-		factory.setHost(queueIP);
-		factory.setPort(Integer.parseInt(queuePort));
-		factory.setUsername(queueUserName);
-		factory.setPassword(queuePassword);
-		factory.setVirtualHost(queueVHost);	
-				  
-		Connection connection = factory.newConnection();
-
-		final Channel channel = connection.createChannel();
-
+		Job job = null;
+		boolean acknowledged = false;
 
 		try {
 			// receive task message from queue
-			channel.basicQos(1);
-			System.out.println("The queue contains:"+channel.messageCount(queueName));
-			if (channel.messageCount(queueName) < 1 ){
-				System.out.println("Queue is empty");
+			List<Job> jobs = getJobQueue().receive(1);
+			if (jobs.isEmpty()) {
 				log.warn("Queue is empty");
 				return false;
 			}
-			
-			GetResponse response = channel.basicGet(queueName, false);
-			String message = "no message";
-			if(response == null){
-				System.out.println("No response from the queue");
-				return false;
-			}else{
-				byte[] body = response.getBody();
-				message = new String(body, "UTF-8");
-				
-			}
+			job = jobs.get(0);
+			String message = job.getKey();
 						
 			/**
 			 * messages which went back to the queue more than the amount of
 			 * times defined in the configuration entry "jobRetryLimit" are
 			 * discarded, probably contain nasty data we cannot parse.
-			 * Leave it for now for OpenStack TODO
 			 */
+			if (job.getReceiveCount() > retryLimit) {
+				log.warn("Discarding message " + message);
+				getJobQueue().ack(job);
+				acknowledged = true;
+				return false;
+			}
 
 			/**
 			 * retrieve data file from s3, and unpack it using gzip
@@ -179,19 +157,21 @@ public class WorkerOpenstack extends ProcessingNode {
 			/**
 			 * get file with http request
 			 */
-			ReadableByteChannel gzippedWatFileBC = Channels.newChannel(new URL(getOrCry("commonCrawlPrefix")+inputFileKey).openStream());
-
-			FileProcessor processor = (FileProcessor) Class.forName(
-					processorClass).newInstance();
-			Map<String, String> stats = processor.process(gzippedWatFileBC,
-					inputFileKey);
+			RangedDownloader downloader = getDownloader();
+			InputStream watStream = downloader != null ? downloader.open(
+					RangedDownloader.forUrl(getOrCry("commonCrawlPrefix")),
+					inputFileKey) : new URL(getOrCry("commonCrawlPrefix")
+					+ inputFileKey).openStream();
+			ReadableByteChannel gzippedWatFileBC = Channels.newChannel(watStream);
+
+			Map<String, String> stats = getProcessor().process(
+					gzippedWatFileBC, inputFileKey);
 		
 			log.debug("Finished processing file " + inputFileKey);
 
 			//acknowledge that you received the message so that it can be deleted from the queue
-		    channel.basicAck(response.getEnvelope().getDeliveryTag(), true);
-			channel.close();
-			connection.close();
+			getJobQueue().ack(job);
+			acknowledged = true;
 			return true;
 
 		} catch (Exception e) {
@@ -200,9 +180,19 @@ public class WorkerOpenstack extends ProcessingNode {
 					+ ")");
 			log.debug("Stacktrace", e.fillInStackTrace());
 
+			// the processor may be left in an inconsistent state
+			discardProcessor();
+
 			
 
 		} finally {
+			if (job != null && !acknowledged) {
+				try {
+					getJobQueue().nack(job);
+				} catch (IOException e) {
+					log.warn("Unable to return " + job + " to the queue");
+				}
+			}
 
 			if (tempInputFile != null && tempInputFile.exists()) {
 				tempInputFile.delete();
@@ -225,6 +215,41 @@ public class WorkerOpenstack extends ProcessingNode {
 		return false;
 	}
 
+	@Override
+	protected String getDefaultJobQueueBackend() {
+		return "rabbitmq";
+	}
+
+	/**
+	 * Returns the processor of this worker. It is created from the configured
+	 * "processorClass" and opened on first use, and then reused for all
+	 * following files.
+	 */
+	protected FileProcessor getProcessor() throws Exception {
+		if (processor == null) {
+			FileProcessor newProcessor = (FileProcessor) Class.forName(
+					processorClass).newInstance();
+			newProcessor.open();
+			processor = newProcessor;
+		}
+		return processor;
+	}
+
+	/**
+	 * Closes the processor of this worker, a new one is created for the next
+	 * file.
+	 */
+	protected void discardProcessor() {
+		if (processor != null) {
+			try {
+				processor.close();
+			} catch (Exception e) {
+				log.warn("Unable to close processor", e);
+			}
+			processor = null;
+		}
+	}
+
 	public void storeStreamToFile(InputStream in, File outFile)
 			throws IOException {
 		OutputStream out = new FileOutputStream(outFile);
@@ -244,10 +269,15 @@ public class WorkerOpenstack extends ProcessingNode {
 		return result.toString();
 	}
 
+	/**
+	 * Keeps the worker threads running. It starts as many threads as the
+	 * {@link ConcurrencyController} allows at most, the controller decides how
+	 * many of them work at the same time.
+	 */
 	public static class ThreadGuard extends Thread {
 		private List<Thread> threads = new ArrayList<Thread>();
 		// can set thread limit to one for debugging
-		private int threadLimit = Runtime.getRuntime().availableProcessors();
+		private int threadLimit;
 		//private int threadLimit = 1;
 		
 		private int threadSerial = 0;
@@ -255,8 +285,10 @@ public class WorkerOpenstack extends ProcessingNode {
 
 		private Class<? extends Thread> threadClass;
 
-		public ThreadGuard(Class<? extends Thread> threadClass) {
+		public ThreadGuard(Class<? extends Thread> threadClass,
+				ConcurrencyController concurrency) {
 			this.threadClass = threadClass;
+			this.threadLimit = concurrency.getMaxThreads();
 		}
 
 		public void run() {
@@ -294,7 +326,10 @@ public class WorkerOpenstack extends ProcessingNode {
 	}
 
 	public static void main(String[] args) {
-		new ThreadGuard(WorkerThread.class).start();
+		WorkerOpenstack worker = new WorkerOpenstack();
+		worker.startMetricsServer();
+		new ThreadGuard(WorkerThread.class,
+				worker.getConcurrencyController()).start();
 	}
 
 }
@@ -0,0 +1,52 @@
+package org.webdatacommons.structureddata.extractor;
+
+import java.io.InputStream;
+
+import org.apache.any23.source.DocumentSource;
+import org.webdatacommons.framework.io.ByteSlice;
+
+/**
+ * Any23 {@link DocumentSource} reading a document from a {@link ByteSlice},
+ * without copying it like the
+ * {@link org.apache.any23.source.ByteArrayDocumentSource}.
+ *
+ */
+public class ByteSliceDocumentSource implements DocumentSource {
+
+	private ByteSlice content;
+	private String documentIRI;
+	private String contentType;
+
+	public ByteSliceDocumentSource(ByteSlice content, String documentIRI,
+			String contentType) {
+		this.content = content;
+		this.documentIRI = documentIRI;
+		this.contentType = contentType;
+	}
+
+	@Override
+	public InputStream openInputStream() {
+		return content.openStream();
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getContentLength() {
+		return content.getLength();
+	}
+
+	@Override
+	public String getDocumentIRI() {
+		return documentIRI;
+	}
+
+	@Override
+	public boolean isLocal() {
+		return true;
+	}
+
+}
@@ -0,0 +1,296 @@
+package org.webdatacommons.structureddata.extractor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.webdatacommons.framework.io.ByteSlice;
+
+/**
+ * Runs a set of regex guessers over a document in a single scan. Each
+ * guesser names the literals one of which every match of its pattern starts
+ * with, e.g. "itemscope" and "itemprop" for "(itemscope|itemprop\s*=)". The
+ * literals of all guessers are compiled into one Aho-Corasick automaton which
+ * scans the document once, ignoring the case of ASCII letters. The pattern of
+ * a guesser is only tried where one of its literals occurs, and only until it
+ * matched once, so the patterns never scan the document themselves.
+ *
+ * A guesser matches exactly if {@link Matcher#find()} of its pattern would
+ * find a match, given that the pattern does not look behind its start. The
+ * engine is immutable and can be shared by several threads.
+ *
+ * A document can also be guessed as bytes, without decoding it. Every byte is
+ * then seen as one character, so a non-ASCII character of an UTF-8 document
+ * is seen as several non-ASCII characters. For patterns which only name ASCII
+ * characters, as the guessers of {@link RDFExtractor}, this gives the same
+ * result as the decoded document.
+ *
+ */
+public class GuesserEngine {
+
+	/**
+	 * A named pattern and the literals its matches start with.
+	 */
+	public static class Guesser {
+		private final String name;
+		private final Pattern pattern;
+		private final String[] prefixes;
+
+		public Guesser(String name, Pattern pattern, String... prefixes) {
+			this.name = name;
+			this.pattern = pattern;
+			this.prefixes = prefixes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Pattern getPattern() {
+			return pattern;
+		}
+	}
+
+	// the automaton works on ASCII characters, all others lead to the root
+	private static final int ALPHABET = 128;
+
+	private final Guesser[] guessers;
+	// next state for a state and a lower case character
+	private final int[][] transitions;
+	// pairs of guesser index and literal length, for the literals ending in
+	// a state
+	private final int[][] outputs;
+
+	/**
+	 * @param guessers
+	 *            guessers in order of their priority, see {@link Guess#first()}
+	 */
+	public GuesserEngine(List<Guesser> guessers) {
+		this.guessers = guessers.toArray(new Guesser[guessers.size()]);
+
+		// the trie of the literals
+		List<int[]> trie = new ArrayList<int[]>();
+		List<int[]> trieOutputs = new ArrayList<int[]>();
+		trie.add(newState());
+		trieOutputs.add(new int[0]);
+		for (int g = 0; g < this.guessers.length; g++) {
+			for (String prefix : this.guessers[g].prefixes) {
+				if (prefix.isEmpty()) {
+					throw new IllegalArgumentException("Empty prefix of "
+							+ this.guessers[g].name);
+				}
+				int state = 0;
+				for (char c : prefix.toCharArray()) {
+					if (c >= ALPHABET) {
+						throw new IllegalArgumentException(
+								"Prefixes need to be ASCII: " + prefix);
+					}
+					c = lower(c);
+					if (trie.get(state)[c] <= 0) {
+						trie.get(state)[c] = trie.size();
+						trie.add(newState());
+						trieOutputs.add(new int[0]);
+					}
+					state = trie.get(state)[c];
+				}
+				trieOutputs.set(state, append(trieOutputs.get(state), g,
+						prefix.length()));
+			}
+		}
+
+		// turn it into an automaton, with the failure links resolved in
+		// breadth first order
+		transitions = trie.toArray(new int[trie.size()][]);
+		outputs = trieOutputs.toArray(new int[trieOutputs.size()][]);
+		int[] failure = new int[transitions.length];
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		for (int c = 0; c < ALPHABET; c++) {
+			int next = transitions[0][c];
+			if (next > 0) {
+				failure[next] = 0;
+				queue.add(next);
+			} else {
+				transitions[0][c] = 0;
+			}
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			int[] out = outputs[failure[state]];
+			if (out.length > 0) {
+				outputs[state] = append(outputs[state], out);
+			}
+			for (int c = 0; c < ALPHABET; c++) {
+				int next = transitions[state][c];
+				if (next > 0) {
+					failure[next] = transitions[failure[state]][c];
+					queue.add(next);
+				} else {
+					transitions[state][c] = transitions[failure[state]][c];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Result of the guessers for one document.
+	 */
+	public class Guess {
+		private final boolean[] matched;
+
+		private Guess(boolean[] matched) {
+			this.matched = matched;
+		}
+
+		/**
+		 * @return true if at least one guesser matched
+		 */
+		public boolean any() {
+			return first() != null;
+		}
+
+		/**
+		 * @return name of the first matching guesser in the order given to the
+		 *         engine, null if none matched
+		 */
+		public String first() {
+			for (int g = 0; g < matched.length; g++) {
+				if (matched[g]) {
+					return guessers[g].name;
+				}
+			}
+			return null;
+		}
+
+		public boolean matched(String name) {
+			for (int g = 0; g < matched.length; g++) {
+				if (matched[g] && guessers[g].name.equals(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return names of all matching guessers in the order given to the
+		 *         engine
+		 */
+		public List<String> all() {
+			List<String> names = new ArrayList<String>();
+			for (int g = 0; g < matched.length; g++) {
+				if (matched[g]) {
+					names.add(guessers[g].name);
+				}
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * Runs all guessers over the document.
+	 */
+	public Guess guess(CharSequence document) {
+		boolean[] matched = new boolean[guessers.length];
+		Matcher[] matchers = new Matcher[guessers.length];
+		int open = guessers.length;
+		int length = document.length();
+		int state = 0;
+		for (int i = 0; i < length && open > 0; i++) {
+			char c = document.charAt(i);
+			if (c >= ALPHABET) {
+				state = 0;
+				continue;
+			}
+			state = transitions[state][lower(c)];
+			int[] out = outputs[state];
+			for (int k = 0; k < out.length; k += 2) {
+				int g = out[k];
+				if (matched[g]) {
+					continue;
+				}
+				if (matchers[g] == null) {
+					matchers[g] = guessers[g].pattern.matcher(document);
+				}
+				Matcher m = matchers[g];
+				m.region(i - out[k + 1] + 1, length);
+				if (m.lookingAt()) {
+					matched[g] = true;
+					open--;
+				}
+			}
+		}
+		return new Guess(matched);
+	}
+
+	/**
+	 * Runs all guessers over the bytes of a document, see above.
+	 */
+	public Guess guess(ByteSlice document) {
+		return guess(new ByteChars(document));
+	}
+
+	// the bytes of a slice as characters from 0 to 255
+	private static class ByteChars implements CharSequence {
+		private final byte[] array;
+		private final int offset;
+		private final int length;
+
+		ByteChars(ByteSlice slice) {
+			this(slice.getArray(), slice.getOffset(), slice.getLength());
+		}
+
+		private ByteChars(byte[] array, int offset, int length) {
+			this.array = array;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			}
+			return (char) (array[offset + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException(start + ", " + end);
+			}
+			return new ByteChars(array, offset + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = charAt(i);
+			}
+			return new String(chars);
+		}
+	}
+
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	private static int[] newState() {
+		int[] state = new int[ALPHABET];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	private static int[] append(int[] pairs, int... more) {
+		int[] joined = Arrays.copyOf(pairs, pairs.length + more.length);
+		System.arraycopy(more, 0, joined, pairs.length, more.length);
+		return joined;
+	}
+}
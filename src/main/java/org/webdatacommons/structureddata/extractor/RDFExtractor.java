@@ -12,9 +12,14 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import org.apache.any23.Any23;
@@ -45,8 +50,14 @@ import org.apache.any23.source.DocumentSource;
 import org.apache.any23.vocab.HRecipe;
 import org.apache.any23.vocab.SINDICE;
 import org.apache.any23.vocab.XHTML;
+import org.apache.any23.writer.TripleHandlerException;
 import org.apache.log4j.Logger;
 import org.commoncrawl.protocol.shared.ArcFileItem;
+import org.commoncrawl.util.shared.FlexBuffer;
+import org.webdatacommons.framework.concurrency.RecordBudget;
+import org.webdatacommons.framework.io.ByteSlice;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
 import org.webdatacommons.structureddata.iohandler.FilterableTripleHandler;
 
 /**
@@ -66,30 +77,64 @@ public class RDFExtractor {
 			"html-mf-hreview", "html-mf-species", "html-mf-hrecipe", "html-mf-xfn", "rdf-jsonld", "html-embedded-jsonld");
 
 	private static ExtractorGroup extractorGroup;
+	private final static List<ExtractorFactory<?>> allFactories = new ArrayList<ExtractorFactory<?>>();
+	// the extractors of the formats a guesser detects
+	private final static Map<String, List<ExtractorFactory<?>>> guessedFactories = new HashMap<String, List<ExtractorFactory<?>>>();
+	// extractors of formats no guesser detects reliably, they run on every
+	// interesting document: adr and h-adr have no guesser, the species
+	// extractor looks for more class names than "species", and the
+	// "ld+json" guesser reads the + as a quantifier, so it misses embedded
+	// JSON-LD (the JSON-LD document extractor only runs on non-HTML
+	// documents anyway)
+	private final static List<ExtractorFactory<?>> unguessedFactories = new ArrayList<ExtractorFactory<?>>();
 	static {
-		List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
-		factories.add(new BaselessRDFaExtractorFactory());
+		List<ExtractorFactory<?>> factories = allFactories;
+		factories.add(guessed("html-rdfa", new BaselessRDFaExtractorFactory()));
 		//use the BaselessRDFA Extraxtor to avoid extracting og header properties
 		//factories.add(new RDFaExtractorFactory());
 		// factories.add(new RDFa11ExtractorFactory());
-		factories.add(new MicrodataExtractorFactory());
-		factories.add(new GeoExtractorFactory());
-		factories.add(new HCalendarExtractorFactory());
-		factories.add(new HCardExtractorFactory());
-		factories.add(new AdrExtractorFactory());
-		factories.add(new HAdrExtractorFactory());
-		factories.add(new HListingExtractorFactory());
-		factories.add(new HResumeExtractorFactory());
-		factories.add(new HReviewExtractorFactory());
-		factories.add(new SpeciesExtractorFactory());
+		factories.add(guessed("html-microdata", new MicrodataExtractorFactory()));
+		factories.add(guessed("html-mf-geo", new GeoExtractorFactory()));
+		factories.add(guessed("html-mf-hcalendar", new HCalendarExtractorFactory()));
+		factories.add(guessed("html-mf-hcard", new HCardExtractorFactory()));
+		factories.add(unguessed(new AdrExtractorFactory()));
+		factories.add(unguessed(new HAdrExtractorFactory()));
+		factories.add(guessed("html-mf-hlisting", new HListingExtractorFactory()));
+		factories.add(guessed("html-mf-hresume", new HResumeExtractorFactory()));
+		factories.add(guessed("html-mf-hreview", new HReviewExtractorFactory()));
+		factories.add(unguessed(new SpeciesExtractorFactory()));
 		// factories.add(new WDCHTMLMetaExtractorFactory());
-		factories.add(new HRecipeExtractorFactory());
-		factories.add(new XFNExtractorFactory());
-		factories.add(new JSONLDExtractorFactory());
-		factories.add(new EmbeddedJSONLDExtractorFactory());
+		factories.add(guessed("html-mf-recipe", new HRecipeExtractorFactory()));
+		factories.add(guessed("html-mf-xfn", new XFNExtractorFactory()));
+		factories.add(unguessed(new JSONLDExtractorFactory()));
+		factories.add(unguessed(new EmbeddedJSONLDExtractorFactory()));
+		// the extractors of these guessers run on every interesting document
+		guessedFactories.put("html-mf-species", new ArrayList<ExtractorFactory<?>>());
+		guessedFactories.put("rdf-jsonld", new ArrayList<ExtractorFactory<?>>());
 		extractorGroup = new ExtractorGroup(factories);
 	}
 
+	private static ExtractorFactory<?> guessed(String guesser, ExtractorFactory<?> factory) {
+		List<ExtractorFactory<?>> factories = guessedFactories.get(guesser);
+		if (factories == null) {
+			factories = new ArrayList<ExtractorFactory<?>>();
+			guessedFactories.put(guesser, factories);
+		}
+		factories.add(factory);
+		return factory;
+	}
+
+	private static ExtractorFactory<?> unguessed(ExtractorFactory<?> factory) {
+		unguessedFactories.add(factory);
+		return factory;
+	}
+
+	// groups of the extractors selected for a combination of guessers
+	private final static ConcurrentHashMap<String, ExtractorGroup> selectedGroups = new ConcurrentHashMap<String, ExtractorGroup>();
+
+	// literals every match of a guesser starts with, see GuesserEngine
+	private final static Map<String, String[]> guesserPrefixes = new HashMap<String, String[]>();
+
 	public final static Map<String, Pattern> dataGuessers = new HashMap<String, Pattern>();
 	static {
 		Map<String, String> guessers = new HashMap<String, String>();
@@ -97,19 +142,25 @@ public class RDFExtractor {
 		// TODO check if we need to exclude the <meta beforehand to reduce the
 		// number of false positives
 		guessers.put("html-rdfa", "(property|typeof|about|resource)\\s*=");
+		guesserPrefixes.put("html-rdfa", new String[] { "property", "typeof", "about", "resource" });
 		guessers.put("html-microdata", "(itemscope|itemprop\\s*=)");
+		guesserPrefixes.put("html-microdata", new String[] { "itemscope", "itemprop" });
 
 		// TODO check if this is enough
 		guessers.put("rdf-jsonld", "ld+json");
+		guesserPrefixes.put("rdf-jsonld", new String[] { "ld" });
 
 		// microdata guessers
 		guessers.put("html-mf-geo", "class\\s*=\\s*(\"|')[^\"']*geo");
 		guessers.put("html-mf-species", "class\\s*=\\s*(\"|')[^\"']*species");
+		guesserPrefixes.put("html-mf-geo", new String[] { "class" });
+		guesserPrefixes.put("html-mf-species", new String[] { "class" });
 		// this regex leads to some miss-detections but at the moment i have no
 		// idea how to solve. e.g. home will be detected but no triple will be
 		// extracted from Any23
 		guessers.put("html-mf-xfn",
 				"<a[^>]*rel\\s*=\\s*(\"|')[^\"']*(contact|acquaintance|friend|met|co-worker|colleague|co-resident|neighbor|child|parent|sibling|spouse|kin|muse|crush|date|sweetheart|me)");
+		guesserPrefixes.put("html-mf-xfn", new String[] { "<a" });
 
 		// following formats define unique enough main CSS class names
 		guessers.put("html-mf-hcalendar", "(vcalendar|vevent)");
@@ -118,6 +169,12 @@ public class RDFExtractor {
 		guessers.put("html-mf-hresume", "hresume");
 		guessers.put("html-mf-hreview", "hreview");
 		guessers.put("html-mf-recipe", "hrecipe");
+		guesserPrefixes.put("html-mf-hcalendar", new String[] { "vcalendar", "vevent" });
+		guesserPrefixes.put("html-mf-hcard", new String[] { "vcard" });
+		guesserPrefixes.put("html-mf-hlisting", new String[] { "hlisting" });
+		guesserPrefixes.put("html-mf-hresume", new String[] { "hresume" });
+		guesserPrefixes.put("html-mf-hreview", new String[] { "hreview" });
+		guesserPrefixes.put("html-mf-recipe", new String[] { "hrecipe" });
 
 		for (Map.Entry<String, String> guesser : guessers.entrySet()) {
 			dataGuessers.put(guesser.getKey(), Pattern.compile(guesser.getValue(), Pattern.CASE_INSENSITIVE));
@@ -131,6 +188,26 @@ public class RDFExtractor {
 				.compile("<script[^>]*type\\s*=\\s*(\"|')" + rdfFormatsRegex + "[^\"']*", Pattern.CASE_INSENSITIVE));
 		formatGuessers.put("linkRelData", Pattern.compile("<link[^>]*type\\s*=\\s*(\"|')" + rdfFormatsRegex + "[^\"']*",
 				Pattern.CASE_INSENSITIVE));
+		guesserPrefixes.put("scriptData", new String[] { "<script" });
+		guesserPrefixes.put("linkRelData", new String[] { "<link" });
+	}
+
+	/**
+	 * All guessers in one engine scanning a document once, the format
+	 * guessers first, in the order they were tried one after another before.
+	 */
+	public final static GuesserEngine guesserEngine;
+	static {
+		List<GuesserEngine.Guesser> guessers = new ArrayList<GuesserEngine.Guesser>();
+		for (Map.Entry<String, Pattern> guesser : formatGuessers.entrySet()) {
+			guessers.add(new GuesserEngine.Guesser(guesser.getKey(), guesser.getValue(),
+					guesserPrefixes.get(guesser.getKey())));
+		}
+		for (Map.Entry<String, Pattern> guesser : dataGuessers.entrySet()) {
+			guessers.add(new GuesserEngine.Guesser(guesser.getKey(), guesser.getValue(),
+					guesserPrefixes.get(guesser.getKey())));
+		}
+		guesserEngine = new GuesserEngine(guessers);
 	}
 
 	// exclude namesspaces which cause title and css links to be included as
@@ -142,20 +219,113 @@ public class RDFExtractor {
 
 	private static Logger log = Logger.getLogger(RDFExtractor.class);
 
+	private static StageTimer guessTimer = Metrics.timer("guess");
+	private static StageTimer extractTimer = Metrics.timer("any23.extract");
+
 	private Any23 any23Parser;
+	// parsers with the extractors selected for a combination of guessers
+	private Map<String, Any23> selectedParsers = new HashMap<String, Any23>();
+	// true to run only the extractors of the matching guessers
+	private boolean selectExtractors = true;
 	ExtractionParameters any23ExParams;
 	private OutputStreamWriter outputStreamWriter;
+	// the quads of the current document, reused for the next one
+	private StringBuilder quadBuffer = new StringBuilder();
+	// time budget of the extraction of one document, unlimited by default
+	private RecordBudget budget = new RecordBudget(0);
 
 	public RDFExtractor(OutputStream output) throws UnsupportedEncodingException {
+		this();
+		setOutputStream(output);
+	}
+
+	/**
+	 * Creates an extractor without output, which can be used for several
+	 * files by setting the output of each file with
+	 * {@link #setOutputStream(OutputStream)}.
+	 */
+	public RDFExtractor() {
 		any23ExParams = ExtractionParameters.newDefault();
 		any23ExParams.setFlag("any23.extraction.metadata.timesize", false);
 		any23ExParams.setFlag("any23.extraction.head.meta", false);
 
 		any23Parser = new Any23(extractorGroup);
+	}
 
+	/**
+	 * Sets the stream the triples are written to. The previous stream has to
+	 * be closed with {@link #closeStream()} before.
+	 */
+	public void setOutputStream(OutputStream output)
+			throws UnsupportedEncodingException {
 		this.outputStreamWriter = new OutputStreamWriter(output, "UTF-8");
 	}
 	
+	/**
+	 * Limits the time Any23 may take for one document. Documents exceeding
+	 * the budget are abandoned, see {@link ExtractorResult#wasAbandoned()}.
+	 */
+	public void setRecordBudget(RecordBudget budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Runs only the Any23 extractors of the formats whose guessers matched a
+	 * document (the default), or all extractors on every interesting
+	 * document. Extractors of formats without a reliable guesser always run,
+	 * and all extractors run if a guesser without own extractors matched,
+	 * e.g. a link to RDF data.
+	 */
+	public void setExtractorSelection(boolean selectExtractors) {
+		this.selectExtractors = selectExtractors;
+	}
+
+	/**
+	 * Returns the key of the extractors selected for the matching guessers,
+	 * null for all extractors.
+	 */
+	private String selectionKey(List<String> guessers) {
+		if (!selectExtractors) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		for (String guesser : guessers) {
+			if (!guessedFactories.containsKey(guesser)) {
+				return null;
+			}
+			key.append(guesser).append(' ');
+		}
+		return key.toString();
+	}
+
+	private Any23 getParser(String key, List<String> guessers) {
+		if (key == null) {
+			return any23Parser;
+		}
+		Any23 parser = selectedParsers.get(key);
+		if (parser == null) {
+			ExtractorGroup group = selectedGroups.get(key);
+			if (group == null) {
+				Set<ExtractorFactory<?>> selected = new HashSet<ExtractorFactory<?>>(unguessedFactories);
+				for (String guesser : guessers) {
+					selected.addAll(guessedFactories.get(guesser));
+				}
+				// in the order of the group of all extractors
+				List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
+				for (ExtractorFactory<?> factory : allFactories) {
+					if (selected.contains(factory)) {
+						factories.add(factory);
+					}
+				}
+				selectedGroups.putIfAbsent(key, new ExtractorGroup(factories));
+				group = selectedGroups.get(key);
+			}
+			parser = new Any23(group);
+			selectedParsers.put(key, parser);
+		}
+		return parser;
+	}
+
 	public void closeStream(){
 		try {
 			outputStreamWriter.close();
@@ -173,6 +343,8 @@ public class RDFExtractor {
 		private Map<String, Long> extractorTriples = new HashMap<String, Long>();
 		private String referencedData = "";
 		private boolean hadResults = false;
+		private boolean abandoned = false;
+		private boolean skipped = false;
 
 		private long totalTriples = 0;
 
@@ -205,6 +377,22 @@ public class RDFExtractor {
 			return hadError;
 		}
 
+		/**
+		 * True if the extraction exceeded its time budget. None of the
+		 * triples of the document are written then.
+		 */
+		public boolean wasAbandoned() {
+			return abandoned;
+		}
+
+		/**
+		 * True if the extraction was not started, because too many abandoned
+		 * extractions are still running.
+		 */
+		public boolean wasSkipped() {
+			return skipped;
+		}
+
 		public String getMimeType() {
 			return detectedMimeType;
 		}
@@ -215,61 +403,101 @@ public class RDFExtractor {
 	}
 
 	/**
-	 * Checks if the documentContent is likely to be interesting for the
-	 * extraction of structured data.
+	 * Checks if the document is likely to be interesting for the extraction
+	 * of structured data.
 	 * 
-	 * @param documentContent
-	 *            content of the document
+	 * @param content
+	 *            bytes of the document
 	 * @param result
 	 *            the current extractur result
-	 * @return true if structured data is likely to be included.
+	 * @return the matching guessers if structured data is likely to be
+	 *         included, null otherwise.
 	 */
-	private boolean interesting(String documentContent, ExtractorResult result) {
+	private List<String> interesting(ByteSlice content, ExtractorResult result) {
 		// check if the document contains references to structured data,
-		// e.g. as "<link rel"
-		for (Map.Entry<String, Pattern> guesser : formatGuessers.entrySet()) {
-			Matcher m = guesser.getValue().matcher(documentContent);
-			boolean match = m.find();
-			if (match) {
-				result.referencedData = guesser.getKey();
-				result.hadResults = true;
-				return true;
-			}
+		// e.g. as "<link rel", or any structured data itself, all guessers
+		// in one scan over the bytes
+		List<String> guessers = guesserEngine.guess(content).all();
+		if (!guessers.isEmpty()) {
+			result.referencedData = guessers.get(0);
+			result.hadResults = true;
+			return guessers;
 		}
-		// check if document contains any structured data
-		// possible extension: create ad-hoc extractor list from matches
-		for (Map.Entry<String, Pattern> guesser : dataGuessers.entrySet()) {
-			Matcher m = guesser.getValue().matcher(documentContent);
-			boolean match = m.find();
-			if (match) {
-				result.referencedData = guesser.getKey();
-				result.hadResults = true;
-				return true;
+		return null;
+	}
+
+	public ExtractorResult extract(ArcFileItem item) {
+		FlexBuffer buffer = item.getContent();
+		if (buffer == null || buffer.get() == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("No content for " + item.getUri());
 			}
+			ExtractorResult result = new ExtractorResult();
+			result.hadError = true;
+			return result;
 		}
-		return false;
+		return extract(new ByteSlice(buffer.get(), buffer.getOffset(),
+				buffer.getCount(), false), item.getUri(), item.getMimeType());
 	}
 
-	public ExtractorResult extract(ArcFileItem item) {
+	/**
+	 * Extracts the triples of a document given as bytes, e.g. the payload of
+	 * a record in a {@link org.webdatacommons.framework.io.BufferArena}. The
+	 * guessers run over the bytes and Any23 reads them without a copy and
+	 * detects their charset itself, the document is never decoded unless a
+	 * guesser matched.
+	 */
+	public ExtractorResult extract(ByteSlice content, String uri,
+			String mimeType) {
 		ExtractorResult result = new ExtractorResult();
 
 		try {
-			String documentContent = item.getContent().toString("UTF-8");
-			if (!interesting(documentContent, result)) {
+			long start = guessTimer.start();
+			List<String> guessers = interesting(content, result);
+			guessTimer.stop(start);
+			if (guessers == null) {
 				// if guessers do not match, return empty result
 				return result;
 			}
 
-			DocumentSource any23Source = new ByteArrayDocumentSource(documentContent.getBytes("UTF-8"), item.getUri(),
-					item.getMimeType());
+			final DocumentSource any23Source = new ByteSliceDocumentSource(content, uri, mimeType);
 
-			FilterableTripleHandler writer = new FilterableTripleHandler(outputStreamWriter, evilNamespaces,
-					notSoEvilNamespaces);
+			final FilterableTripleHandler writer = new FilterableTripleHandler(outputStreamWriter, evilNamespaces,
+					notSoEvilNamespaces, quadBuffer);
 
 			/**
 			 * Call any23 extractor
 			 */
-			ExtractionReport report = any23Parser.extract(any23ExParams, any23Source, writer);
+			final String selection = selectionKey(guessers);
+			if (selection != null) {
+				Metrics.counter("any23.selected").inc();
+			}
+			start = extractTimer.start();
+			final Any23 parser = getParser(selection, guessers);
+			ExtractionReport report;
+			try {
+				report = budget.call(new Callable<ExtractionReport>() {
+					@Override
+					public ExtractionReport call() throws Exception {
+						return parser.extract(any23ExParams, any23Source, writer);
+					}
+				});
+			} catch (TimeoutException e) {
+				abandon(writer, selection);
+				result.abandoned = true;
+				return result;
+			} catch (InterruptedException e) {
+				// the task was cancelled, the record is not to blame
+				abandon(writer, selection);
+				Thread.currentThread().interrupt();
+				result.hadError = true;
+				return result;
+			} catch (RejectedExecutionException e) {
+				result.skipped = true;
+				return result;
+			}
+			writer.writeDocument();
+			extractTimer.stop(start);
 
 			result.detectedMimeType = report.getDetectedMimeType();
 			result.totalTriples = writer.getTotalTriplesFound();
@@ -277,13 +505,28 @@ public class RDFExtractor {
 
 		} catch (Exception e) {
 			if (log.isDebugEnabled()) {
-				log.debug("Unable to parse " + item.getUri(), e);
+				log.debug("Unable to parse " + uri, e);
 			}
 			result.hadError = true;
 		}
 		return result;
 	}
 
+	/**
+	 * Gives up an extraction which may still be running, so it may not write
+	 * anymore and keeps its buffer and Any23 instance for itself, the content
+	 * it reads may already belong to the next record.
+	 */
+	private void abandon(FilterableTripleHandler writer, String selection) {
+		writer.abandon();
+		quadBuffer = new StringBuilder();
+		if (selection == null) {
+			any23Parser = new Any23(extractorGroup);
+		} else {
+			selectedParsers.remove(selection);
+		}
+	}
+
 	public boolean supports(String mimeType) {
 		try {
 			MIMEType type = MIMEType.parse(mimeType);
@@ -340,6 +583,7 @@ public class RDFExtractor {
 				any23Params.setFlag("any23.extraction.metadata.timesize", false);
 				any23Params.setFlag("any23.extraction.head.meta", false);
 				ExtractionReport report = any.extract(any23Params, any23Source, writer);
+				writer.writeDocument();
 				System.out.println("Triples:"+writer.getTotalTriplesFound());
 				w.flush();
 				w.close();
@@ -349,9 +593,8 @@ public class RDFExtractor {
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
-			} catch (ExtractionException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			} catch (ExtractionException | TripleHandlerException e) {
+				log.error("Unable to extract " + input, e);
 			}
 		}
 
@@ -5,6 +5,7 @@ import java.io.OutputStreamWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.any23.extractor.ExtractionContext;
 import org.apache.any23.writer.TripleHandler;
@@ -27,13 +28,38 @@ public class FilterableTripleHandler implements TripleHandler {
     private static Logger log = Logger.getLogger(FilterableTripleHandler.class);
 
 
+	// the compiled namespace lists, shared by all handlers
+	private static final Map<List<String>, PrefixMatcher> namespaceMatchers = new ConcurrentHashMap<List<String>, PrefixMatcher>();
+	// position of the counter of an extractor
+	private static final Map<String, Integer> extractorIndexes = new HashMap<String, Integer>();
+	static {
+		for (String ex : RDFExtractor.EXTRACTORS) {
+			if (!extractorIndexes.containsKey(ex)) {
+				extractorIndexes.put(ex, extractorIndexes.size());
+			}
+		}
+	}
+
 	private long totalTriples = 0;
-	private Map<String, Long> triplesPerExtractor = new HashMap<String, Long>();
-	private List<String> negativeFilterNamespaces;
-	private List<String> positiveFilterNamespaces;
+	private long[] triplesPerExtractor = new long[extractorIndexes.size()];
+	private PrefixMatcher negativeFilterNamespaces;
+	private PrefixMatcher positiveFilterNamespaces;
+	// predicates which were checked against the namespaces already
+	private Map<String, Boolean> filteredPredicates = new HashMap<String, Boolean>();
+	// the context of the last triple, with its extractor
+	private ExtractionContext lastContext;
+	private IRI lastExtractorUri;
+	private int lastExtractorIndex;
 	private OutputStreamWriter writer;
+	// the statements of the document, written at its end
+	private StringBuilder buffer;
 	private boolean started = false;
 	private Map<String, String> namespaceTable;
+	// set if the document exceeded its time budget, see abandon()
+	private volatile boolean abandoned = false;
+
+	// larger buffers are not kept for the next document
+	private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
 
 	/**
 	 * Create a FilterableTripleHandler which allows the controlled exclusion of
@@ -50,12 +76,47 @@ public class FilterableTripleHandler implements TripleHandler {
 	public FilterableTripleHandler(OutputStreamWriter osw,
 			List<String> negativeFilterNamespaces,
 			List<String> positivFilterNamespaces) {
+		this(osw, negativeFilterNamespaces, positivFilterNamespaces,
+				new StringBuilder());
+	}
+
+	/**
+	 * Create a FilterableTripleHandler which collects the statements of the
+	 * document in the given buffer, which is emptied when they are written
+	 * and can be reused for the next document.
+	 */
+	public FilterableTripleHandler(OutputStreamWriter osw,
+			List<String> negativeFilterNamespaces,
+			List<String> positivFilterNamespaces, StringBuilder buffer) {
 		this.writer = osw;
-		this.negativeFilterNamespaces = negativeFilterNamespaces;
-		this.positiveFilterNamespaces = positivFilterNamespaces;
-		for (String ex : RDFExtractor.EXTRACTORS) {
-			triplesPerExtractor.put(ex, new Long(0));
+		this.buffer = buffer;
+		buffer.setLength(0);
+		this.negativeFilterNamespaces = namespaceMatcher(negativeFilterNamespaces);
+		this.positiveFilterNamespaces = namespaceMatcher(positivFilterNamespaces);
+	}
+
+	private static PrefixMatcher namespaceMatcher(List<String> namespaces) {
+		PrefixMatcher matcher = namespaceMatchers.get(namespaces);
+		if (matcher == null) {
+			matcher = new PrefixMatcher(namespaces);
+			namespaceMatchers.put(namespaces, matcher);
 		}
+		return matcher;
+	}
+
+	/**
+	 * Checks if triples with the predicate are left out: the predicate is in
+	 * one of the negative namespaces, and not in all of the positive ones.
+	 */
+	private boolean filtered(String predicate) {
+		Boolean filtered = filteredPredicates.get(predicate);
+		if (filtered == null) {
+			filtered = negativeFilterNamespaces.matchesAny(predicate)
+					&& positiveFilterNamespaces.countPrefixesOf(predicate) < positiveFilterNamespaces
+							.size();
+			filteredPredicates.put(predicate, filtered);
+		}
+		return filtered;
 	}
 
 	Map<String, IRI> extractorNames = new HashMap<String, IRI>();
@@ -64,26 +125,32 @@ public class FilterableTripleHandler implements TripleHandler {
 			ExtractionContext context) throws TripleHandlerException {
 		// if uri is in negative namespace which has to be filtered out and not
 		// in the positive list - return directly
-		for (String negativeFilterNamespace : negativeFilterNamespaces) {
-			if (p.toString().startsWith(negativeFilterNamespace)) {
-				for (String positiveFilterNamespace : positiveFilterNamespaces) {
-					if (!p.toString().startsWith(positiveFilterNamespace)) {
-                            log.debug("Namespace filtered: "
-                                    + s.toString() + " , " + p.toString() + ", "
-                                    + o.toString());
-						return;
-					}
-				}
+		if (filtered(p.stringValue())) {
+			if (log.isDebugEnabled()) {
+				log.debug("Namespace filtered: " + s.toString() + " , "
+						+ p.toString() + ", " + o.toString());
 			}
+			return;
 		}
 
-		IRI extractorUri = extractorNames.get(context.getExtractorName());
-		if (extractorUri == null) {
-			extractorUri = SimpleValueFactory.getInstance().createIRI(
-					"ex:" + context.getExtractorName());
-			extractorNames.put(context.getExtractorName(), extractorUri);
+		// the triples of an extractor come in one context
+		if (context != lastContext) {
+			IRI extractorUri = extractorNames.get(context.getExtractorName());
+			if (extractorUri == null) {
+				extractorUri = SimpleValueFactory.getInstance().createIRI(
+						"ex:" + context.getExtractorName());
+				extractorNames.put(context.getExtractorName(), extractorUri);
+			}
+			Integer index = extractorIndexes.get(context.getExtractorName());
+			lastExtractorIndex = index == null ? -1 : index;
+			lastExtractorUri = extractorUri;
+			lastContext = context;
 		}
+		IRI extractorUri = lastExtractorUri;
 
+		if (abandoned) {
+			throw new TripleHandlerException("Document was abandoned");
+		}
 		try {
 			handleStatement(s, p, o, context.getDocumentIRI(), extractorUri);
 		} catch (RDFHandlerException e) {
@@ -91,10 +158,21 @@ public class FilterableTripleHandler implements TripleHandler {
 		}
 
 		totalTriples++;
-		String ex = context.getExtractorName();
-		if (triplesPerExtractor.containsKey(ex)) {
-			triplesPerExtractor.put(ex, new Long(
-					triplesPerExtractor.get(ex) + 1));
+		if (lastExtractorIndex >= 0) {
+			triplesPerExtractor[lastExtractorIndex]++;
+		}
+	}
+
+	/**
+	 * Stops writing triples, called if the extraction of the document is
+	 * abandoned while it still runs on another thread. The document is
+	 * written while holding the lock of the writer, so once this returns,
+	 * nothing of the document is written anymore. The buffer may still be
+	 * filled by the extraction and must not be reused.
+	 */
+	public void abandon() {
+		synchronized (writer) {
+			abandoned = true;
 		}
 	}
 
@@ -103,7 +181,11 @@ public class FilterableTripleHandler implements TripleHandler {
 	}
 
 	public Map<String, Long> getTriplesPerExtractor() {
-		return triplesPerExtractor;
+		Map<String, Long> triples = new HashMap<String, Long>();
+		for (Map.Entry<String, Integer> ex : extractorIndexes.entrySet()) {
+			triples.put(ex.getKey(), triplesPerExtractor[ex.getValue()]);
+		}
+		return triples;
 	}
 
 	@Override
@@ -138,24 +220,22 @@ public class FilterableTripleHandler implements TripleHandler {
 					"Cannot handle statement without start parsing first.");
 		}
 
-		try {
-			printResource(subject);
-			printSpace();
-			printIRI(predicate);
-			printSpace();
-			printObject(object);
+		if (abandoned) {
+			return;
+		}
+		printResource(subject);
+		printSpace();
+		printIRI(predicate);
+		printSpace();
+		printObject(object);
+		printSpace();
+
+		for (int i = 0; i < contexts.length; i++) {
+			printResource(contexts[i]);
 			printSpace();
-
-			for (int i = 0; i < contexts.length; i++) {
-				printResource(contexts[i]);
-				printSpace();
-			}
-
-			printCloseStatement();
-		} catch (IOException ioe) {
-			throw new RDFHandlerException(
-					"An error occurred while printing statement.", ioe);
 		}
+
+		printCloseStatement();
 	}
 
 	@Override
@@ -166,7 +246,30 @@ public class FilterableTripleHandler implements TripleHandler {
 
 	@Override
 	public void endDocument(IRI documentIRI) throws TripleHandlerException {
-		// ignore
+		writeDocument();
+	}
+
+	/**
+	 * Writes the statements collected so far in one piece and empties the
+	 * buffer, called at the end of the document.
+	 */
+	public void writeDocument() throws TripleHandlerException {
+		try {
+			synchronized (writer) {
+				if (abandoned || buffer.length() == 0) {
+					return;
+				}
+				writer.append(buffer);
+				writer.flush();
+				buffer.setLength(0);
+				if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+					buffer.trimToSize();
+				}
+			}
+		} catch (IOException ioe) {
+			throw new TripleHandlerException("Error while writing document.",
+					ioe);
+		}
 	}
 
 	@Override
@@ -182,6 +285,7 @@ public class FilterableTripleHandler implements TripleHandler {
 		}
 
 		try {
+			writeDocument();
 			writer.flush();
 		} catch (IOException ioe) {
 			throw new TripleHandlerException("Error while flushing writer.",
@@ -194,16 +298,33 @@ public class FilterableTripleHandler implements TripleHandler {
 		}
 	}
 
-	private void printSpace() throws IOException {
-		writer.append(' ');
+	private void printSpace() {
+		buffer.append(' ');
+	}
+
+	private void printCloseStatement() {
+		buffer.append(" .\n");
 	}
 
-	private void printCloseStatement() throws IOException {
-		writer.append(" .\n");
-		writer.flush();
+	/**
+	 * Appends the string escaped as {@link NTriplesUtil#escapeString(String)}
+	 * does, strings of printable ASCII characters without quotes and
+	 * backslashes are appended as they are.
+	 */
+	private void appendEscaped(String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e || c == '\\' || c == '"') {
+				buffer.append(s, 0, i);
+				buffer.append(NTriplesUtil.escapeString(s.substring(i)));
+				return;
+			}
+		}
+		buffer.append(s);
 	}
 
-	private void printIRI(IRI iri) throws IOException {
+	private void printIRI(IRI iri) {
 		final String iriString = iri.stringValue();
 		int splitIdx = 0;
 		String namespace = null;
@@ -216,23 +337,22 @@ public class FilterableTripleHandler implements TripleHandler {
 		}
 
 		if (namespace != null) {
-			writer.append('<');
-			writer.append(namespace);
-			writer.append(NTriplesUtil.escapeString(iriString
-					.substring(splitIdx)));
-			writer.append('>');
+			buffer.append('<');
+			buffer.append(namespace);
+			appendEscaped(iriString.substring(splitIdx));
+			buffer.append('>');
 		} else {
-			writer.append('<');
-			writer.append(NTriplesUtil.escapeString(iriString));
-			writer.append('>');
+			buffer.append('<');
+			appendEscaped(iriString);
+			buffer.append('>');
 		}
 	}
 
-	private void printBNode(BNode b) throws IOException {
-		writer.append(NTriplesUtil.toNTriplesString(b));
+	private void printBNode(BNode b) {
+		buffer.append(NTriplesUtil.toNTriplesString(b));
 	}
 
-	private void printResource(Resource r) throws IOException {
+	private void printResource(Resource r) {
 		if (r instanceof BNode) {
 			printBNode((BNode) r);
 		} else if (r instanceof IRI) {
@@ -242,16 +362,16 @@ public class FilterableTripleHandler implements TripleHandler {
 		}
 	}
 
-	private void printLiteral(Literal l) throws IOException {
+	private void printLiteral(Literal l) {
 			
-		writer.append(NTriplesUtil.toNTriplesString(l));
+		buffer.append(NTriplesUtil.toNTriplesString(l));
 	}
 
-	private void printObject(Value v) throws IOException {
+	private void printObject(Value v) {
 		if (v instanceof Resource) {
 			printResource((Resource) v);
 			return;
 		}
 		printLiteral((Literal) v);
 	}
-}
+}
\ No newline at end of file
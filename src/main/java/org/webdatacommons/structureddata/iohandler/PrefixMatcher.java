@@ -0,0 +1,98 @@
+package org.webdatacommons.structureddata.iohandler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of prefixes, e.g. namespaces, compiled into a trie, which finds all
+ * prefixes of a string in one pass over its first characters instead of
+ * calling {@link String#startsWith(String)} for each of them. The matcher is
+ * immutable and can be shared by several threads.
+ *
+ */
+public class PrefixMatcher {
+
+	private static class Node {
+		// the characters of the children, in the order they were added
+		private char[] chars = new char[0];
+		private Node[] children = new Node[0];
+		// number of prefixes ending here, a prefix may be listed twice
+		private int count = 0;
+
+		private Node child(char c) {
+			for (int i = 0; i < chars.length; i++) {
+				if (chars[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		private Node addChild(char c) {
+			Node child = child(c);
+			if (child == null) {
+				child = new Node();
+				chars = Arrays.copyOf(chars, chars.length + 1);
+				chars[chars.length - 1] = c;
+				children = Arrays.copyOf(children, children.length + 1);
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+
+	private final Node root = new Node();
+	private final int size;
+
+	public PrefixMatcher(List<String> prefixes) {
+		for (String prefix : prefixes) {
+			Node node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.addChild(prefix.charAt(i));
+			}
+			node.count++;
+		}
+		this.size = prefixes.size();
+	}
+
+	/**
+	 * @return number of prefixes in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the string starts with at least one of the prefixes
+	 */
+	public boolean matchesAny(String s) {
+		Node node = root;
+		for (int i = 0; node.count == 0; i++) {
+			if (i == s.length()) {
+				return false;
+			}
+			node = node.child(s.charAt(i));
+			if (node == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of prefixes the string starts with, prefixes listed
+	 *         twice are counted twice
+	 */
+	public int countPrefixesOf(String s) {
+		Node node = root;
+		int count = node.count;
+		for (int i = 0; i < s.length(); i++) {
+			node = node.child(s.charAt(i));
+			if (node == null) {
+				break;
+			}
+			count += node.count;
+		}
+		return count;
+	}
+}
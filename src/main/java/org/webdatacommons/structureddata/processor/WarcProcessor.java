@@ -12,26 +12,44 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.log4j.Logger;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveReaderFactory;
 import org.archive.io.ArchiveRecord;
 import org.archive.io.ArchiveRecordHeader;
 import org.commoncrawl.protocol.shared.ArcFileItem;
-import org.commoncrawl.util.shared.FlexBuffer;
-import org.jets3t.service.model.S3Object;
+import org.webdatacommons.framework.concurrency.CancellationToken;
+import org.webdatacommons.framework.concurrency.RecordBudget;
+import org.webdatacommons.framework.io.BufferArena;
+import org.webdatacommons.framework.io.ByteSlice;
 import org.webdatacommons.framework.io.CSVStatHandler;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+import org.webdatacommons.framework.metrics.TimedOutputStream;
+import org.webdatacommons.framework.processor.Checkpoint;
+import org.webdatacommons.framework.processor.CheckpointStore;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
+import org.webdatacommons.framework.processor.RecordQuarantine;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
 import org.webdatacommons.structureddata.extractor.RDFExtractor;
 import org.webdatacommons.structureddata.extractor.RDFExtractor.ExtractorResult;
 import org.webdatacommons.structureddata.util.WARCRecordUtils;
@@ -59,30 +77,62 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 					"<a[^>]+href=[\\\"']?([^\\\"']+wikipedia[^\\\"']+)[\"']?[^>]*>(.+?)</a>",
 					Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
+	// the extractor of the reading thread, reused for all files
+	private RDFExtractor extractor = null;
+	// time budget of the extraction of one page
+	private RecordBudget budget = null;
+	// pages of the current file which exceeded their budget, null without
+	// budget
+	private RecordQuarantine quarantine = null;
+	// payloads are read up to this size
+	private int maxPayloadBytes;
+	// true to skip oversized payloads, false to extract their beginning
+	private boolean skipOversized;
+	// true to run only the Any23 extractors of the guessed formats
+	private boolean selectExtractors;
+	// number of threads running the extraction of the records, the reading
+	// thread only reads the records if this is more than one
+	private int recordThreads;
+	// the extraction threads, reused for all files, null with one thread
+	private RecordExtractionPool extractionPool = null;
+
+	@Override
+	public void open() {
+		budget = getRecordBudget();
+		maxPayloadBytes = getOrDefault("maxPayloadBytes", 16 * 1024 * 1024);
+		skipOversized = "skip".equals(getOrDefault("oversizedPayloads",
+				"truncate"));
+		selectExtractors = !"all".equals(getOrDefault("extractors",
+				"guessed"));
+		extractor = new RDFExtractor();
+		extractor.setRecordBudget(budget);
+		extractor.setExtractorSelection(selectExtractors);
+		recordThreads = getOrDefault("recordThreads", 1);
+		if (recordThreads > 1) {
+			extractionPool = new RecordExtractionPool(recordThreads);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (extractionPool != null) {
+			extractionPool.shutdown();
+			extractionPool = null;
+		}
+	}
+
 	@Override
 	public Map<String, String> process(ReadableByteChannel fileChannel,
 			String inputFileKey) throws Exception {
 
+		if (extractor == null) {
+			open();
+		}
+		RecordExtractionPool pool = null;
+		// outputs of the current segment, uploaded while they are written
+		SegmentOutputs outputs = null;
 		try {
 
-			// create a tmp file to write the output for the triples to
-			File tempOutputFile = File.createTempFile("dpef-triple-extraction",
-					".nq.gz");
-			tempOutputFile.deleteOnExit();
-
-			OutputStream tempOutputStream = new GZIPOutputStream(
-					new FileOutputStream(tempOutputFile));
-			RDFExtractor extractor = new RDFExtractor(tempOutputStream);
-
-			// create file and stream for URLs.
-			File tempOutputUrlFile = File.createTempFile("dpef-url-extraction",
-					".nq.gz");
-			tempOutputUrlFile.deleteOnExit();
-
-			BufferedWriter urlBW = new BufferedWriter(new OutputStreamWriter(
-					new GZIPOutputStream(
-							new FileOutputStream(tempOutputUrlFile)), "UTF-8"));
-
 //			// create file and stream for anchor.
 //			File tempOutputAnchorFile = File.createTempFile(
 //					"dpef-anchor-extraction", ".nq.gz");
@@ -93,47 +143,78 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 //							new FileOutputStream(tempOutputAnchorFile)),
 //							"UTF-8"));
 
-			// set name for data output
-			String outputFileKey = "data/ex_" + inputFileKey.replace("/", "_")
-					+ ".nq.gz";
-			// set name for stat output
-			String outputStatsKey = "stats/ex_"
-					+ inputFileKey.replace("/", "_") + ".csv.gz";
-			// set name for url output
-			String outputUrlKey = "urls/ex_" + inputFileKey.replace("/", "_")
-					+ ".csv.gz";
 			// set name for anchor output
 //			String outputAnchorKey = "anchor/ex_"
 //					+ inputFileKey.replace("/", "_") + ".csv.gz";
 
+			String resultBucket = getOrCry("resultBucket");
+
 			// default is false
 			boolean logRegexError = Boolean
 					.parseBoolean(getOrCry("logRegexFailures"));
 
-			// get handler for page stats
-			CSVStatHandler pageStatHandler = new CSVStatHandler();
+			// seconds between two checkpoints, 0 disables them
+			int checkpointSeconds = getOrDefault("checkpointSeconds", 0);
+			if (checkpointSeconds > 0 && recordThreads > 1) {
+				log.warn("Checkpoints are only written if recordThreads is 1");
+				checkpointSeconds = 0;
+			}
+			CheckpointStore checkpoints = null;
+			Checkpoint checkpoint = null;
+			if (checkpointSeconds > 0) {
+				checkpoints = new CheckpointStore(getObjectStore(),
+						resultBucket);
+				checkpoint = checkpoints.load(inputFileKey);
+			}
+			boolean resumed = checkpoint != null;
+			if (!resumed) {
+				checkpoint = new Checkpoint();
+			}
+
+			// page counters, shared by all extraction threads
+			final PageCounters counters = new PageCounters();
+			counters.restore(checkpoint);
+
+			// pages which exceeded their time budget before are skipped
+			quarantine = null;
+			if (budget.getBudgetMillis() > 0) {
+				quarantine = RecordQuarantine.load(getObjectStore(),
+						resultBucket, inputFileKey);
+			}
+
+			// continue after the checkpoint, directly at its record if the
+			// file can be positioned, otherwise by skipping the records
+			boolean positioned = false;
+			if (checkpoint.getOffset() > 0
+					&& fileChannel instanceof SeekableByteChannel) {
+				((SeekableByteChannel) fileChannel).position(checkpoint
+						.getOffset());
+				positioned = true;
+			}
+			long baseOffset = positioned ? checkpoint.getOffset() : 0;
+			// number of records read from the file
+			long records = positioned ? checkpoint.getRecords() : 0;
+
+			// the triples, the URLs and the page stats
+			outputs = new SegmentOutputs(resultBucket, inputFileKey,
+					checkpoint.getSegments(), counters);
 
 			// get archive reader
 			final ArchiveReader reader = ArchiveReaderFactory.get(inputFileKey,
-					Channels.newInputStream(fileChannel), true);
-
-			log.info("Extracting data from " + inputFileKey + " ...");
-
-			// number of pages visited for extraction
-			long pagesTotal = 0;
-			// number of pages parsed based on supported mime-type
-			long pagesParsed = 0;
-			// number of pages which contain an error
-			long pagesErrors = 0;
-			// number of pages which are likely to include triples
-			long pagesGuessedTriples = 0;
-			// number of pages including at least one triple
-			long pagesTriples = 0;
-			
+					Channels.newInputStream(fileChannel), !positioned);
+
+			if (resumed) {
+				log.info("Extracting data from " + inputFileKey
+						+ ", continuing at " + checkpoint + " ...");
+			} else {
+				log.info("Extracting data from " + inputFileKey + " ...");
+			}
+
 //			// number of anchors included in the pages
 //			long anchorTotal = 0;
 			// current time of the system when starting process.
 			long start = System.currentTimeMillis();
+			long lastCheckpoint = start;
 
 			// TODO LOW write regex detection errors into SDB
 			BufferedWriter bwriter = null;
@@ -143,13 +224,66 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 				bwriter = new BufferedWriter(writer);
 			}
 
+			if (recordThreads > 1) {
+				if (extractionPool == null) {
+					// stopped after a failed file
+					extractionPool = new RecordExtractionPool(recordThreads);
+				}
+				pool = extractionPool;
+				pool.startFile(counters, outputs.pageStatHandler, bwriter);
+			}
+
 			Iterator<ArchiveRecord> readerIt = reader.iterator();
 
+			// stops the file once the task is cancelled
+			CancellationToken token = CancellationToken.current();
+
 			// read all entries in the ARC file
-			while (readerIt.hasNext()) {
-				
+			StageTimer readTimer = Metrics.timer("warc.read");
+			StageTimer headerTimer = Metrics.timer("http.headers");
+			StageTimer payloadTimer = Metrics.timer("warc.payload");
+			while (true) {
+				long stageStart = readTimer.start();
+				if (!readerIt.hasNext()) {
+					break;
+				}
 				ArchiveRecord record = readerIt.next();
+				readTimer.stop(stageStart);
 				ArchiveRecordHeader header = record.getHeader();
+				token.checkCancelled();
+
+				if (records < checkpoint.getRecords()) {
+					// processed before the checkpoint
+					records++;
+					continue;
+				}
+				if (positioned && records == checkpoint.getRecords()
+						&& !String.valueOf(header.getUrl()).equals(
+								String.valueOf(checkpoint.getUrl()))) {
+					// start from the beginning with the next retry
+					checkpoints.delete(inputFileKey);
+					throw new IOException("Checkpoint of " + inputFileKey
+							+ " does not point to a record, removed it");
+				}
+				if (checkpoints != null
+						&& System.currentTimeMillis() - lastCheckpoint >= 1000L * checkpointSeconds) {
+					// store the outputs so far and continue with a new
+					// segment, the current record is not processed yet
+					checkpoint.getOutputs().addAll(
+							outputs.finish(counters, pool));
+					checkpoint.setOffset(baseOffset + header.getOffset());
+					checkpoint.setRecords(records);
+					checkpoint.setUrl(header.getUrl());
+					checkpoint.setSegments(checkpoint.getSegments() + 1);
+					counters.save(checkpoint, System.currentTimeMillis()
+							- start);
+					checkpoints.save(inputFileKey, checkpoint);
+					outputs = new SegmentOutputs(resultBucket, inputFileKey,
+							checkpoint.getSegments(), counters);
+					lastCheckpoint = System.currentTimeMillis();
+				}
+				records++;
+
 				ArcFileItem item = new ArcFileItem();
 				URI uri;
 
@@ -161,9 +295,8 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 				}
 				//inconsistent pages
 				
-				if (pagesTotal % 1000 == 0) {
-					log.info(pagesTotal + " / " + pagesParsed + " / "
-							+ pagesTriples + " / " + pagesErrors);
+				if (counters.pagesTotal.get() % 1000 == 0) {
+					log.info(counters);
 				}
 				
 				try {
@@ -175,124 +308,79 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 					if (host == null) {
 						continue;
 					}else{
-						urlBW.write(uri.toString() + "\n");
+						outputs.urlBW.write(uri.toString() + "\n");
 					}
 				} catch (URISyntaxException e) {
 					log.error("Invalid URI!!!", e);
 					continue;
 				}
 
+				stageStart = headerTimer.start();
 				String headers[] = WARCRecordUtils.getHeaders(record, true)
 						.split("\n");
+				headerTimer.stop(stageStart);
 				if (headers.length < 1) {
-					pagesTotal++;
+					counters.pagesTotal.incrementAndGet();
 					continue;
 				}
 				// only consider HTML responses
 				String contentType = headerKeyValue(headers, "Content-Type",
 						"text/html");
 				if (!contentType.contains("html")) {
-					pagesTotal++;
+					counters.pagesTotal.incrementAndGet();
+					continue;
+				}
+				if (quarantine != null && quarantine.contains(uri.toString())) {
+					counters.pagesAbandoned.incrementAndGet();
+					counters.pagesTotal.incrementAndGet();
 					continue;
 				}
 
-				byte[] bytes = IOUtils.toByteArray(WARCRecordUtils
-						.getPayload(record));
+				stageStart = payloadTimer.start();
+				// the payload is only valid until the next record is read
+				ByteSlice content = BufferArena.get().read(
+						WARCRecordUtils.getPayload(record), maxPayloadBytes);
+				payloadTimer.stop(stageStart);
+
+				if (content.isTruncated()) {
+					counters.pagesOversized.incrementAndGet();
+					Metrics.counter("payload.oversized").inc();
+					if (skipOversized) {
+						counters.pagesTotal.incrementAndGet();
+						continue;
+					}
+				}
 
-				if (bytes.length > 0) {
+				if (content.getLength() > 0) {
 
 					item.setMimeType(contentType);
-					item.setContent(new FlexBuffer(bytes, true));
 					item.setUri(uri.toString());
 
-					if (extractor.supports(item.getMimeType())) {
-						// do extraction (woo ho)
-						pagesParsed++;
-
-						// FIXME we can remove this if we do not want the
-						// anchors to
-						// be written
-//						String docCont = item.getContent().toString("UTF-8");
-						// we only write anchors from not wikipedia pages
-//						if (!uri.toString().contains("wikipedia")) {
-//							if (docCont.contains("wikipedia.")) {
-//								// now go through all the links and check
-//								// weather
-//								// they
-//								// are good or not
-//								Matcher pageMatcher = linkPattern
-//										.matcher(docCont);
-//								// ArrayList<String> links = new
-//								// ArrayList<String>();
-//								while (pageMatcher.find()) {
-//									// if
-//									// (pageMatcher.group(1).contains("wikipedia."))
-//									// {
-//									anchorBW.write(uri.toURL()
-//											+ "\t"
-//											+ pageMatcher.group(2)
-//													.replace("\n", " ")
-//													.replace("\r", " ")
-//													.replace("\t", " ") + "\t"
-//											+ pageMatcher.group(1) + "\n");
-//									anchorTotal++;
-//									// }
-//								}
-//								// TODO remember to write the file in the end
-//							}
-//						}
-
-						ExtractorResult result = extractor.extract(item);
-
-						// if we had an error, increment error count
-						if (result.hadError()) {
-							pagesErrors++;
-							pagesTotal++;
-							continue;
-						}
-						// if we found no triples, continue
-						if (result.hadResults()) {
-							// collect some other statistics
-							Map<String, String> stats = new HashMap<String, String>();
-							stats.putAll(itemStats(item));
-							stats.putAll(result.getExtractorTriples());
-							stats.putAll(result.getReferencedData());
-							stats.put("detectedMimeType", result.getMimeType());
-							stats.put("totalTriples",
-									Long.toString(result.getTotalTriples()));
-
-							if (result.getTotalTriples() > 0) {
-								pagesTriples++;
-							} else {
-								log.debug("Could not find any triple in file, although guesser found something.");
-								if (logRegexError) {
-									String documentContent = item.getContent()
-											.toString("UTF-8");
-									bwriter.write("[Item without triple on position: "
-											+ item.getArcFilePos() + "]\n\n");
-									for (String key : result
-											.getReferencedData().keySet()) {
-										bwriter.write(key
-												+ " : "
-												+ result.getReferencedData()
-														.get(key) + "\n");
-									}
-									bwriter.write("\n");
-									bwriter.write(documentContent);
-									bwriter.write("\n\n\n#########################\n\n\n");
-								}
-							}
-							
-							// write statistics about pages without errors but not necessary with triples
-							pageStatHandler.addStats(item.getUri(), stats);
-							pagesGuessedTriples++;							
-						}
+					long offset = baseOffset + header.getOffset();
+					if (pool != null) {
+						pool.submit(item, content.copy(), offset);
+					} else {
+						token.beginRecord(item.getUri());
+						extractItem(extractor, item, content, offset,
+								counters, outputs.pageStatHandler, bwriter);
+						token.endRecord();
 					}
-					pagesTotal++;
 					//only for local testing purposes
 					//if (pagesTotal==5000) break;
 				}
 			}
+			if (pool != null) {
+				// wait for the extraction threads
+				pool.awaitCompletion();
+			}
+			long pagesTotal = counters.pagesTotal.get();
+			long pagesParsed = counters.pagesParsed.get();
+			long pagesErrors = counters.pagesErrors.get();
+			long pagesGuessedTriples = counters.pagesGuessedTriples.get();
+			long pagesTriples = counters.pagesTriples.get();
+			long pagesAbandoned = counters.pagesAbandoned.get();
+			long pagesSkipped = counters.pagesSkipped.get();
+			long pagesOversized = counters.pagesOversized.get();
 			log.info("Finished processing file: "+inputFileKey);
 			if (logRegexError) {
 				bwriter.flush();
@@ -303,37 +391,10 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 				}
 			}
 			log.info("Close the streams:"+inputFileKey);
-			// we close the stream
-			urlBW.close();
 //			anchorBW.close();
-			pageStatHandler.flush();
-			// and the data stream
-			//tempOutputStream.close();
-			extractor.closeStream();
-
-			/**
-			 * write extraction results to s3, if at least one included item was
-			 * guessed to include triples
-			 */
-			log.info("Write pages guessed triples "+inputFileKey);
-			if (pagesGuessedTriples > 0) {
-				S3Object dataFileObject = new S3Object(tempOutputFile);
-				dataFileObject.setKey(outputFileKey);
-				getStorage()
-						.putObject(getOrCry("resultBucket"), dataFileObject);
-
-				S3Object statsFileObject = new S3Object(
-						pageStatHandler.getFile());
-				statsFileObject.setKey(outputStatsKey);
-				getStorage().putObject(getOrCry("resultBucket"),
-						statsFileObject);
-			}
-			log.info("Write pages total : "+inputFileKey);
-			if (pagesTotal > 0) {
-				S3Object dataFileObject = new S3Object(tempOutputUrlFile);
-				dataFileObject.setKey(outputUrlKey);
-				getStorage()
-						.putObject(getOrCry("resultBucket"), dataFileObject);
+			outputs.finish(counters, pool);
+			if (checkpoints != null) {
+				checkpoints.delete(inputFileKey);
 			}
 
 //			if (anchorTotal > 0) {
@@ -343,7 +404,9 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 //						.putObject(getOrCry("resultBucket"), dataFileObject);
 //			}
 
-			double duration = (System.currentTimeMillis() - start) / 1000.0;
+			// the time spent before the checkpoint counts as well
+			double duration = (System.currentTimeMillis() - start + checkpoint
+					.getCounter(PageCounters.MILLIS)) / 1000.0;
 			double rate = (pagesTotal * 1.0) / duration;
 
 			log.info("Write stats object "+inputFileKey);
@@ -357,6 +420,13 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 					Long.toString(pagesGuessedTriples));
 			dataStats.put(PAGES_TRIPLES, Long.toString(pagesTriples));
 			dataStats.put("pagesErrors", Long.toString(pagesErrors));
+			dataStats.put("pagesAbandoned", Long.toString(pagesAbandoned));
+			dataStats.put("pagesSkipped", Long.toString(pagesSkipped));
+			dataStats.put("pagesOversized", Long.toString(pagesOversized));
+			if (resumed) {
+				dataStats.put("resumedRecords",
+						Long.toString(checkpoint.getRecords()));
+			}
 
 			log.info("Extracted data from " + inputFileKey + " - parsed "
 					+ pagesParsed + " pages in " + duration + " seconds, "
@@ -365,12 +435,422 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 	//		reader.close();
 			return dataStats;
 		} catch (Exception e) {
+			if (pool != null) {
+				pool.abort();
+				extractionPool = null;
+			}
+			if (outputs != null) {
+				outputs.abort();
+			}
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 			throw new Exception(e.fillInStackTrace());
 		}
 	}
 
+	/**
+	 * The outputs of one segment of a file: the triples, the URLs and the
+	 * stats of the pages with triples. Without checkpoints there is only one
+	 * segment, named after the file. With checkpoints a new segment is
+	 * started after every checkpoint, the keys of the following segments get
+	 * ".part" and the number of the segment before the extension.
+	 */
+	private class SegmentOutputs {
+
+		private String resultBucket;
+		private String dataKey;
+		private String statsKey;
+		private String urlKey;
+		private StreamingUploadOutputStream dataUpload;
+		private StreamingUploadOutputStream urlUpload;
+		private BufferedWriter urlBW;
+		private CSVStatHandler pageStatHandler;
+		// counters when the segment was started
+		private long pagesTotalBefore;
+		private long pagesGuessedTriplesBefore;
+
+		private SegmentOutputs(String resultBucket, String inputFileKey,
+				int segment, PageCounters counters) throws IOException {
+			this.resultBucket = resultBucket;
+			String name = "ex_" + inputFileKey.replace("/", "_")
+					+ (segment > 0 ? ".part" + segment : "");
+			// set name for data output
+			dataKey = "data/" + name + ".nq.gz";
+			// set name for stat output
+			statsKey = "stats/" + name + ".csv.gz";
+			// set name for url output
+			urlKey = "urls/" + name + ".csv.gz";
+
+			// the triples, the shards of the extraction threads are appended
+			// to the upload after the stream of the extractor is closed
+			dataUpload = getObjectStore().create(resultBucket, dataKey);
+			extractor.setOutputStream(new TimedOutputStream(
+					getGzipOutputStream(new CloseShieldOutputStream(
+							dataUpload)), Metrics.timer("output.compress")));
+
+			// stream for URLs.
+			urlUpload = getObjectStore().create(resultBucket, urlKey);
+			urlBW = new BufferedWriter(new OutputStreamWriter(
+					getGzipOutputStream(urlUpload), "UTF-8"));
+
+			// get handler for page stats
+			pageStatHandler = new CSVStatHandler();
+
+			pagesTotalBefore = counters.pagesTotal.get();
+			pagesGuessedTriplesBefore = counters.pagesGuessedTriples.get();
+		}
+
+		/**
+		 * Completes the uploads of the segment, if at least one page of the
+		 * segment was guessed to include triples, otherwise the triples are
+		 * discarded. The same holds for the URLs and the pages.
+		 * 
+		 * @return the keys of the stored outputs
+		 */
+		private List<String> finish(PageCounters counters,
+				RecordExtractionPool pool) throws IOException {
+			List<String> stored = new ArrayList<String>();
+			// we close the stream
+			urlBW.flush();
+			pageStatHandler.flush();
+			// and the data stream
+			extractor.closeStream();
+			if (pool != null) {
+				pool.appendShards(dataUpload);
+			}
+
+			log.info("Write pages guessed triples " + dataKey);
+			if (counters.pagesGuessedTriples.get() > pagesGuessedTriplesBefore) {
+				dataUpload.close();
+				getObjectStore().put(resultBucket, statsKey,
+						pageStatHandler.getFile());
+				stored.add(dataKey);
+				stored.add(statsKey);
+			} else {
+				dataUpload.abort();
+			}
+			log.info("Write pages total : " + urlKey);
+			if (counters.pagesTotal.get() > pagesTotalBefore) {
+				urlBW.close();
+				stored.add(urlKey);
+			} else {
+				urlUpload.abort();
+			}
+			return stored;
+		}
+
+		private void abort() {
+			dataUpload.abort();
+			urlUpload.abort();
+		}
+	}
+
+	/**
+	 * Counters of the pages of one file, which can be updated from several
+	 * extraction threads.
+	 */
+	private static class PageCounters {
+		// number of pages visited for extraction
+		final AtomicLong pagesTotal = new AtomicLong();
+		// number of pages parsed based on supported mime-type
+		final AtomicLong pagesParsed = new AtomicLong();
+		// number of pages which contain an error
+		final AtomicLong pagesErrors = new AtomicLong();
+		// number of pages which are likely to include triples
+		final AtomicLong pagesGuessedTriples = new AtomicLong();
+		// number of pages including at least one triple
+		final AtomicLong pagesTriples = new AtomicLong();
+		// number of pages which exceeded their time budget
+		final AtomicLong pagesAbandoned = new AtomicLong();
+		// number of pages skipped as too many abandoned pages still ran
+		final AtomicLong pagesSkipped = new AtomicLong();
+		// number of pages with a payload larger than the maximum size
+		final AtomicLong pagesOversized = new AtomicLong();
+
+		// time spent on the file before the checkpoint
+		static final String MILLIS = "millis";
+
+		private void save(Checkpoint checkpoint, long millis) {
+			Map<String, Long> values = checkpoint.getCounters();
+			values.put("pagesTotal", pagesTotal.get());
+			values.put("pagesParsed", pagesParsed.get());
+			values.put("pagesErrors", pagesErrors.get());
+			values.put(PAGES_GUESSED_TRIPLES, pagesGuessedTriples.get());
+			values.put(PAGES_TRIPLES, pagesTriples.get());
+			values.put("pagesAbandoned", pagesAbandoned.get());
+			values.put("pagesSkipped", pagesSkipped.get());
+			values.put("pagesOversized", pagesOversized.get());
+			values.put(MILLIS, checkpoint.getCounter(MILLIS) + millis);
+		}
+
+		private void restore(Checkpoint checkpoint) {
+			pagesTotal.set(checkpoint.getCounter("pagesTotal"));
+			pagesParsed.set(checkpoint.getCounter("pagesParsed"));
+			pagesErrors.set(checkpoint.getCounter("pagesErrors"));
+			pagesGuessedTriples.set(checkpoint
+					.getCounter(PAGES_GUESSED_TRIPLES));
+			pagesTriples.set(checkpoint.getCounter(PAGES_TRIPLES));
+			pagesAbandoned.set(checkpoint.getCounter("pagesAbandoned"));
+			pagesSkipped.set(checkpoint.getCounter("pagesSkipped"));
+			pagesOversized.set(checkpoint.getCounter("pagesOversized"));
+		}
+
+		@Override
+		public String toString() {
+			return pagesTotal + " / " + pagesParsed + " / " + pagesTriples
+					+ " / " + pagesErrors;
+		}
+	}
+
+	/**
+	 * Runs the extraction of the records on a number of threads. The threads
+	 * and their {@link RDFExtractor}s are created once and reused for all
+	 * files. For each file, every extractor writes to its own temporary shard
+	 * file. The shards are appended to the output of the file when it is
+	 * finished, the result is a valid multi-member gzip file. The queue of
+	 * waiting records is bounded, if it is full, the reading thread extracts
+	 * the record itself, using the extractor of the file.
+	 */
+	private class RecordExtractionPool {
+
+		private ThreadPoolExecutor executor;
+		// extractors of the pool threads, kept for all files
+		private List<RDFExtractor> shardExtractors = new ArrayList<RDFExtractor>();
+		private ThreadLocal<RDFExtractor> extractors;
+		// shards of the current file
+		private List<File> shardFiles = new ArrayList<File>();
+		// records of the current file which are not extracted yet
+		private int pending = 0;
+		// the current file
+		private volatile Thread readerThread;
+		private volatile PageCounters counters;
+		private volatile CSVStatHandler pageStatHandler;
+		private volatile BufferedWriter bwriter;
+		private AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		private RecordExtractionPool(int threads) {
+			extractors = new ThreadLocal<RDFExtractor>() {
+				@Override
+				protected RDFExtractor initialValue() {
+					return newShard();
+				}
+			};
+			executor = new ThreadPoolExecutor(threads, threads, 0L,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		/**
+		 * Prepares the extraction of the records of the next file, called by
+		 * the reading thread. The extractors get new shards.
+		 */
+		private void startFile(PageCounters counters,
+				CSVStatHandler pageStatHandler, BufferedWriter bwriter)
+				throws IOException {
+			this.readerThread = Thread.currentThread();
+			this.counters = counters;
+			this.pageStatHandler = pageStatHandler;
+			this.bwriter = bwriter;
+			failure.set(null);
+			synchronized (shardFiles) {
+				for (RDFExtractor shardExtractor : shardExtractors) {
+					shardExtractor.setOutputStream(newShardStream());
+				}
+			}
+		}
+
+		private RDFExtractor newShard() {
+			RDFExtractor shardExtractor = new RDFExtractor();
+			shardExtractor.setRecordBudget(budget);
+			shardExtractor.setExtractorSelection(selectExtractors);
+			try {
+				synchronized (shardFiles) {
+					shardExtractor.setOutputStream(newShardStream());
+					shardExtractors.add(shardExtractor);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create shard file", e);
+			}
+			return shardExtractor;
+		}
+
+		private OutputStream newShardStream() throws IOException {
+			File shardFile = File.createTempFile("dpef-triple-shard", ".nq.gz");
+			shardFile.deleteOnExit();
+			shardFiles.add(shardFile);
+			return new GZIPOutputStream(new FileOutputStream(shardFile));
+		}
+
+		private void submit(final ArcFileItem item, final ByteSlice content,
+				final long offset) {
+			synchronized (this) {
+				pending++;
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// the reading thread runs records if the queue is
+						// full, with the extractor of the file
+						RDFExtractor recordExtractor = Thread.currentThread() == readerThread ? extractor
+								: extractors.get();
+						extractItem(recordExtractor, item, content, offset,
+								counters, pageStatHandler, bwriter);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						finished();
+					}
+				}
+			});
+		}
+
+		private synchronized void finished() {
+			pending--;
+			if (pending == 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for all records of the file to be extracted and closes the
+		 * shards.
+		 */
+		private void awaitCompletion() throws Exception {
+			synchronized (this) {
+				while (pending > 0) {
+					wait();
+				}
+			}
+			synchronized (shardFiles) {
+				for (RDFExtractor shardExtractor : shardExtractors) {
+					shardExtractor.closeStream();
+				}
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+		}
+
+		/**
+		 * Stops the extraction threads after a failure and removes the
+		 * shards. The pool cannot be used anymore.
+		 */
+		private void abort() {
+			executor.shutdownNow();
+			synchronized (shardFiles) {
+				for (File shardFile : shardFiles) {
+					shardFile.delete();
+				}
+				shardFiles.clear();
+			}
+		}
+
+		/**
+		 * Stops the extraction threads once the processor is closed.
+		 */
+		private void shutdown() {
+			executor.shutdown();
+		}
+
+		/**
+		 * Appends the shards to the given output, after the gzip stream of
+		 * the file itself is finished.
+		 */
+		private void appendShards(OutputStream out) throws IOException {
+			synchronized (shardFiles) {
+				for (File shardFile : shardFiles) {
+					FileUtils.copyFile(shardFile, out);
+					shardFile.delete();
+				}
+				shardFiles.clear();
+			}
+		}
+	}
+
+	/**
+	 * Extracts the triples of one page and updates the counters. Can be called
+	 * from several threads with different extractors. Pages exceeding their
+	 * time budget are quarantined with the offset of their record. The item
+	 * describes the page, its content is the given payload.
+	 */
+	private void extractItem(RDFExtractor extractor, ArcFileItem item,
+			ByteSlice content, long offset, PageCounters counters,
+			CSVStatHandler pageStatHandler, BufferedWriter bwriter)
+			throws IOException {
+		if (extractor.supports(item.getMimeType())) {
+			// do extraction (woo ho)
+			counters.pagesParsed.incrementAndGet();
+
+			ExtractorResult result = extractor.extract(content,
+					item.getUri(), item.getMimeType());
+
+			if (result.wasAbandoned()) {
+				counters.pagesAbandoned.incrementAndGet();
+				counters.pagesTotal.incrementAndGet();
+				if (quarantine != null) {
+					quarantine.add(offset, item.getUri());
+				}
+				return;
+			}
+
+			if (result.wasSkipped()) {
+				counters.pagesSkipped.incrementAndGet();
+				counters.pagesTotal.incrementAndGet();
+				return;
+			}
+
+			// if we had an error, increment error count
+			if (result.hadError()) {
+				counters.pagesErrors.incrementAndGet();
+				counters.pagesTotal.incrementAndGet();
+				return;
+			}
+			// if we found no triples, continue
+			if (result.hadResults()) {
+				// collect some other statistics
+				Map<String, String> stats = new HashMap<String, String>();
+				stats.putAll(itemStats(item));
+				stats.putAll(result.getExtractorTriples());
+				stats.putAll(result.getReferencedData());
+				stats.put("detectedMimeType", result.getMimeType());
+				stats.put("totalTriples",
+						Long.toString(result.getTotalTriples()));
+
+				if (result.getTotalTriples() > 0) {
+					counters.pagesTriples.incrementAndGet();
+				} else {
+					log.debug("Could not find any triple in file, although guesser found something.");
+					if (bwriter != null) {
+						String documentContent = content.toString(Charset
+								.forName("UTF-8"));
+						synchronized (bwriter) {
+							bwriter.write("[Item without triple on position: "
+									+ item.getArcFilePos() + "]\n\n");
+							for (String key : result.getReferencedData()
+									.keySet()) {
+								bwriter.write(key + " : "
+										+ result.getReferencedData().get(key)
+										+ "\n");
+							}
+							bwriter.write("\n");
+							bwriter.write(documentContent);
+							bwriter.write("\n\n\n#########################\n\n\n");
+						}
+					}
+				}
+
+				// write statistics about pages without errors but not
+				// necessary with triples, the CSV export is not thread safe
+				synchronized (pageStatHandler) {
+					pageStatHandler.addStats(item.getUri(), stats);
+				}
+				counters.pagesGuessedTriples.incrementAndGet();
+			}
+		}
+		counters.pagesTotal.incrementAndGet();
+	}
+
 	public static final String PAGES_GUESSED_TRIPLES = "pagesGuessedTriples";
 	public static final String PAGES_TRIPLES = "pagesTriples";
 
@@ -435,6 +915,7 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 			}
 
 			List<String> arcFiles = Arrays.asList(config.getStringArray("arcfile"));
+			WarcProcessor processor = new WarcProcessor();
 			for (String arcFileS : arcFiles) {
 				File arcFile = new File(arcFileS);
 				if (!arcFile.exists() || !arcFile.canRead()) {
@@ -443,10 +924,11 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 				}
 
 				
-				new WarcProcessor().process(
+				processor.process(
 						Channels.newChannel(new FileInputStream(arcFile)),
 						arcFile.toString());
 			}
+			processor.close();
 		
 		
 		
@@ -80,8 +80,7 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 	protected LuceneNormalizer termExtractor;
 
 	// define the model for classification - phase 1 and phase 2
-	TableClassification tc = new TableClassification("/SimpleCart_P1.mdl",
-			"/SimpleCart_P2.mdl");
+	TableClassification tc;
 
 	// object for table class
 	TableConvert myTableConvert = new TableConvert(2, 2);
@@ -98,6 +97,10 @@ public class BasicExtractionAlgorithm implements ExtractionAlgorithm {
 		super();
 		if (tableClassifier != null) {
 			this.tc = tableClassifier;
+		} else {
+			// only load the default models if no classifier is given
+			this.tc = new TableClassification("/SimpleCart_P1.mdl",
+					"/SimpleCart_P2.mdl");
 		}
 		this.stats = stats;
 		this.extract_terms = th_extract_terms;
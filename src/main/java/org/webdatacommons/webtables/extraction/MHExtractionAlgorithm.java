@@ -51,7 +51,7 @@ public class MHExtractionAlgorithm extends BasicExtractionAlgorithm {
 
 	public MHExtractionAlgorithm(StatsKeeper stats, boolean th_extract_terms,
 			TableClassification tableClassifier) {
-		super(stats, th_extract_terms);
+		super(stats, th_extract_terms, tableClassifier);
 		this.tableClassifier = tableClassifier;
 		this.tableConverter = new TableConvert(TABLE_MIN_ROWS, TABLE_MIN_COLS);
 	}
@@ -4,6 +4,8 @@ import java.io.InputStream;
 
 import org.jsoup.nodes.Element;
 
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
 import org.webdatacommons.webtables.tools.data.TableType;
 import org.webdatacommons.webtables.extraction.model.ClassificationResult;
 import org.webdatacommons.webtables.extraction.model.FeaturesP1;
@@ -27,6 +29,9 @@ import com.google.common.base.Optional;
  */
 public class TableClassification {
 
+	private static StageTimer classificationTimer = Metrics
+			.timer("table.classification");
+
 	private TableConvert tableConvert;
 	private FeaturesP1 phase1Features;
 	private FeaturesP2 phase2Features;
@@ -85,6 +90,15 @@ public class TableClassification {
 	// JSoup.Element 'table'
 	// Constructor of this class has to be called first
 	public ClassificationResult classifyTable(Element[][] convertedTable) {
+		long start = classificationTimer.start();
+		try {
+			return classify(convertedTable);
+		} finally {
+			classificationTimer.stop(start);
+		}
+	}
+
+	private ClassificationResult classify(Element[][] convertedTable) {
 		double[] dist1, dist2;
 		Instance currentInst = phase1Features.computeFeatures(convertedTable);
 		try {
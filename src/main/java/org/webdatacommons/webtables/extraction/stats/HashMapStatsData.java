@@ -33,6 +33,13 @@ public class HashMapStatsData extends StatsKeeper {
 		return counters;
 	}
 
+	/**
+	 * Removes all counters, so the stats can be collected for the next file.
+	 */
+	public void reset() {
+		counters.clear();
+	}
+
 	public void addMap(HashMap<String, Integer> addmap) {
 		for (Map.Entry<String, Integer> e : addmap.entrySet())
 			if (this.counters.containsKey(e.getKey()))
@@ -1,33 +1,39 @@
 package org.webdatacommons.webtables.processor;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
-import java.net.UnknownHostException;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
-import org.jets3t.service.S3ServiceException;
-import org.jets3t.service.model.S3Object;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
+import org.webdatacommons.framework.concurrency.CancellationToken;
+import org.webdatacommons.framework.concurrency.RecordBudget;
+import org.webdatacommons.framework.metrics.Metrics;
+import org.webdatacommons.framework.metrics.StageTimer;
+import org.webdatacommons.framework.metrics.TimedOutputStream;
 import org.webdatacommons.framework.processor.FileProcessor;
 import org.webdatacommons.framework.processor.ProcessingNode;
+import org.webdatacommons.framework.processor.RecordQuarantine;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
 import org.webdatacommons.webtables.extraction.ExtractionAlgorithm;
 import org.webdatacommons.webtables.extraction.TableClassification;
 import org.webdatacommons.webtables.extraction.model.DocumentMetadata;
@@ -35,7 +41,6 @@ import org.webdatacommons.webtables.extraction.stats.HashMapStatsData;
 import org.webdatacommons.webtables.extraction.stats.StatsKeeper;
 import org.webdatacommons.webtables.tools.data.Dataset;
 
-import de.dwslab.dwslib.util.io.OutputUtil;
 /**
  * 
  * Processor to extract web tables from .warc files.
@@ -51,20 +56,24 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 
 	private static final String WARC_TARGET_URI = "WARC-Target-URI";
 
-	@Override
-	public Map<String, String> process(ReadableByteChannel fileChannel,
-			String inputFileKey) throws Exception {
+	private static StageTimer readTimer = Metrics.timer("warc.read");
+	private static StageTimer extractTimer = Metrics.timer("table.extract");
 
-		log.info("Extracting data from " + inputFileKey + " ...");
-		WarcReader warcReader = WarcReaderFactory.getReaderCompressed(Channels
-				.newInputStream(fileChannel));
+	// stats of the current file, collected by the extraction algorithm
+	private HashMapStatsData stats = null;
+	// the extraction algorithm including its classifier, reused for all files
+	private ExtractionAlgorithm ea = null;
+	// time budget of parsing one page
+	private RecordBudget budget = null;
 
-		long pagesTotal = 0;
-		long pagesErrors = 0;
-		long start = System.currentTimeMillis();
-
-		// stats
-		StatsKeeper stats = new HashMapStatsData();
+	/**
+	 * Loads the classification models and creates the extraction algorithm,
+	 * which are reused for all files of this processor.
+	 */
+	@Override
+	public void open() throws Exception {
+		budget = getRecordBudget();
+		stats = new HashMapStatsData();
 		// extrac terms
 		boolean extractTopNTerms = Boolean
 				.parseBoolean(getOrCry("extractTopNTerms"));
@@ -77,54 +86,122 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 		Constructor c = Class.forName(getOrCry("extractionAlgorithm"))
 				.getConstructor(StatsKeeper.class, Boolean.TYPE,
 						TableClassification.class);
-		ExtractionAlgorithm ea = (ExtractionAlgorithm) c.newInstance(stats,
-				extractTopNTerms, tc);
-
-		// read all entries in the ARC file
-		RecordWithOffsetsAndURL item;
-		item = getNextResponseRecord(warcReader);
-		List<Dataset> result = new ArrayList<Dataset>();
-		while (item != null) {
-			List<Dataset> docResult;
-			try {
-				Document doc;
-				DocumentMetadata dm = new DocumentMetadata(item.start,
-						item.end, inputFileKey, item.url, item.lastModified);
+		ea = (ExtractionAlgorithm) c.newInstance(stats, extractTopNTerms, tc);
+	}
+
+	@Override
+	public Map<String, String> process(ReadableByteChannel fileChannel,
+			String inputFileKey) throws Exception {
+
+		if (ea == null) {
+			open();
+		}
+		log.info("Extracting data from " + inputFileKey + " ...");
+		WarcReader warcReader = WarcReaderFactory.getReaderCompressed(Channels
+				.newInputStream(fileChannel));
+
+		long pagesTotal = 0;
+		long pagesErrors = 0;
+		// pages which exceeded their time budget, now or in a previous try
+		long pagesAbandoned = 0;
+		// pages skipped as too many abandoned pages still ran
+		long pagesSkipped = 0;
+		long start = System.currentTimeMillis();
+
+		RecordQuarantine quarantine = null;
+		if (budget.getBudgetMillis() > 0) {
+			quarantine = RecordQuarantine.load(getObjectStore(),
+					getOrCry("resultBucket"), inputFileKey);
+		}
+
+		// stats are collected per file
+		stats.reset();
 
+		// the datasets are written to the result bucket while they are
+		// extracted
+		StreamingUploadOutputStream upload = getObjectStore().create(
+				getOrCry("resultBucket"), makeOutputFileKey(inputFileKey));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new TimedOutputStream(getGzipOutputStream(upload),
+						Metrics.timer("output.compress")), "UTF-8"));
+		try {
+			// stops the file once the task is cancelled
+			CancellationToken token = CancellationToken.current();
+			// read all entries in the ARC file
+			RecordWithOffsetsAndURL item;
+			item = getNextResponseRecord(warcReader);
+			while (item != null) {
+				token.checkCancelled();
+				if (quarantine != null && quarantine.contains(item.url)) {
+					pagesAbandoned++;
+					pagesTotal++;
+					item = getNextResponseRecord(warcReader);
+					continue;
+				}
+				List<Dataset> docResult;
+				long extractStart = extractTimer.start();
+				token.beginRecord(item.url);
 				try {
-					// try parsing with charset detected from doc
-					doc = Jsoup.parse(new ByteArrayInputStream(item.bytes),
-							null, "");
-					docResult = ea.extract(doc, dm);
-				} catch (IllegalCharsetNameException
-						| UnsupportedCharsetException e) {
+					Document doc;
+					DocumentMetadata dm = new DocumentMetadata(item.start,
+							item.end, inputFileKey, item.url, item.lastModified);
+
 					try {
-						// didnt work, try parsing with utf-8 as
-						// charset
-						doc = Jsoup.parse(new ByteArrayInputStream(item.bytes),
-								"UTF-8", "");
+						// try parsing with charset detected from doc
+						doc = parse(item.bytes, null);
 						docResult = ea.extract(doc, dm);
 					} catch (IllegalCharsetNameException
-							| UnsupportedCharsetException e2) {
-						// didnt work either, no result
-						docResult = new ArrayList<Dataset>();
+							| UnsupportedCharsetException e) {
+						try {
+							// didnt work, try parsing with utf-8 as
+							// charset
+							doc = parse(item.bytes, "UTF-8");
+							docResult = ea.extract(doc, dm);
+						} catch (IllegalCharsetNameException
+								| UnsupportedCharsetException e2) {
+							// didnt work either, no result
+							docResult = new ArrayList<Dataset>();
+						}
+					}
+				} catch (TimeoutException e) {
+					// skip the page, also in later tries of the file
+					pagesAbandoned++;
+					if (quarantine != null) {
+						quarantine.add(item.start, item.url);
+					}
+					docResult = new ArrayList<Dataset>();
+				} catch (RejectedExecutionException e) {
+					pagesSkipped++;
+					docResult = new ArrayList<Dataset>();
+				} catch (InterruptedException e) {
+					// the task was cancelled, stop the file
+					Thread.currentThread().interrupt();
+					throw e;
+				} catch (Exception e) {
+					e.printStackTrace();
+					docResult = new ArrayList<>();
+				}
+				token.endRecord();
+				extractTimer.stop(extractStart);
+				// write per-doc result to per-warc-file result
+				if (docResult != null) {
+					for (Dataset res : docResult) {
+						writer.append(res.toJson());
+						writer.append("\n");
 					}
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				docResult = new ArrayList<>();
+				pagesTotal++;
+				// next record with one retry
+				item = getNextResponseRecord(warcReader);
 			}
-			// add per-doc result to per-warc-file result
-			if (docResult != null)
-				result.addAll(docResult);
-			pagesTotal++;
-			// next record with one retry
-			item = getNextResponseRecord(warcReader);
-		}
-		warcReader.close();
+			warcReader.close();
 
-		// upload result to S3
-		upload(inputFileKey, result);
+			// complete the upload of the result
+			writer.close();
+		} catch (Exception e) {
+			upload.abort();
+			throw e;
+		}
 
 		double duration = (System.currentTimeMillis() - start) / 1000.0;
 		double rate = (pagesTotal * 1.0) / duration;
@@ -139,6 +216,8 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 		dataStats.put("rate", Double.toString(rate));
 		dataStats.put("pagesTotal", Long.toString(pagesTotal));
 		dataStats.put("pagesErrors", Long.toString(pagesErrors));
+		dataStats.put("pagesAbandoned", Long.toString(pagesAbandoned));
+		dataStats.put("pagesSkipped", Long.toString(pagesSkipped));
 
 		log.info("Extracted data from " + inputFileKey + " - parsed "
 				+ pagesTotal + " pages in " + duration + " seconds, " + rate
@@ -147,6 +226,20 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 		return dataStats;
 	}
 
+	/**
+	 * Parses a page within the time budget of a record.
+	 */
+	private Document parse(final byte[] bytes, final String charset)
+			throws Exception {
+		return budget.call(new Callable<Document>() {
+			@Override
+			public Document call() throws Exception {
+				return Jsoup.parse(new ByteArrayInputStream(bytes), charset,
+						"");
+			}
+		});
+	}
+
 	private static class RecordWithOffsetsAndURL {
 		public byte[] bytes;
 		public long start;
@@ -167,6 +260,16 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 
 	private RecordWithOffsetsAndURL getNextResponseRecord(WarcReader warcReader)
 			throws IOException {
+		long start = readTimer.start();
+		try {
+			return readNextResponseRecord(warcReader);
+		} finally {
+			readTimer.stop(start);
+		}
+	}
+
+	private RecordWithOffsetsAndURL readNextResponseRecord(WarcReader warcReader)
+			throws IOException {
 		WarcRecord wr;
 		while (true) {
 			try {
@@ -199,31 +302,4 @@ public class WarcProcessor extends ProcessingNode implements FileProcessor {
 		return s;
 	}
 
-	private void upload(String inputFileKey, Iterable<Dataset> results)
-			throws IOException, UnknownHostException, S3ServiceException,
-			NoSuchAlgorithmException {
-
-		File tmpFile = File.createTempFile(inputFileKey, "");
-		FileOutputStream output = new FileOutputStream(tmpFile);
-		Writer writer = null;
-		try {
-			writer = OutputUtil.getGZIPBufferedWriter(tmpFile);
-			for (Dataset res : results) {
-				writer.append(res.toJson());
-				writer.append("\n");
-			}
-		} finally {
-			if (writer != null)
-				writer.close();
-			output.close();
-		}
-		if (tmpFile.exists()) {
-
-			S3Object dataFileObject = new S3Object(tmpFile);
-			dataFileObject.setKey(makeOutputFileKey(inputFileKey));
-			getStorage().putObject(getOrCry("resultBucket"), dataFileObject);
-			tmpFile.delete();
-		}
-	}
-
 }
@@ -0,0 +1,61 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.webdatacommons.framework.io.BufferArena;
+import org.webdatacommons.framework.io.ByteSlice;
+
+public class BufferArenaTest {
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) i;
+		}
+		return bytes;
+	}
+
+	@Test
+	public void readTest() throws IOException {
+		BufferArena arena = BufferArena.get();
+		byte[] large = bytes(200 * 1024);
+		ByteSlice slice = arena.read(new ByteArrayInputStream(large),
+				1024 * 1024);
+		assertFalse(slice.isTruncated());
+		assertEquals(large.length, slice.getLength());
+		assertTrue(Arrays.equals(large, slice.copy().getArray()));
+
+		// the buffer is reused for the next payload
+		ByteSlice small = arena.read(
+				new ByteArrayInputStream("<html/>".getBytes("UTF-8")),
+				1024 * 1024);
+		assertSame(slice.getArray(), small.getArray());
+		assertEquals("<html/>", small.toString(Charset.forName("UTF-8")));
+	}
+
+	@Test
+	public void truncateTest() throws IOException {
+		BufferArena arena = BufferArena.get();
+		byte[] large = bytes(100 * 1024);
+		ByteSlice slice = arena.read(new ByteArrayInputStream(large),
+				70 * 1024);
+		assertTrue(slice.isTruncated());
+		assertEquals(70 * 1024, slice.getLength());
+		assertTrue(Arrays.equals(Arrays.copyOf(large, 70 * 1024), slice
+				.copy().getArray()));
+
+		// exactly the maximum size is not truncated
+		slice = arena.read(new ByteArrayInputStream(large), large.length);
+		assertFalse(slice.isTruncated());
+		assertEquals(large.length, slice.getLength());
+	}
+}
@@ -0,0 +1,71 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webdatacommons.framework.concurrency.ConcurrencyController;
+import org.webdatacommons.framework.concurrency.ResourceSampler.Sample;
+
+public class ConcurrencyControllerTest {
+
+	private static final double NA = Double.NaN;
+
+	@Test
+	public void adjustTest() throws InterruptedException {
+		ConcurrencyController controller = new ConcurrencyController(2, 10, 4);
+		// idle CPUs, but not all permits taken
+		controller.adjust(new Sample(0.3, 0, 0.5, 0));
+		assertEquals(4, controller.getLimit());
+
+		for (int i = 0; i < 4; i++) {
+			controller.acquire();
+		}
+		controller.adjust(new Sample(0.3, 0, 0.5, 0));
+		assertEquals(5, controller.getLimit());
+		// busy CPUs or unknown load keep the limit
+		controller.adjust(new Sample(0.9, 0, 0.5, 0));
+		controller.adjust(new Sample(NA, NA, NA, NA));
+		assertEquals(5, controller.getLimit());
+		// disks are the bottleneck
+		controller.adjust(new Sample(0.3, 0, 0.5, 0.4));
+		assertEquals(4, controller.getLimit());
+		// memory pressure
+		controller.setLimit(10);
+		controller.adjust(new Sample(0.3, 0, 0.95, 0));
+		assertEquals(8, controller.getLimit());
+		controller.adjust(new Sample(0.3, 0.5, 0.5, 0));
+		assertEquals(6, controller.getLimit());
+		// never below the minimum
+		for (int i = 0; i < 5; i++) {
+			controller.adjust(new Sample(0.3, 0.5, 0.95, 0.5));
+		}
+		assertEquals(2, controller.getLimit());
+	}
+
+	@Test
+	public void permitTest() throws InterruptedException {
+		final ConcurrencyController controller = new ConcurrencyController(1,
+				2, 1);
+		controller.acquire();
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					controller.acquire();
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		waiting.start();
+		waiting.join(200);
+		// the second thread waits for a permit until the limit is raised
+		assertTrue(waiting.isAlive());
+		controller.setLimit(2);
+		waiting.join(5000);
+		assertFalse(waiting.isAlive());
+		assertEquals(2, controller.getActive());
+	}
+}
@@ -0,0 +1,57 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.webdatacommons.framework.queue.Job;
+import org.webdatacommons.framework.queue.LocalJobQueue;
+
+public class LocalJobQueueTest {
+
+	@Test
+	public void batchReceiveTest() throws IOException {
+		LocalJobQueue q = new LocalJobQueue(60);
+		q.send(Arrays.asList("a", "b", "c"));
+
+		List<Job> jobs = q.receive(2);
+		assertEquals(2, jobs.size());
+		assertEquals("a", jobs.get(0).getBody());
+		assertEquals(1, jobs.get(0).getReceiveCount());
+
+		q.ack(jobs.get(0));
+		q.nack(jobs.get(1));
+		// b is back at the head, c still waiting
+		assertEquals(2, q.size());
+
+		jobs = q.receive(10);
+		assertEquals(2, jobs.size());
+		assertEquals("b", jobs.get(0).getBody());
+		assertEquals(2, jobs.get(0).getReceiveCount());
+	}
+
+	@Test
+	public void leaseExpiryTest() throws IOException, InterruptedException {
+		LocalJobQueue q = new LocalJobQueue(0);
+		q.send(Arrays.asList("a"));
+		Job first = q.receive(1).get(0);
+		Thread.sleep(5);
+
+		// lease is gone, the task is handed out again
+		List<Job> jobs = q.receive(1);
+		assertEquals(1, jobs.size());
+		assertEquals(2, jobs.get(0).getReceiveCount());
+
+		boolean failed = false;
+		try {
+			q.extendLease(first, 10);
+		} catch (IOException e) {
+			failed = true;
+		}
+		assertTrue(failed);
+	}
+}
@@ -0,0 +1,101 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.webdatacommons.framework.io.RangedDownloader;
+import org.webdatacommons.framework.storage.LocalObjectStore;
+import org.webdatacommons.framework.storage.StreamingUploadOutputStream;
+
+public class LocalObjectStoreTest {
+
+	@Test
+	public void streamingUploadTest() throws IOException {
+		File dir = Files.createTempDirectory("dpef-store").toFile();
+		try {
+			// small parts, so the data is uploaded in several of them
+			LocalObjectStore store = new LocalObjectStore(dir, 1000, 2);
+			byte[] data = new byte[10500];
+			new Random(42).nextBytes(data);
+
+			StreamingUploadOutputStream out = store.create("bucket",
+					"data/part.gz");
+			out.write(data, 0, 2500);
+			for (int i = 2500; i < 3000; i++) {
+				out.write(data[i]);
+			}
+			out.write(data, 3000, data.length - 3000);
+			out.close();
+
+			InputStream in = store.get("bucket", "data/part.gz");
+			byte[] read = new byte[data.length];
+			int n = 0;
+			while (n < read.length) {
+				n += in.read(read, n, read.length - n);
+			}
+			assertFalse(in.read() >= 0);
+			in.close();
+			assertArrayEquals(data, read);
+			// only the object is left, no parts
+			assertArrayEquals(new String[] { "part.gz" }, new File(dir,
+					"bucket/data").list());
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void abortTest() throws IOException {
+		File dir = Files.createTempDirectory("dpef-store").toFile();
+		try {
+			LocalObjectStore store = new LocalObjectStore(dir, 1000, 2);
+			StreamingUploadOutputStream out = store.create("bucket", "aborted");
+			out.write(new byte[3500]);
+			out.abort();
+			assertArrayEquals(new String[0], new File(dir, "bucket").list());
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void rangedDownloadTest() throws IOException {
+		File dir = Files.createTempDirectory("dpef-store").toFile();
+		try {
+			LocalObjectStore store = new LocalObjectStore(dir, 1000, 2);
+			byte[] data = new byte[10500];
+			new Random(42).nextBytes(data);
+			new File(dir, "bucket").mkdirs();
+			FileOutputStream file = new FileOutputStream(new File(dir,
+					"bucket/input.gz"));
+			file.write(data);
+			file.close();
+
+			// more ranges than downloaded at the same time, the last one short
+			RangedDownloader downloader = new RangedDownloader(1000, 3, 0);
+			InputStream in = downloader.open(
+					RangedDownloader.forObjectStore(store, "bucket"),
+					"input.gz");
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			byte[] buffer = new byte[700];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				read.write(buffer, 0, n);
+			}
+			in.close();
+			assertArrayEquals(data, read.toByteArray());
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.webdatacommons.framework.io.ParallelGzipInputStream;
+
+public class ParallelGzipInputStreamTest {
+
+	// writes one gzip member per record, like the WARC files
+	private static void member(ByteArrayOutputStream out, byte[] data,
+			final boolean stored) throws IOException {
+		GZIPOutputStream gz = new GZIPOutputStream(out) {
+			{
+				if (stored) {
+					def.setLevel(Deflater.NO_COMPRESSION);
+				}
+			}
+		};
+		gz.write(data);
+		gz.finish();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void membersTest() throws IOException {
+		Random random = new Random(42);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		for (int i = 0; i < 200; i++) {
+			byte[] record = new byte[random.nextInt(3000)];
+			for (int j = 0; j < record.length; j++) {
+				record[j] = (byte) ('a' + random.nextInt(4));
+			}
+			if (i % 7 == 0 && record.length > 10) {
+				// stored members contain bytes which look like a gzip header
+				record[5] = 0x1f;
+				record[6] = (byte) 0x8b;
+				record[7] = 8;
+				record[8] = 0;
+			}
+			member(compressed, record, i % 7 == 0);
+			plain.write(record);
+		}
+		byte[] expected = plain.toByteArray();
+
+		for (int blockSize : new int[] { 1, 100, 5000, 1024 * 1024 }) {
+			assertArrayEquals(expected, readAll(new ParallelGzipInputStream(
+					new ByteArrayInputStream(compressed.toByteArray()), 3,
+					blockSize)));
+		}
+	}
+
+	@Test
+	public void singleMemberTest() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(7).nextBytes(data);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		member(compressed, data, false);
+		assertArrayEquals(data, readAll(new ParallelGzipInputStream(
+				new ByteArrayInputStream(compressed.toByteArray()), 4, 1000)));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedTest() throws IOException {
+		byte[] data = new byte[10000];
+		new Random(7).nextBytes(data);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		member(compressed, data, false);
+		member(compressed, data, false);
+		byte[] truncated = new byte[compressed.size() - 20];
+		System.arraycopy(compressed.toByteArray(), 0, truncated, 0,
+				truncated.length);
+		readAll(new ParallelGzipInputStream(new ByteArrayInputStream(
+				truncated), 2, 1000));
+	}
+
+	@Test
+	public void corruptMemberTest() throws IOException {
+		Random random = new Random(3);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		int corruptAt = -1;
+		for (int i = 0; i < 400; i++) {
+			byte[] record = new byte[1000 + random.nextInt(2000)];
+			for (int j = 0; j < record.length; j++) {
+				record[j] = (byte) ('a' + random.nextInt(4));
+			}
+			if (i == 100) {
+				// the checksum of this member is wrong
+				corruptAt = compressed.size();
+				member(compressed, record, false);
+				byte[] b = compressed.toByteArray();
+				b[b.length - 8] ^= 0x55;
+				compressed.reset();
+				compressed.write(b);
+			} else {
+				member(compressed, record, false);
+			}
+			if (i < 100) {
+				plain.write(record);
+			}
+		}
+		assertTrue(corruptAt > 0);
+
+		ByteArrayInputStream input = new ByteArrayInputStream(
+				compressed.toByteArray());
+		ParallelGzipInputStream in = new ParallelGzipInputStream(input, 2,
+				2000);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		try {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				read.write(buffer, 0, n);
+			}
+			fail("Corrupt member not detected");
+		} catch (IOException e) {
+			// expected
+		}
+		// the members before the corrupt one are read, and the input after
+		// it is not merged
+		assertArrayEquals(plain.toByteArray(), read.toByteArray());
+		assertTrue(input.available() > compressed.size() / 2);
+	}
+}
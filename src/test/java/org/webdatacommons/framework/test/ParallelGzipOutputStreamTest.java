@@ -0,0 +1,67 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.webdatacommons.framework.io.ParallelGzipInputStream;
+import org.webdatacommons.framework.io.ParallelGzipOutputStream;
+
+public class ParallelGzipOutputStreamTest {
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		Random random = new Random(42);
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + random.nextInt(8));
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+				compressed, 3, 10000);
+		// single bytes and arrays crossing the blocks
+		int p = 0;
+		while (p < data.length) {
+			if (p % 3 == 0) {
+				out.write(data[p]);
+				p++;
+			} else {
+				int n = Math.min(random.nextInt(25000), data.length - p);
+				out.write(data, p, n);
+				p += n;
+			}
+			out.flush();
+		}
+		out.close();
+
+		assertArrayEquals(data, readAll(new GZIPInputStream(
+				new ByteArrayInputStream(compressed.toByteArray()))));
+		assertArrayEquals(data, readAll(new ParallelGzipInputStream(
+				new ByteArrayInputStream(compressed.toByteArray()), 2, 20000)));
+	}
+
+	@Test
+	public void emptyTest() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(compressed, 2).close();
+		assertArrayEquals(new byte[0], readAll(new GZIPInputStream(
+				new ByteArrayInputStream(compressed.toByteArray()))));
+	}
+}
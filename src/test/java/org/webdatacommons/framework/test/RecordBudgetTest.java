@@ -0,0 +1,66 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.webdatacommons.framework.concurrency.RecordBudget;
+
+public class RecordBudgetTest {
+
+	@Test
+	public void abandonedLimitTest() throws Exception {
+		RecordBudget.setLimits(4, 1);
+		RecordBudget budget = new RecordBudget(50);
+		final AtomicBoolean release = new AtomicBoolean(false);
+
+		// a parser ignoring the interrupt keeps running after its budget
+		try {
+			budget.call(new Callable<String>() {
+				@Override
+				public String call() {
+					while (!release.get()) {
+						Thread.yield();
+					}
+					return "late";
+				}
+			});
+			fail("Budget not exceeded");
+		} catch (TimeoutException e) {
+			// expected
+		}
+		assertEquals(1, RecordBudget.getAbandonedRunning());
+
+		// no further helper is started while it runs
+		try {
+			budget.call(new Callable<String>() {
+				@Override
+				public String call() {
+					return "skipped";
+				}
+			});
+			fail("Record not skipped");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		release.set(true);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (RecordBudget.getAbandonedRunning() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, RecordBudget.getAbandonedRunning());
+		assertEquals("done", budget.call(new Callable<String>() {
+			@Override
+			public String call() {
+				return "done";
+			}
+		}));
+	}
+}
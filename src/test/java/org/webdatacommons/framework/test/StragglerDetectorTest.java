@@ -0,0 +1,78 @@
+package org.webdatacommons.framework.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.webdatacommons.framework.queue.LocalTaskLedger;
+import org.webdatacommons.framework.queue.StragglerDetector;
+import org.webdatacommons.framework.queue.TaskLedger.Entry;
+
+public class StragglerDetectorTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void findTest() {
+		// finished tasks ran with 1 MB per second
+		List<Entry> finished = new ArrayList<Entry>();
+		for (int i = 0; i < 5; i++) {
+			finished.add(new Entry("done" + i, 100 * MB, 1, 1 + 100 * 1000,
+					false));
+		}
+		long now = 1000 * 1000;
+		List<Entry> running = Arrays.asList(
+				// expected 1000 s, running 500 s
+				new Entry("large", 1000 * MB, now - 500 * 1000, 0, false),
+				// expected 10 s, running 500 s
+				new Entry("small", 10 * MB, now - 500 * 1000, 0, false),
+				// already reissued
+				new Entry("reissued", 10 * MB, now - 500 * 1000, 0, true),
+				// size unknown, expected as the median of 100 s
+				new Entry("unknown", -1, now - 500 * 1000, 0, false),
+				// too short to be a straggler
+				new Entry("short", 1, now - 50 * 1000, 0, false));
+
+		StragglerDetector detector = new StragglerDetector(3, 60 * 1000, 5);
+		List<Entry> stragglers = detector.find(finished, running, now);
+		assertEquals(2, stragglers.size());
+		assertEquals("small", stragglers.get(0).getKey());
+		assertEquals("unknown", stragglers.get(1).getKey());
+
+		// not enough finished tasks for an estimate
+		detector = new StragglerDetector(3, 60 * 1000, 10);
+		assertTrue(detector.find(finished, running, now).isEmpty());
+	}
+
+	@Test
+	public void ledgerTest() {
+		LocalTaskLedger ledger = new LocalTaskLedger();
+		ledger.start("a", 10, "node1");
+		ledger.start("b", 20, "node1");
+		assertEquals(2, ledger.getRunning().size());
+
+		ledger.markReissued("a");
+		ledger.start("a", 10, "node2");
+		assertTrue(ledger.getRunning().get(0).isReissued()
+				|| ledger.getRunning().get(1).isReissued());
+
+		// the first copy to finish wins
+		assertFalse(ledger.isFinished("a"));
+		assertTrue(ledger.finish("a", "node2"));
+		assertFalse(ledger.finish("a", "node1"));
+		assertTrue(ledger.isFinished("a"));
+		assertEquals(1, ledger.getRunning().size());
+		assertEquals(1, ledger.getFinished().size());
+
+		// a failed task is not running until it is retried
+		ledger.stop("b", "node1");
+		assertTrue(ledger.getRunning().isEmpty());
+		ledger.start("b", 20, "node2");
+		assertEquals(1, ledger.getRunning().size());
+	}
+}
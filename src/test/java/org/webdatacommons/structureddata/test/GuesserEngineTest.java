@@ -0,0 +1,92 @@
+package org.webdatacommons.structureddata.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.webdatacommons.framework.io.ByteSlice;
+import org.webdatacommons.structureddata.extractor.GuesserEngine;
+import org.webdatacommons.structureddata.extractor.RDFExtractor;
+
+public class GuesserEngineTest {
+
+	// pieces of pages which trigger or nearly trigger the guessers
+	private static final String[] FRAGMENTS = { "<a href=\"x\" rel=\"friend\">",
+			"<a rel='nofollow'>", "<A REL=\"Me\">", "<abbr rel=\"kin\">",
+			"class=\"geo\"", "class = 'x species'", "CLASS=\"vcard\"",
+			"class=\"geography", "class=geo", "property=", "PROPERTY =",
+			"about", "typeof  =", "itemscope", "itemprop", "ITEMPROP=",
+			"ld+json", "lddjson", "application/ld+json", "vevent", "VCalendar",
+			"hlisting", "hresume", "hReview", "hrecipe",
+			"<script type=\"text/turtle\">", "<script src=\"a.js\">",
+			"<link rel=\"meta\" type='application/rdf+xml'>",
+			"<link type=\"application/rdfxml\">", "<LINK TYPE=\"text/n3\">",
+			"<div>", "</p>", " ", "\n", "\u00e4\u00f6\u00fc", "=", "\"", "'",
+			">" };
+
+	// the guessers as they were run before, one regex after another
+	private static List<String> expected(String document) {
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, Pattern> guesser : RDFExtractor.formatGuessers
+				.entrySet()) {
+			if (guesser.getValue().matcher(document).find()) {
+				names.add(guesser.getKey());
+			}
+		}
+		for (Map.Entry<String, Pattern> guesser : RDFExtractor.dataGuessers
+				.entrySet()) {
+			if (guesser.getValue().matcher(document).find()) {
+				names.add(guesser.getKey());
+			}
+		}
+		return names;
+	}
+
+	@Test
+	public void randomDocumentsTest() throws IOException {
+		GuesserEngine engine = RDFExtractor.guesserEngine;
+		Random random = new Random(42);
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int pieces = random.nextInt(12);
+			for (int j = 0; j < pieces; j++) {
+				sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+			}
+			String document = sb.toString();
+			assertEquals(document, expected(document),
+					engine.guess(document).all());
+			// the bytes give the same result, also as part of a buffer
+			byte[] bytes = ("<x>" + document + "</x>").getBytes("UTF-8");
+			assertEquals(document, expected(document),
+					engine.guess(new ByteSlice(bytes, 3, bytes.length - 7,
+							false)).all());
+		}
+	}
+
+	@Test
+	public void exampleDataTest() throws IOException {
+		File dir = new File(
+				"src/test/java/org/webdatacommons/structureddata/test/exampledata");
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			String document = new String(bytes, "UTF-8");
+			assertEquals(file.getName(), expected(document),
+					RDFExtractor.guesserEngine.guess(document).all());
+			assertEquals(file.getName(), expected(document),
+					RDFExtractor.guesserEngine.guess(ByteSlice.wrap(bytes))
+							.all());
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.webdatacommons.structureddata.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.webdatacommons.structureddata.extractor.RDFExtractor;
+import org.webdatacommons.structureddata.iohandler.PrefixMatcher;
+
+public class PrefixMatcherTest {
+
+	private static String randomString(Random random, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + random.nextInt(3)));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void randomPrefixesTest() {
+		Random random = new Random(42);
+		for (int i = 0; i < 500; i++) {
+			List<String> prefixes = new ArrayList<String>();
+			int n = random.nextInt(6);
+			for (int j = 0; j < n; j++) {
+				// short prefixes, so they overlap and repeat
+				prefixes.add(randomString(random, 4));
+			}
+			PrefixMatcher matcher = new PrefixMatcher(prefixes);
+			assertEquals(prefixes.size(), matcher.size());
+			for (int j = 0; j < 50; j++) {
+				String s = randomString(random, 8);
+				int count = 0;
+				for (String prefix : prefixes) {
+					if (s.startsWith(prefix)) {
+						count++;
+					}
+				}
+				assertEquals(prefixes + " " + s, count,
+						matcher.countPrefixesOf(s));
+				assertEquals(prefixes + " " + s, count > 0,
+						matcher.matchesAny(s));
+			}
+		}
+	}
+
+	@Test
+	public void namespacesTest() {
+		PrefixMatcher negative = new PrefixMatcher(RDFExtractor.evilNamespaces);
+		PrefixMatcher positive = new PrefixMatcher(
+				RDFExtractor.notSoEvilNamespaces);
+		List<String> predicates = new ArrayList<String>(Arrays.asList(
+				"http://schema.org/name", "http://ogp.me/ns#title", ""));
+		for (String ns : RDFExtractor.evilNamespaces) {
+			predicates.add(ns + "stylesheet");
+			predicates.add(ns.substring(0, ns.length() - 1));
+		}
+		for (String ns : RDFExtractor.notSoEvilNamespaces) {
+			predicates.add(ns + "ingredient");
+		}
+		for (String p : predicates) {
+			// the checks as they were done before, for every triple
+			boolean expected = false;
+			for (String negativeNs : RDFExtractor.evilNamespaces) {
+				if (p.startsWith(negativeNs)) {
+					for (String positiveNs : RDFExtractor.notSoEvilNamespaces) {
+						if (!p.startsWith(positiveNs)) {
+							expected = true;
+						}
+					}
+				}
+			}
+			assertEquals(p, expected, negative.matchesAny(p)
+					&& positive.countPrefixesOf(p) < positive.size());
+		}
+	}
+}
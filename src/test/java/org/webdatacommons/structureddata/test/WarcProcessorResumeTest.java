@@ -0,0 +1,104 @@
+package org.webdatacommons.structureddata.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.webdatacommons.framework.processor.Checkpoint;
+import org.webdatacommons.framework.processor.CheckpointStore;
+import org.webdatacommons.framework.storage.LocalObjectStore;
+import org.webdatacommons.structureddata.processor.WarcProcessor;
+
+public class WarcProcessorResumeTest {
+
+	private static final String[] CONFIG = { "resultBucket", "results",
+			"logRegexFailures", "false", "checkpointSeconds", "3600",
+			"recordThreads", "1", "recordTimeBudget", "0" };
+
+	// one gzip member with a WARC response of a page with microdata
+	private static byte[] response(String url) throws IOException {
+		byte[] http = ("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n"
+				+ "<html><body><div itemscope itemtype=\"http://schema.org/Thing\">"
+				+ "<span itemprop=\"name\">" + url + "</span></div></body></html>")
+				.getBytes("UTF-8");
+		String header = "WARC/1.0\r\nWARC-Type: response\r\n"
+				+ "WARC-Target-URI: " + url + "\r\n"
+				+ "WARC-Date: 2020-01-01T00:00:00Z\r\n"
+				+ "WARC-Record-ID: <urn:uuid:" + url.hashCode() + ">\r\n"
+				+ "Content-Type: application/http; msgtype=response\r\n"
+				+ "Content-Length: " + http.length + "\r\n\r\n";
+		ByteArrayOutputStream member = new ByteArrayOutputStream();
+		GZIPOutputStream gz = new GZIPOutputStream(member);
+		gz.write(header.getBytes("UTF-8"));
+		gz.write(http);
+		gz.write("\r\n\r\n".getBytes("UTF-8"));
+		gz.finish();
+		return member.toByteArray();
+	}
+
+	@Test
+	public void resumeAtOffsetTest() throws Exception {
+		File dir = Files.createTempDirectory("dpef-resume").toFile();
+		for (int i = 0; i < CONFIG.length; i += 2) {
+			System.setProperty("dpef." + CONFIG[i], CONFIG[i + 1]);
+		}
+		try {
+			// the records before the checkpoint can not be read at all, so
+			// the file has to be positioned to get to the following ones
+			byte[] garbage = "no record, processed before the checkpoint\n"
+					.getBytes("UTF-8");
+			File warc = new File(dir, "test.warc.gz");
+			FileOutputStream out = new FileOutputStream(warc);
+			out.write(garbage);
+			out.write(response("http://example.org/b"));
+			out.write(response("http://example.org/c"));
+			out.close();
+
+			LocalObjectStore store = new LocalObjectStore(new File(dir,
+					"store"), 1024 * 1024, 2);
+			Checkpoint checkpoint = new Checkpoint();
+			checkpoint.setOffset(garbage.length);
+			checkpoint.setRecords(1);
+			checkpoint.setUrl("http://example.org/b");
+			checkpoint.setSegments(1);
+			new CheckpointStore(store, "results").save("test.warc.gz",
+					checkpoint);
+
+			WarcProcessor processor = new WarcProcessor();
+			processor.setObjectStore(store);
+			FileChannel channel = new FileInputStream(warc).getChannel();
+			Map<String, String> stats;
+			try {
+				stats = processor.process(channel, "test.warc.gz");
+			} finally {
+				channel.close();
+			}
+
+			assertEquals("1", stats.get("resumedRecords"));
+			assertEquals("2", stats.get("pagesTotal"));
+			InputStream urls = new GZIPInputStream(store.get("results",
+					"urls/ex_test.warc.gz.part1.csv.gz"));
+			assertEquals("http://example.org/b\nhttp://example.org/c\n",
+					IOUtils.toString(urls, "UTF-8"));
+			urls.close();
+		} finally {
+			for (int i = 0; i < CONFIG.length; i += 2) {
+				System.clearProperty("dpef." + CONFIG[i]);
+			}
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}